@@ -0,0 +1,104 @@
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import benchmarks.Target;
+
+// entry point of the benchmarks into the default-package pipeline classes, see benchmarks.Target
+public class BenchmarkTarget implements Target {
+	private final CoverageCalculator coverage = new CoverageCalculator();
+
+	public Object loadCatalog(String virusListFile) throws Exception {
+		return VirusCatalog.load(virusListFile);
+	}
+
+	public byte[] compileCatalog(String virusListFile) throws Exception {
+		return VirusCatalog.compile(virusListFile);
+	}
+
+	public int lookupLengths(Object catalog, String[] accessions) {
+		VirusCatalog virusCatalog = (VirusCatalog) catalog;
+		int sum = 0;
+		for (String accession : accessions) {
+			sum += virusCatalog.getLength(virusCatalog.getId(accession));
+		}
+		return sum;
+	}
+
+	public Object newExplorer(String outDir, String virusListFile, Object catalog, double avgReadLen, 
+			int numThreads, boolean useSalmon) {
+		RunConfig config = new RunConfig.Builder().read1("reads.fq").indexFile("index.idx").outDir(outDir)
+				.virusListFile(virusListFile).numThreads(numThreads).useSalmon(useSalmon).build();
+		FastViromeExplorer explorer = new FastViromeExplorer(config, (VirusCatalog) catalog);
+		explorer.setAverageReadLength(avgReadLen);
+		return explorer;
+	}
+
+	public void getVirusLength(Object explorer) throws Exception {
+		((FastViromeExplorer) explorer).getVirusLength();
+	}
+
+	public void getRatio(Object explorer) throws Exception {
+		((FastViromeExplorer) explorer).getRatio();
+	}
+
+	public int getSortedAbundanceRatio(Object explorer) throws Exception {
+		return ((FastViromeExplorer) explorer).getSortedAbundanceRatio();
+	}
+
+	public int getSortedAbundanceRatioFromSalmon(Object explorer) throws Exception {
+		return ((FastViromeExplorer) explorer).getSortedAbundanceRatioFromSalmon();
+	}
+
+	// the ranking of the original pipeline, replaced by AbundanceTable and kept here as the baseline
+	public Map<String, Double> sortByComparator(Map<String, Double> map, final boolean ascending) {
+		List<Entry<String, Double>> list = new LinkedList<Entry<String, Double>>(map.entrySet());
+		Collections.sort(list, new Comparator<Entry<String, Double>>() {
+			public int compare(Entry<String, Double> o1, Entry<String, Double> o2) {
+				if (ascending) {
+					return o1.getValue().compareTo(o2.getValue());
+				} else {
+					return o2.getValue().compareTo(o1.getValue());
+				}
+			}
+		});
+		Map<String, Double> sortedMap = new LinkedHashMap<String, Double>();
+		for (Entry<String, Double> entry : list) {
+			sortedMap.put(entry.getKey(), entry.getValue());
+		}
+		return sortedMap;
+	}
+
+	public long coveredBps(int[] starts, int[] ends, int numReads, int genomeLen) {
+		coverage.clear();
+		for (int i = 0; i < numReads; i++) {
+			coverage.addRead(starts[i], ends[i]);
+		}
+		coverage.compute(genomeLen);
+		return coverage.getCoveredBps();
+	}
+
+	public int fillReadSet(int[] starts, int[] ends, int numReads) {
+		TreeSet<Read> readSet = new TreeSet<Read>();
+		for (int i = 0; i < numReads; i++) {
+			readSet.add(new Read(starts[i], ends[i]));
+		}
+		return readSet.size();
+	}
+
+	public int compareReads(int[] starts, int[] ends, int numReads) {
+		int sum = 0;
+		Read prev = new Read(starts[0], ends[0]);
+		for (int i = 1; i < numReads; i++) {
+			Read read = new Read(starts[i], ends[i]);
+			sum += Integer.signum(read.compareTo(prev));
+			prev = read;
+		}
+		return sum;
+	}
+}
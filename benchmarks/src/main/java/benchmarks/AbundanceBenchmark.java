@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Ranking of the final abundance table: the original sortByComparator(), kept
+ * in BenchmarkTarget as the baseline, and the readers of kallisto's
+ * abundance.tsv and salmon's quant.sf.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AbundanceBenchmark {
+	private static final int GENOME_LEN = 40000;
+
+	@Param({ "9000", "750000" })
+	public int numRefs;
+
+	private Target target;
+	private File kallistoDir;
+	private File salmonDir;
+	private Object kallistoExplorer;
+	private Object salmonExplorer;
+	private Map<String, Double> counts;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		target = Target.load();
+		kallistoDir = SyntheticData.createTempDir("abundance-benchmark");
+		salmonDir = SyntheticData.createTempDir("abundance-benchmark");
+		kallistoExplorer = createExplorer(kallistoDir, false);
+		salmonExplorer = createExplorer(salmonDir, true);
+		SyntheticData.writeKallistoAbundance(new File(kallistoDir, "abundance.tsv"), numRefs, GENOME_LEN, 6);
+		SyntheticData.writeSalmonQuant(new File(salmonDir, "quant.sf"), numRefs, GENOME_LEN, 6);
+
+		Random random = new Random(7);
+		counts = new HashMap<String, Double>();
+		for (int i = 0; i < numRefs; i++) {
+			counts.put(SyntheticData.refName(i), Math.floor(random.nextDouble() * 1000));
+		}
+	}
+
+	// the readers filter by the ratio of each virus, so getRatio() runs once on a small bam
+	private Object createExplorer(File dir, boolean useSalmon) throws Exception {
+		File virusList = new File(dir, "viruses-list.txt");
+		SyntheticData.writeVirusList(virusList, numRefs, GENOME_LEN, 1);
+		SyntheticData.writeSortedBam(new File(dir, "FastViromeExplorer-reads-mapped-sorted.bam"), numRefs, 4,
+				GENOME_LEN, 100, 2);
+		Object catalog = target.loadCatalog(virusList.getPath());
+		Object explorer = target.newExplorer(dir.getPath(), virusList.getPath(), catalog, 100, 1, useSalmon);
+		target.getRatio(explorer);
+		return explorer;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteRecursively(kallistoDir);
+		SyntheticData.deleteRecursively(salmonDir);
+	}
+
+	@Benchmark
+	public Map<String, Double> sortByComparator() {
+		return target.sortByComparator(counts, false);
+	}
+
+	@Benchmark
+	public int getSortedAbundanceRatio() throws Exception {
+		return target.getSortedAbundanceRatio(kallistoExplorer);
+	}
+
+	@Benchmark
+	public int getSortedAbundanceRatioFromSalmon() throws Exception {
+		return target.getSortedAbundanceRatioFromSalmon(salmonExplorer);
+	}
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Loading the virus list in getVirusLength(), from the text list and from a
+ * compiled catalog, and accession lookups. 9000 references is the size of
+ * ncbi-viruses-list.txt, 750000 that of the IMG/VR list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CatalogBenchmark {
+	@Param({ "9000", "750000" })
+	public int numRefs;
+
+	private Target target;
+	private File dir;
+	private File virusList;
+	private File compiledCatalog;
+	private Object catalog;
+	private String[] accessions;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		target = Target.load();
+		dir = SyntheticData.createTempDir("catalog-benchmark");
+		virusList = new File(dir, "viruses-list.txt");
+		SyntheticData.writeVirusList(virusList, numRefs, 40000, 1);
+		compiledCatalog = new File(dir, "viruses.fvc");
+		FileOutputStream out = new FileOutputStream(compiledCatalog);
+		out.write(target.compileCatalog(virusList.getPath()));
+		out.close();
+		catalog = target.loadCatalog(compiledCatalog.getPath());
+		Random random = new Random(5);
+		accessions = new String[10000];
+		for (int i = 0; i < accessions.length; i++) {
+			accessions[i] = SyntheticData.refName(random.nextInt(numRefs));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteRecursively(dir);
+	}
+
+	@Benchmark
+	public Object getVirusLengthFromText() throws Exception {
+		Object explorer = target.newExplorer(dir.getPath(), virusList.getPath(), null, 100, 1, false);
+		target.getVirusLength(explorer);
+		return explorer;
+	}
+
+	@Benchmark
+	public Object getVirusLengthFromCatalog() throws Exception {
+		Object explorer = target.newExplorer(dir.getPath(), compiledCatalog.getPath(), null, 100, 1, false);
+		target.getVirusLength(explorer);
+		return explorer;
+	}
+
+	@Benchmark
+	public int lookup() {
+		return target.lookupLengths(catalog, accessions);
+	}
+}
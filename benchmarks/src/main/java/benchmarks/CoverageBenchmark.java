@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Coverage and ratio computation of getRatio() over a synthetic sorted bam,
+ * and the coverage sweep alone for one genome.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CoverageBenchmark {
+	private static final int READ_LEN = 100;
+
+	@Param({ "10000", "1000000" })
+	public int genomeLength;
+
+	@Param({ "100000" })
+	public int readsPerRef;
+
+	@Param({ "10" })
+	public int numRefs;
+
+	@Param({ "1", "4" })
+	public int numThreads;
+
+	private Target target;
+	private File dir;
+	private Object explorer;
+	private int[] starts;
+	private int[] ends;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		target = Target.load();
+		dir = SyntheticData.createTempDir("coverage-benchmark");
+		File virusList = new File(dir, "viruses-list.txt");
+		SyntheticData.writeVirusList(virusList, numRefs, genomeLength, 1);
+		SyntheticData.writeSortedBam(new File(dir, "FastViromeExplorer-reads-mapped-sorted.bam"), numRefs,
+				readsPerRef, genomeLength, READ_LEN, 2);
+		Object catalog = target.loadCatalog(virusList.getPath());
+		explorer = target.newExplorer(dir.getPath(), virusList.getPath(), catalog, READ_LEN, numThreads, false);
+
+		starts = SyntheticData.readStarts(1, readsPerRef, genomeLength, READ_LEN, 3)[0];
+		ends = new int[readsPerRef];
+		for (int i = 0; i < readsPerRef; i++) {
+			ends[i] = starts[i] + READ_LEN - 1;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteRecursively(dir);
+	}
+
+	@Benchmark
+	public void getRatio() throws Exception {
+		target.getRatio(explorer);
+	}
+
+	@Benchmark
+	public long coverageSweep() {
+		return target.coveredBps(starts, ends, readsPerRef, genomeLength);
+	}
+}
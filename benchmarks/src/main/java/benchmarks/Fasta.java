@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * The references of a FASTA file (plain or gzipped): name (the first word of
+ * the header), description, length and, if asked for, the sequence. A name
+ * that is repeated keeps its first sequence, as in a mapper's index.
+ */
+public final class Fasta {
+	public final String name;
+	public final String description;
+	public final int length;
+	// upper-case bases, or null if only the lengths were read
+	public final byte[] sequence;
+
+	private Fasta(String name, String description, int length, byte[] sequence) {
+		this.name = name;
+		this.description = description;
+		this.length = length;
+		this.sequence = sequence;
+	}
+
+	public static List<Fasta> read(File file, boolean withSequences) throws IOException {
+		List<Fasta> refs = new ArrayList<Fasta>();
+		Set<String> names = new HashSet<String>();
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+		try {
+			String header = null;
+			ByteArrayOutputStream seq = new ByteArrayOutputStream();
+			int length = 0;
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith(">")) {
+					if (header != null) {
+						addReference(refs, names, header, length, withSequences ? seq.toByteArray() : null);
+					}
+					header = line.substring(1).trim();
+					seq.reset();
+					length = 0;
+				} else if (header != null) {
+					line = line.trim();
+					length += line.length();
+					if (withSequences) {
+						byte[] bases = line.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+						seq.write(bases, 0, bases.length);
+					}
+				}
+			}
+			if (header != null) {
+				addReference(refs, names, header, length, withSequences ? seq.toByteArray() : null);
+			}
+		} finally {
+			br.close();
+		}
+		return refs;
+	}
+
+	private static void addReference(List<Fasta> refs, Set<String> names, String header, int length,
+			byte[] sequence) {
+		int space = header.indexOf(' ');
+		String name = space < 0 ? header : header.substring(0, space);
+		String description = space < 0 ? name : header.substring(space + 1).trim();
+		if (names.add(name)) {
+			refs.add(new Fasta(name, description, length, sequence));
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * End-to-end benchmark of the whole FastViromeExplorer run, main() included,
+ * at several sequencing depths without kallisto, salmon or samtools. For
+ * every depth, ReadSimulator writes reads from a FASTA file, and
+ * FastViromeExplorer runs in a child JVM whose PATH starts with kallisto and
+ * salmon scripts calling StandInMapper and a samtools script calling
+ * StandInSamtools. The stages of every run are read from its
+ * FastViromeExplorer-metrics.json and written to $workDir/macro-benchmark.tsv.
+ *
+ * The default arguments stream the mappings (-stream true). The stand-in
+ * samtools writes sam only, so runs that sort the mappings need -sam true,
+ * and -shards and -writeBam need samtools itself.
+ *
+ * java -cp benchmarks.jar benchmarks.MacroBenchmark -fasta ../test/testset.fa -depths 10,50,200
+ */
+public class MacroBenchmark {
+	private String fasta = "../test/testset.fa";
+	private String workDir = "macro-benchmark";
+	private String virusListFile = "";
+	private double[] depths = { 10, 50, 200 };
+	private int repeats = 1;
+	private List<String> explorerArgs = Arrays.asList("-stream", "true");
+	private List<String> jvmArgs = new ArrayList<String>();
+	private double background = 0.1;
+	private boolean gzip = true;
+
+	private static class StageResult {
+		String name;
+		double wallSeconds;
+		double cpuSeconds;
+		long reads;
+		double readsPerSecond;
+		long peakHeapBytes;
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				System.out.println("Missing argument after " + args[i] + " .");
+				printUsage();
+				System.exit(1);
+			}
+			String value = args[i + 1];
+			if (args[i].equals("-fasta")) {
+				fasta = value;
+			} else if (args[i].equals("-o")) {
+				workDir = value;
+			} else if (args[i].equals("-l")) {
+				virusListFile = value;
+			} else if (args[i].equals("-depths")) {
+				String[] values = value.split(",");
+				depths = new double[values.length];
+				for (int j = 0; j < values.length; j++) {
+					depths[j] = Double.parseDouble(values[j].trim());
+				}
+			} else if (args[i].equals("-repeats")) {
+				repeats = Math.max(Integer.parseInt(value), 1);
+			} else if (args[i].equals("-args")) {
+				explorerArgs = split(value);
+			} else if (args[i].equals("-jvmArgs")) {
+				jvmArgs = split(value);
+			} else if (args[i].equals("-background")) {
+				background = Double.parseDouble(value);
+			} else if (args[i].equals("-gzip")) {
+				gzip = value.equalsIgnoreCase("true");
+			} else {
+				System.out.println("Unknown parameter " + args[i] + " .");
+				printUsage();
+				System.exit(1);
+			}
+		}
+		if (!new File(fasta).isFile()) {
+			System.out.println("Could not find the FASTA file: " + fasta);
+			printUsage();
+			System.exit(1);
+		}
+	}
+
+	private static List<String> split(String value) {
+		List<String> list = new ArrayList<String>();
+		for (String arg : value.trim().split("\\s+")) {
+			if (!arg.isEmpty()) {
+				list.add(arg);
+			}
+		}
+		return list;
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:");
+		System.out.println("java -cp benchmarks.jar benchmarks.MacroBenchmark -fasta $fastaFile -o $workDir");
+		System.out.println("-fasta: references to simulate reads from and map to, default: ../test/testset.fa.");
+		System.out.println("-o: directory for the reads, the runs and macro-benchmark.tsv, default: macro-benchmark.");
+		System.out.println("-l: virus list, default: one written from the FASTA headers.");
+		System.out.println("-depths: comma-separated mean fold coverages to run at, default: 10,50,200.");
+		System.out.println("-repeats: number of runs at every depth, default: 1.");
+		System.out.println("-args: further FastViromeExplorer parameters, default: \"-stream true\".");
+		System.out.println("-jvmArgs: parameters of the JVM running FastViromeExplorer, e.g. \"-Xmx4g\".");
+		System.out.println("-background: fraction of simulated reads mapping to no reference, default: 0.1.");
+		System.out.println("-gzip: gzip the simulated reads, default: true.");
+	}
+
+	private static String getJava() {
+		return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	}
+
+	/*
+	 * kallisto and salmon scripts running StandInMapper and a samtools script
+	 * running StandInSamtools, in a directory put first on the PATH of the runs
+	 */
+	private File writeStandInTools(File dir) throws IOException {
+		File bin = new File(dir, "bin");
+		bin.mkdirs();
+		for (String tool : new String[] { "kallisto", "salmon", "samtools" }) {
+			File script = new File(bin, tool);
+			BufferedWriter bw = new BufferedWriter(new FileWriter(script));
+			bw.write("#!/bin/sh\n");
+			bw.write("exec '" + getJava() + "' -cp '" + System.getProperty("java.class.path") + "' "
+					+ (tool.equals("samtools") ? "benchmarks.StandInSamtools" : "benchmarks.StandInMapper " + tool)
+					+ " \"$@\"\n");
+			bw.close();
+			if (!script.setExecutable(true)) {
+				throw new IOException("Could not make " + script + " executable.");
+			}
+		}
+		return bin;
+	}
+
+	// virus list in the format of ncbi-viruses-list.txt, with the description of every reference as its name
+	private void writeVirusList(File file) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		try {
+			for (Fasta ref : Fasta.read(new File(fasta), false)) {
+				bw.write(ref.name + "\t" + ref.description + "\t"
+						+ "Unclassified;Unclassified;Unclassified;Unclassified;Unclassified;Unclassified;"
+						+ ref.description + "\t" + ref.length + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	private double runExplorer(File bin, File outDir, ReadSimulator simulator, File log) throws Exception {
+		SyntheticData.deleteRecursively(outDir);
+		outDir.mkdirs();
+		List<String> command = new ArrayList<String>();
+		command.add(getJava());
+		command.addAll(jvmArgs);
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "FastViromeExplorer", "-1",
+				simulator.getReadFile(1), "-2", simulator.getReadFile(2), "-i", fasta, "-l", virusListFile, "-o",
+				outDir.getPath()));
+		command.addAll(explorerArgs);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.environment().put("PATH", bin.getAbsolutePath() + File.pathSeparator + System.getenv("PATH"));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(Redirect.appendTo(log));
+		long start = System.nanoTime();
+		int exitCode = builder.start().waitFor();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (exitCode != 0) {
+			throw new Exception("FastViromeExplorer exited with code " + exitCode + ", see " + log + ".");
+		}
+		return seconds;
+	}
+
+	// the stages of FastViromeExplorer-metrics.json
+	private static List<StageResult> readStages(File metricsFile) throws IOException {
+		List<StageResult> stages = new ArrayList<StageResult>();
+		BufferedReader br = new BufferedReader(new FileReader(metricsFile));
+		try {
+			StageResult stage = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String key = line.substring(0, colon).replace("\"", "").trim();
+				String value = line.substring(colon + 1).replace(",", "").replace("\"", "").trim();
+				if (key.equals("name")) {
+					stage = new StageResult();
+					stage.name = value;
+					stages.add(stage);
+				} else if (stage == null) {
+					continue;
+				} else if (key.equals("wallSeconds")) {
+					stage.wallSeconds = Double.parseDouble(value);
+				} else if (key.equals("cpuSeconds")) {
+					stage.cpuSeconds = Double.parseDouble(value);
+				} else if (key.equals("reads")) {
+					stage.reads = Long.parseLong(value);
+				} else if (key.equals("readsPerSecond")) {
+					stage.readsPerSecond = Double.parseDouble(value);
+				} else if (key.equals("peakHeapBytes")) {
+					stage.peakHeapBytes = Long.parseLong(value);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return stages;
+	}
+
+	private void run() throws Exception {
+		File dir = new File(workDir);
+		dir.mkdirs();
+		File bin = writeStandInTools(dir);
+		if (virusListFile.isEmpty()) {
+			File list = new File(dir, "viruses-list.txt");
+			writeVirusList(list);
+			virusListFile = list.getPath();
+		}
+		File log = new File(dir, "macro-benchmark-log.txt");
+		BufferedWriter report = new BufferedWriter(new FileWriter(new File(dir, "macro-benchmark.tsv")));
+		report.write("#Depth\tFragments\tRun\tStage\tWallSeconds\tCpuSeconds\tReads\tReadsPerSecond\tPeakHeapMB\n");
+		try {
+			for (double depth : depths) {
+				String scale = (depth == Math.rint(depth) ? Long.toString((long) depth) : Double.toString(depth)) + "x";
+				File scaleDir = new File(dir, "depth-" + scale);
+				scaleDir.mkdirs();
+				ReadSimulator simulator = new ReadSimulator(new File(fasta)).prefix(scaleDir.getPath() + "/reads")
+						.depth(depth).backgroundFraction(background).gzip(gzip);
+				long fragments = simulator.run();
+				System.out.println("Simulated " + fragments + " fragments at depth " + scale + ".");
+				for (int run = 1; run <= repeats; run++) {
+					File outDir = new File(scaleDir, "run-" + run);
+					double seconds = runExplorer(bin, outDir, simulator, log);
+					report.write(scale + "\t" + fragments + "\t" + run + "\ttotal\t" + format(seconds) + "\t\t"
+							+ fragments + "\t" + format(fragments / seconds) + "\t\n");
+					System.out.println(String.format(Locale.ROOT, "  run %d: %.2f s, %.0f fragments/s", run, seconds,
+							fragments / seconds));
+					for (StageResult stage : readStages(new File(outDir, "FastViromeExplorer-metrics.json"))) {
+						report.write(scale + "\t" + fragments + "\t" + run + "\t" + stage.name + "\t"
+								+ format(stage.wallSeconds) + "\t" + format(stage.cpuSeconds) + "\t" + stage.reads + "\t"
+								+ format(stage.readsPerSecond) + "\t" + format(stage.peakHeapBytes / 1048576.0) + "\n");
+						System.out.println(String.format(Locale.ROOT, "    %-16s %8.3f s %12.0f reads/s", stage.name,
+								stage.wallSeconds, stage.readsPerSecond));
+					}
+					report.flush();
+				}
+			}
+		} finally {
+			report.close();
+		}
+		System.out.println("Wrote " + new File(dir, "macro-benchmark.tsv") + ".");
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	public static void main(String[] args) {
+		MacroBenchmark benchmark = new MacroBenchmark();
+		try {
+			benchmark.parseArguments(args);
+			benchmark.run();
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number: " + e.getMessage());
+			printUsage();
+			System.exit(1);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
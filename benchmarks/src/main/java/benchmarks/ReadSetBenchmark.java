@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Read.compareTo and the TreeSet<Read> insertion that getRatio() used per virus
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReadSetBenchmark {
+	private static final int READ_LEN = 100;
+
+	@Param({ "10000", "1000000" })
+	public int numReads;
+
+	@Param({ "100000" })
+	public int genomeLength;
+
+	private Target target;
+	private int[] starts;
+	private int[] ends;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		target = Target.load();
+		// unsorted, as reads arrive from an unsorted sam
+		Random random = new Random(4);
+		starts = new int[numReads];
+		ends = new int[numReads];
+		for (int i = 0; i < numReads; i++) {
+			starts[i] = 1 + random.nextInt(genomeLength);
+			ends[i] = starts[i] + READ_LEN - 1;
+		}
+	}
+
+	@Benchmark
+	public int treeSetInsertion() {
+		return target.fillReadSet(starts, ends, numReads);
+	}
+
+	@Benchmark
+	public int compareTo() {
+		return target.compareReads(starts, ends, numReads);
+	}
+}
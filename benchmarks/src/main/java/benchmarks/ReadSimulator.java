@@ -0,0 +1,353 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Simulates paired-end (or single-end) reads from the references of a FASTA
+ * file at a given depth. The references get log-normally distributed
+ * abundances, so a few are deep and many shallow, and a fraction of the
+ * reads can be background that maps nowhere. Reads carry their origin in
+ * wgsim-style names, ref_start_end_errors1_errors2_id, which StandInMapper
+ * uses to map them without an index. The number of fragments drawn from each
+ * reference is written to $prefix-truth.tsv.
+ *
+ * java -cp benchmarks.jar benchmarks.ReadSimulator -fasta $fasta -o $prefix -depth 50
+ */
+public class ReadSimulator {
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+	private static final int QUALITY = 'I';
+
+	private final File fastaFile;
+	private String prefix = "simulated";
+	private double depth = 10;
+	private long numFragments = 0;
+	private int readLen = 100;
+	private int fragmentMean = 300;
+	private int fragmentSd = 30;
+	private double errorRate = 0.002;
+	private double abundanceSigma = 1.0;
+	private double backgroundFraction = 0.0;
+	private boolean singleEnd = false;
+	private boolean gzip = false;
+	private long seed = 1;
+
+	public ReadSimulator(File fastaFile) {
+		this.fastaFile = fastaFile;
+	}
+
+	// prefix of the output files, $prefix_1.fq, $prefix_2.fq and $prefix-truth.tsv
+	public ReadSimulator prefix(String prefix) {
+		this.prefix = prefix;
+		return this;
+	}
+
+	// mean fold coverage over all references, used unless the number of fragments is given
+	public ReadSimulator depth(double depth) {
+		this.depth = depth;
+		return this;
+	}
+
+	public ReadSimulator numFragments(long numFragments) {
+		this.numFragments = numFragments;
+		return this;
+	}
+
+	public ReadSimulator readLength(int readLen) {
+		this.readLen = readLen;
+		return this;
+	}
+
+	public ReadSimulator fragmentLength(int mean, int sd) {
+		this.fragmentMean = mean;
+		this.fragmentSd = sd;
+		return this;
+	}
+
+	// substitution rate per base
+	public ReadSimulator errorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	// sigma of the log-normal abundances, 0 for equal abundances
+	public ReadSimulator abundanceSigma(double abundanceSigma) {
+		this.abundanceSigma = abundanceSigma;
+		return this;
+	}
+
+	// fraction of random reads that map to none of the references
+	public ReadSimulator backgroundFraction(double backgroundFraction) {
+		this.backgroundFraction = backgroundFraction;
+		return this;
+	}
+
+	public ReadSimulator singleEnd(boolean singleEnd) {
+		this.singleEnd = singleEnd;
+		return this;
+	}
+
+	public ReadSimulator gzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	public ReadSimulator seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public String getReadFile(int mate) {
+		return prefix + "_" + mate + ".fq" + (gzip ? ".gz" : "");
+	}
+
+	// write the reads and return the number of fragments
+	public long run() throws IOException {
+		List<Fasta> refs = Fasta.read(fastaFile, true);
+		if (refs.isEmpty()) {
+			throw new IOException("No sequences in " + fastaFile + ".");
+		}
+		Random random = new Random(seed);
+		long totalLen = 0;
+		double[] cumulative = new double[refs.size()];
+		double sum = 0;
+		for (int i = 0; i < refs.size(); i++) {
+			totalLen += refs.get(i).length;
+			// abundance per base, so longer genomes get proportionally more reads
+			sum += Math.exp(abundanceSigma * random.nextGaussian()) * refs.get(i).length;
+			cumulative[i] = sum;
+		}
+		long fragments = numFragments > 0 ? numFragments
+				: (long) Math.ceil(depth * totalLen / (singleEnd ? readLen : 2.0 * readLen));
+		long[] counts = new long[refs.size()];
+
+		OutputStream out1 = open(getReadFile(1));
+		OutputStream out2 = singleEnd ? null : open(getReadFile(2));
+		byte[] read1 = new byte[readLen];
+		byte[] read2 = new byte[readLen];
+		byte[] quals = new byte[readLen];
+		Arrays.fill(quals, (byte) QUALITY);
+		try {
+			for (long n = 0; n < fragments; n++) {
+				String name;
+				int len1;
+				int len2;
+				if (random.nextDouble() < backgroundFraction) {
+					for (int i = 0; i < readLen; i++) {
+						read1[i] = BASES[random.nextInt(4)];
+						read2[i] = BASES[random.nextInt(4)];
+					}
+					len1 = readLen;
+					len2 = readLen;
+					name = "background_1_" + readLen + "_0:0:0_0:0:0_" + Long.toHexString(n);
+				} else {
+					int ref = pick(cumulative, random.nextDouble() * sum);
+					Fasta fasta = refs.get(ref);
+					counts[ref]++;
+					int fragLen = singleEnd ? readLen
+							: (int) Math.round(fragmentMean + fragmentSd * random.nextGaussian());
+					fragLen = Math.max(Math.min(fragLen, fasta.length), Math.min(readLen, fasta.length));
+					int start = random.nextInt(fasta.length - fragLen + 1);
+					len1 = Math.min(readLen, fragLen);
+					len2 = len1;
+					int errors1 = copy(fasta.sequence, start, len1, false, read1, random);
+					int errors2 = singleEnd ? 0
+							: copy(fasta.sequence, start + fragLen - len2, len2, true, read2, random);
+					name = fasta.name + "_" + (start + 1) + "_" + (start + fragLen) + "_" + errors1 + ":0:0_"
+							+ errors2 + ":0:0_" + Long.toHexString(n);
+				}
+				writeRecord(out1, name + "/1", read1, len1, quals);
+				if (!singleEnd) {
+					writeRecord(out2, name + "/2", read2, len2, quals);
+				}
+			}
+		} finally {
+			out1.close();
+			if (out2 != null) {
+				out2.close();
+			}
+		}
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(prefix + "-truth.tsv"));
+		try {
+			bw.write("#Name\tLength\tFragments\n");
+			for (int i = 0; i < refs.size(); i++) {
+				bw.write(refs.get(i).name + "\t" + refs.get(i).length + "\t" + counts[i] + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+		return fragments;
+	}
+
+	private OutputStream open(String fileName) throws IOException {
+		OutputStream out = new FileOutputStream(fileName);
+		if (gzip) {
+			// fast compression, as the reads are written once and read by every run
+			out = new GZIPOutputStream(out, 1 << 16) {
+				{
+					def.setLevel(1);
+				}
+			};
+		}
+		return new BufferedOutputStream(out, 1 << 16);
+	}
+
+	// index of the first cumulative weight above the given value
+	private static int pick(double[] cumulative, double value) {
+		int lo = 0;
+		int hi = cumulative.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cumulative[mid] <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// copy len bases, reverse complemented if asked for, with substitution errors; returns the number of errors
+	private int copy(byte[] seq, int start, int len, boolean reverse, byte[] read, Random random) {
+		int errors = 0;
+		for (int i = 0; i < len; i++) {
+			byte base = reverse ? complement(seq[start + len - 1 - i]) : seq[start + i];
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				byte other = BASES[random.nextInt(4)];
+				if (other != base) {
+					base = other;
+					errors++;
+				}
+			}
+			read[i] = base;
+		}
+		return errors;
+	}
+
+	private static byte complement(byte base) {
+		switch (base) {
+		case 'A':
+			return 'T';
+		case 'C':
+			return 'G';
+		case 'G':
+			return 'C';
+		case 'T':
+			return 'A';
+		default:
+			return 'N';
+		}
+	}
+
+	private static void writeRecord(OutputStream out, String name, byte[] read, int len, byte[] quals)
+			throws IOException {
+		out.write('@');
+		out.write(name.getBytes(StandardCharsets.US_ASCII));
+		out.write('\n');
+		out.write(read, 0, len);
+		out.write(new byte[] { '\n', '+', '\n' });
+		out.write(quals, 0, len);
+		out.write('\n');
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:");
+		System.out.println("java -cp benchmarks.jar benchmarks.ReadSimulator -fasta $fastaFile -o $prefix");
+		System.out.println("-fasta: references to simulate reads from, mandatory field.");
+		System.out.println("-o: prefix of the output files, default: simulated.");
+		System.out.println("-depth: mean fold coverage over all references, default: 10.");
+		System.out.println("-fragments: number of read pairs (or reads), overrides -depth.");
+		System.out.println("-readLen: read length, default: 100.");
+		System.out.println("-fragmentLen: mean fragment length, default: 300.");
+		System.out.println("-fragmentSd: standard deviation of the fragment length, default: 30.");
+		System.out.println("-error: substitution rate per base, default: 0.002.");
+		System.out.println("-sigma: sigma of the log-normal abundances of the references, default: 1.0.");
+		System.out.println("-background: fraction of random reads mapping to no reference, default: 0.0.");
+		System.out.println("-single: write single-end reads, default: false.");
+		System.out.println("-gzip: gzip the read files, default: false.");
+		System.out.println("-seed: random seed, default: 1.");
+	}
+
+	public static void main(String[] args) {
+		String fasta = "";
+		String prefix = "simulated";
+		ReadSimulator simulator = null;
+		int fragmentMean = 300;
+		int fragmentSd = 30;
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				if (args[i].equals("-fasta")) {
+					fasta = args[i + 1];
+				}
+			}
+			if (fasta.isEmpty() || !new File(fasta).isFile()) {
+				System.out.println("Could not find the FASTA file: " + fasta);
+				printUsage();
+				System.exit(1);
+			}
+			simulator = new ReadSimulator(new File(fasta));
+			for (int i = 0; i < args.length; i += 2) {
+				if (i + 1 >= args.length) {
+					System.out.println("Missing argument after " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+				String value = args[i + 1];
+				if (args[i].equals("-fasta")) {
+					continue;
+				} else if (args[i].equals("-o")) {
+					prefix = value;
+				} else if (args[i].equals("-depth")) {
+					simulator.depth(Double.parseDouble(value));
+				} else if (args[i].equals("-fragments")) {
+					simulator.numFragments(Long.parseLong(value));
+				} else if (args[i].equals("-readLen")) {
+					simulator.readLength(Integer.parseInt(value));
+				} else if (args[i].equals("-fragmentLen")) {
+					fragmentMean = Integer.parseInt(value);
+				} else if (args[i].equals("-fragmentSd")) {
+					fragmentSd = Integer.parseInt(value);
+				} else if (args[i].equals("-error")) {
+					simulator.errorRate(Double.parseDouble(value));
+				} else if (args[i].equals("-sigma")) {
+					simulator.abundanceSigma(Double.parseDouble(value));
+				} else if (args[i].equals("-background")) {
+					simulator.backgroundFraction(Double.parseDouble(value));
+				} else if (args[i].equals("-single")) {
+					simulator.singleEnd(value.equalsIgnoreCase("true"));
+				} else if (args[i].equals("-gzip")) {
+					simulator.gzip(value.equalsIgnoreCase("true"));
+				} else if (args[i].equals("-seed")) {
+					simulator.seed(Long.parseLong(value));
+				} else {
+					System.out.println("Unknown parameter " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number: " + e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+		try {
+			long fragments = simulator.prefix(prefix).fragmentLength(fragmentMean, fragmentSd).run();
+			System.out.println("Wrote " + fragments + " fragments to " + simulator.getReadFile(1)
+					+ (simulator.singleEnd ? "" : " and " + simulator.getReadFile(2)) + ".");
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Stand-in for kallisto 0.43.1 and salmon with the command lines
+ * FastViromeExplorer uses: it "maps" the reads of ReadSimulator (or wgsim) by
+ * the origin in their names and writes the pseudobam sam to the standard
+ * output and abundance.tsv or quant.sf to the output directory. Reads from
+ * references that are not in the index are written unmapped. The index is
+ * the FASTA file itself; "kallisto index" and "salmon index" copy it.
+ *
+ * java -cp benchmarks.jar benchmarks.StandInMapper kallisto quant -i $fasta -o $dir --pseudobam $reads1 $reads2
+ */
+public class StandInMapper {
+	private static final String SALMON_INDEX_FASTA = "ref.fa";
+
+	private final boolean salmon;
+	private final List<Fasta> refs;
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final long[] counts;
+	private long fragmentBases = 0;
+	private long numFragments = 0;
+
+	private StandInMapper(boolean salmon, File index) throws IOException {
+		this.salmon = salmon;
+		refs = Fasta.read(index.isDirectory() ? new File(index, SALMON_INDEX_FASTA) : index, false);
+		for (int i = 0; i < refs.size(); i++) {
+			ids.put(refs.get(i).name, i);
+		}
+		counts = new long[refs.size()];
+	}
+
+	private static BufferedReader open(String fileName) throws IOException {
+		InputStream in = new FileInputStream(fileName);
+		if (fileName.endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+	}
+
+	private void map(String reads1, String reads2, OutputStream out) throws IOException {
+		StringBuilder header = new StringBuilder("@HD\tVN:1.0\n");
+		for (Fasta ref : refs) {
+			header.append("@SQ\tSN:").append(ref.name).append("\tLN:").append(ref.length).append("\n");
+		}
+		header.append("@PG\tID:").append(salmon ? "salmon" : "kallisto").append("\tPN:stand-in\n");
+		out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+
+		BufferedReader in1 = open(reads1);
+		BufferedReader in2 = reads2 == null ? null : open(reads2);
+		StringBuilder line = new StringBuilder(1024);
+		try {
+			String[] rec1 = new String[4];
+			String[] rec2 = new String[4];
+			while (readRecord(in1, rec1)) {
+				if (in2 != null && !readRecord(in2, rec2)) {
+					throw new IOException(reads2 + " has fewer reads than " + reads1 + ".");
+				}
+				// ref_start_end_errors1_errors2_id/1
+				String name = rec1[0].substring(1).trim();
+				int slash = name.lastIndexOf('/');
+				if (slash > 0) {
+					name = name.substring(0, slash);
+				}
+				int[] fields = new int[5];
+				int end = name.length();
+				for (int f = 4; f >= 0 && end > 0; f--) {
+					end = name.lastIndexOf('_', end - 1);
+					fields[f] = end;
+				}
+				Integer id = null;
+				int start = 0;
+				int stop = 0;
+				if (end > 0) {
+					try {
+						start = Integer.parseInt(name.substring(fields[0] + 1, fields[1]));
+						stop = Integer.parseInt(name.substring(fields[1] + 1, fields[2]));
+						id = ids.get(name.substring(0, fields[0]));
+					} catch (NumberFormatException e) {
+						// not a simulated read, left unmapped
+					}
+				}
+				String refName = id == null ? "*" : refs.get(id).name;
+				if (id != null) {
+					counts[id]++;
+					fragmentBases += stop - start + 1;
+					numFragments++;
+				}
+				if (in2 == null) {
+					writeRecord(out, line, name, id == null ? 4 : 0, refName, id == null ? 0 : start, rec1);
+				} else {
+					int len2 = rec2[1].length();
+					writeRecord(out, line, name, id == null ? 77 : 99, refName, id == null ? 0 : start, rec1);
+					writeRecord(out, line, name, id == null ? 141 : 147, refName,
+							id == null ? 0 : Math.max(stop - len2 + 1, 1), rec2);
+				}
+			}
+		} finally {
+			in1.close();
+			if (in2 != null) {
+				in2.close();
+			}
+			out.flush();
+		}
+	}
+
+	private static boolean readRecord(BufferedReader in, String[] rec) throws IOException {
+		for (int i = 0; i < 4; i++) {
+			rec[i] = in.readLine();
+			if (rec[i] == null) {
+				if (i > 0) {
+					throw new IOException("Truncated FASTQ record.");
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeRecord(OutputStream out, StringBuilder line, String name, int flag, String refName,
+			int pos, String[] rec) throws IOException {
+		line.setLength(0);
+		line.append(name).append('\t').append(flag).append('\t').append(refName).append('\t').append(pos)
+				.append("\t255\t");
+		if ((flag & 4) != 0) {
+			line.append('*');
+		} else {
+			line.append(rec[1].length()).append('M');
+		}
+		line.append("\t*\t0\t0\t").append(rec[1]).append('\t').append(rec[3]).append('\n');
+		out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	// abundance.tsv of kallisto or quant.sf of salmon, with the effective length from the mean fragment length
+	private void writeCounts(File quantDir) throws IOException {
+		quantDir.mkdirs();
+		double meanFragment = numFragments > 0 ? (double) fragmentBases / numFragments : 200;
+		double[] effLengths = new double[refs.size()];
+		double rateSum = 0;
+		for (int i = 0; i < refs.size(); i++) {
+			effLengths[i] = Math.max(refs.get(i).length - meanFragment + 1, 1);
+			rateSum += counts[i] / effLengths[i];
+		}
+		File quantFile = new File(quantDir, salmon ? "quant.sf" : "abundance.tsv");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(quantFile));
+		try {
+			bw.write(salmon ? "Name\tLength\tEffectiveLength\tTPM\tNumReads\n"
+					: "target_id\tlength\teff_length\test_counts\ttpm\n");
+			for (int i = 0; i < refs.size(); i++) {
+				double tpm = rateSum > 0 ? counts[i] / effLengths[i] / rateSum * 1e6 : 0;
+				double count = counts[i];
+				bw.write(refs.get(i).name + "\t" + refs.get(i).length + "\t" + effLengths[i] + "\t"
+						+ (salmon ? tpm + "\t" + count : count + "\t" + tpm) + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	private static String getOption(List<String> args, String name) {
+		int i = args.indexOf(name);
+		return i >= 0 && i + 1 < args.size() ? args.get(i + 1) : null;
+	}
+
+	private static int run(String[] argv) throws IOException {
+		List<String> args = Arrays.asList(argv);
+		if (args.size() < 2) {
+			System.err.println("Usage: StandInMapper kallisto|salmon quant|index|version ...");
+			return 1;
+		}
+		boolean salmon = args.get(0).equals("salmon");
+		String command = args.get(1);
+		if (command.equals("version") || command.equals("--version")) {
+			System.out.println(salmon ? "salmon 0.0.0-stand-in" : "kallisto, version 0.43.1");
+			return 0;
+		}
+		if (command.equals("index")) {
+			File index = new File(getOption(args, "-i"));
+			String fasta = salmon ? getOption(args, "-t") : args.get(args.size() - 1);
+			if (salmon) {
+				index.mkdirs();
+				index = new File(index, SALMON_INDEX_FASTA);
+			}
+			Files.copy(new File(fasta).toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return 0;
+		}
+		if (!command.equals("quant")) {
+			System.err.println("Unknown command " + command + ".");
+			return 1;
+		}
+		StandInMapper mapper = new StandInMapper(salmon, new File(getOption(args, "-i")));
+		String reads1;
+		String reads2 = null;
+		if (salmon) {
+			reads1 = getOption(args, "-r");
+			if (reads1 == null) {
+				reads1 = getOption(args, "-1");
+				reads2 = getOption(args, "-2");
+			}
+		} else {
+			// the read files follow --pseudobam
+			List<String> files = args.subList(args.indexOf("--pseudobam") + 1, args.size());
+			reads1 = files.get(0);
+			if (files.size() > 1 && !args.contains("--single")) {
+				reads2 = files.get(1);
+			}
+		}
+		OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+		mapper.map(reads1, reads2, out);
+		mapper.writeCounts(new File(getOption(args, "-o")));
+		System.err.println("[stand-in] mapped " + mapper.numFragments + " fragments to " + mapper.refs.size()
+				+ " references.");
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		try {
+			System.exit(run(args));
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
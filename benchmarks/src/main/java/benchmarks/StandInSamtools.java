@@ -0,0 +1,158 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Stand-in for samtools with the command lines FastViromeExplorer uses on
+ * the pseudobam output of StandInMapper. It reads and writes sam only:
+ * "view" passes the records through without the unmapped ones, and "sort"
+ * orders them by reference (in the order of the @SQ lines) and position. The
+ * sorted output must be asked for as sam (-O sam, as with -sam true); bam
+ * output, as the shards of -shards are sorted into, is refused.
+ *
+ * java -cp benchmarks.jar benchmarks.StandInSamtools sort -@ 1 -m 768M -O sam -o $sortedFile -
+ */
+public class StandInSamtools {
+	private final List<String> header = new ArrayList<String>();
+	private final Map<String, Integer> refOrder = new HashMap<String, Integer>();
+	private final List<Record> records = new ArrayList<Record>();
+
+	private static class Record {
+		final int ref;
+		final int pos;
+		final String line;
+
+		Record(int ref, int pos, String line) {
+			this.ref = ref;
+			this.pos = pos;
+			this.line = line;
+		}
+	}
+
+	// copy the sam of in to out, without the unmapped records
+	private static void dropUnmapped(InputStream in, OutputStream out) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), 1 << 16);
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith("@") || (Integer.parseInt(line.split("\t", 3)[1]) & 4) == 0) {
+					bw.write(line);
+					bw.write('\n');
+				}
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	// add the header and the records of in
+	private void read(InputStream in) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith("@")) {
+				header.add(line);
+				if (line.startsWith("@SQ\t")) {
+					int start = line.indexOf("\tSN:") + 4;
+					int end = line.indexOf('\t', start);
+					refOrder.put(line.substring(start, end < 0 ? line.length() : end), refOrder.size());
+				}
+				continue;
+			}
+			String[] fields = line.split("\t", 5);
+			if (fields.length < 5) {
+				throw new IOException("Not a sam record: " + line);
+			}
+			// unmapped records without a reference go last
+			Integer ref = refOrder.get(fields[2]);
+			records.add(new Record(ref == null ? Integer.MAX_VALUE : ref, Integer.parseInt(fields[3]), line));
+		}
+	}
+
+	private void sort() {
+		Collections.sort(records, new Comparator<Record>() {
+			public int compare(Record a, Record b) {
+				int c = Integer.compare(a.ref, b.ref);
+				return c != 0 ? c : Integer.compare(a.pos, b.pos);
+			}
+		});
+	}
+
+	private void write(OutputStream out) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), 1 << 16);
+		try {
+			for (String line : header) {
+				bw.write(line);
+				bw.write('\n');
+			}
+			for (Record record : records) {
+				bw.write(record.line);
+				bw.write('\n');
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	private static String getOption(List<String> args, String name) {
+		int i = args.indexOf(name);
+		return i >= 0 && i + 1 < args.size() ? args.get(i + 1) : null;
+	}
+
+	private static int run(String[] argv) throws IOException {
+		List<String> args = Arrays.asList(argv);
+		if (args.isEmpty()) {
+			System.err.println("Usage: StandInSamtools --version|view|sort ...");
+			return 1;
+		}
+		String command = args.get(0);
+		if (command.equals("--version")) {
+			System.out.println("samtools 1.9 (stand-in)");
+			return 0;
+		}
+		if (command.equals("view")) {
+			// only used as "view -u -h -F 0x04 -"
+			dropUnmapped(System.in, System.out);
+			return 0;
+		}
+		if (!command.equals("sort")) {
+			System.err.println("Unknown command " + command + ".");
+			return 1;
+		}
+		String format = getOption(args, "-O");
+		if (format == null || !format.equalsIgnoreCase("sam")) {
+			System.err.println("The samtools stand-in writes sam only, run FastViromeExplorer with -sam true.");
+			return 1;
+		}
+		StandInSamtools samtools = new StandInSamtools();
+		samtools.read(System.in);
+		samtools.sort();
+		samtools.write(new FileOutputStream(getOption(args, "-o")));
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		try {
+			System.exit(run(args));
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
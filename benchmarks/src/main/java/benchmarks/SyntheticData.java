@@ -0,0 +1,259 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Generators of synthetic pipeline inputs: virus lists, sorted bam files and
+ * kallisto/salmon abundance files, parameterised by the number of references,
+ * genome length and read count. References are named REF0000001,
+ * REF0000002, ... in every file, so the generated files fit together.
+ */
+public final class SyntheticData {
+	private static final int BGZF_BLOCK_SIZE = 0xff00;
+
+	private SyntheticData() {
+	}
+
+	public static String refName(int i) {
+		return String.format("REF%07d", i + 1);
+	}
+
+	public static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	public static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	// virus list in the format of ncbi-viruses-list.txt
+	public static void writeVirusList(File file, int numRefs, int genomeLen, long seed) throws IOException {
+		Random random = new Random(seed);
+		String[] families = { "Myoviridae", "Siphoviridae", "Podoviridae", "Microviridae", "Inoviridae" };
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		for (int i = 0; i < numRefs; i++) {
+			String family = families[random.nextInt(families.length)];
+			String genus = family.substring(0, 4) + "virus" + random.nextInt(50);
+			bw.write(refName(i) + "\tSynthetic phage " + i + ", complete genome\t"
+					+ "Viruses;Unclassified;Unclassified;Caudovirales;" + family + ";" + genus + ";Synthetic phage " + i
+					+ "\t" + genomeLen + "\n");
+		}
+		bw.close();
+	}
+
+	/*
+	 * Random read start positions, readsPerRef per reference, sorted by
+	 * position; starts[ref][i] is 1-based.
+	 */
+	public static int[][] readStarts(int numRefs, int readsPerRef, int genomeLen, int readLen, long seed) {
+		Random random = new Random(seed);
+		int[][] starts = new int[numRefs][readsPerRef];
+		int maxStart = Math.max(genomeLen - readLen + 1, 1);
+		for (int ref = 0; ref < numRefs; ref++) {
+			for (int i = 0; i < readsPerRef; i++) {
+				starts[ref][i] = 1 + random.nextInt(maxStart);
+			}
+			Arrays.sort(starts[ref]);
+		}
+		return starts;
+	}
+
+	// coordinate-sorted bam with all reads mapped, as written by samtools sort
+	public static void writeSortedBam(File file, int numRefs, int readsPerRef, int genomeLen, int readLen, long seed)
+			throws IOException {
+		int[][] starts = readStarts(numRefs, readsPerRef, genomeLen, readLen, seed);
+		BgzfWriter out = new BgzfWriter(new FileOutputStream(file));
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		StringBuilder text = new StringBuilder("@HD\tVN:1.0\tSO:coordinate\n");
+		for (int ref = 0; ref < numRefs; ref++) {
+			text.append("@SQ\tSN:").append(refName(ref)).append("\tLN:").append(genomeLen).append("\n");
+		}
+		byte[] textBytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		header.write(new byte[] { 'B', 'A', 'M', 1 });
+		writeInt(header, textBytes.length);
+		header.write(textBytes);
+		writeInt(header, numRefs);
+		for (int ref = 0; ref < numRefs; ref++) {
+			byte[] name = refName(ref).getBytes(StandardCharsets.UTF_8);
+			writeInt(header, name.length + 1);
+			header.write(name);
+			header.write(0);
+			writeInt(header, genomeLen);
+		}
+		out.write(header.toByteArray());
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		byte[] seq = new byte[(readLen + 1) / 2];
+		byte[] qual = new byte[readLen];
+		Arrays.fill(seq, (byte) 0x12);
+		Arrays.fill(qual, (byte) 30);
+		int readId = 0;
+		for (int ref = 0; ref < numRefs; ref++) {
+			for (int i = 0; i < readsPerRef; i++) {
+				byte[] name = ("r" + (readId++)).getBytes(StandardCharsets.UTF_8);
+				record.reset();
+				writeInt(record, ref);
+				writeInt(record, starts[ref][i] - 1);
+				record.write(name.length + 1);
+				record.write(255);
+				writeShort(record, 4680);
+				writeShort(record, 1);
+				writeShort(record, 0);
+				writeInt(record, readLen);
+				writeInt(record, -1);
+				writeInt(record, -1);
+				writeInt(record, 0);
+				record.write(name);
+				record.write(0);
+				writeInt(record, readLen << 4);
+				record.write(seq);
+				record.write(qual);
+				ByteArrayOutputStream sized = new ByteArrayOutputStream(record.size() + 4);
+				writeInt(sized, record.size());
+				record.writeTo(sized);
+				out.write(sized.toByteArray());
+			}
+		}
+		out.close();
+	}
+
+	// abundance.tsv of kallisto (target_id, length, eff_length, est_counts, tpm)
+	public static void writeKallistoAbundance(File file, int numRefs, int genomeLen, long seed) throws IOException {
+		Random random = new Random(seed);
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		bw.write("target_id\tlength\teff_length\test_counts\ttpm\n");
+		for (int i = 0; i < numRefs; i++) {
+			double count = estCount(random);
+			bw.write(refName(i) + "\t" + genomeLen + "\t" + (genomeLen - 100) + "\t" + count + "\t"
+					+ (count / genomeLen * 1e6) + "\n");
+		}
+		bw.close();
+	}
+
+	// quant.sf of salmon (Name, Length, EffectiveLength, TPM, NumReads)
+	public static void writeSalmonQuant(File file, int numRefs, int genomeLen, long seed) throws IOException {
+		Random random = new Random(seed);
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		bw.write("Name\tLength\tEffectiveLength\tTPM\tNumReads\n");
+		for (int i = 0; i < numRefs; i++) {
+			double count = estCount(random);
+			bw.write(refName(i) + "\t" + genomeLen + "\t" + (genomeLen - 100) + "\t" + (count / genomeLen * 1e6)
+					+ "\t" + count + "\n");
+		}
+		bw.close();
+	}
+
+	// most references get no reads, a few get many
+	private static double estCount(Random random) {
+		if (random.nextInt(4) != 0) {
+			return 0.0;
+		}
+		return Math.floor(Math.exp(random.nextDouble() * 10));
+	}
+
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+		out.write((v >>> 16) & 0xff);
+		out.write((v >>> 24) & 0xff);
+	}
+
+	private static void writeShort(OutputStream out, int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+	}
+
+	/*
+	 * Minimal BGZF writer: data is cut into blocks of at most 0xff00 bytes,
+	 * each written as a gzip member with the BC extra field, followed by the
+	 * empty end-of-file block.
+	 */
+	static class BgzfWriter extends OutputStream {
+		private static final byte[] EOF_BLOCK = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0,
+				0, 0, 0, 0, 0, 0, 0, 0 };
+
+		private final OutputStream out;
+		private final byte[] block = new byte[BGZF_BLOCK_SIZE];
+		private final byte[] compressed = new byte[BGZF_BLOCK_SIZE + 1024];
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final CRC32 crc = new CRC32();
+		private int len = 0;
+
+		BgzfWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			block[len++] = (byte) b;
+			if (len == block.length) {
+				flushBlock();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int n) throws IOException {
+			while (n > 0) {
+				int k = Math.min(n, block.length - len);
+				System.arraycopy(b, off, block, len, k);
+				len += k;
+				off += k;
+				n -= k;
+				if (len == block.length) {
+					flushBlock();
+				}
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (len == 0) {
+				return;
+			}
+			deflater.reset();
+			deflater.setInput(block, 0, len);
+			deflater.finish();
+			int clen = 0;
+			while (!deflater.finished()) {
+				clen += deflater.deflate(compressed, clen, compressed.length - clen);
+			}
+			crc.reset();
+			crc.update(block, 0, len);
+			ByteArrayOutputStream header = new ByteArrayOutputStream(18);
+			header.write(new byte[] { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0 });
+			writeShort(header, clen + 25);
+			out.write(header.toByteArray());
+			out.write(compressed, 0, clen);
+			writeInt(out, (int) crc.getValue());
+			writeInt(out, len);
+			len = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushBlock();
+			out.write(EOF_BLOCK);
+			out.close();
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.util.Map;
+
+/*
+ * The FastViromeExplorer classes live in the default package, which a named
+ * package cannot import, while JMH requires benchmarks to be in a named
+ * package. BenchmarkTarget in the default package implements this interface
+ * and is loaded once by name, so the benchmarks call the pipeline through a
+ * plain interface call. Pipeline objects are passed around as Object.
+ */
+public interface Target {
+	Object loadCatalog(String virusListFile) throws Exception;
+
+	byte[] compileCatalog(String virusListFile) throws Exception;
+
+	int lookupLengths(Object catalog, String[] accessions);
+
+	Object newExplorer(String outDir, String virusListFile, Object catalog, double avgReadLen, int numThreads,
+			boolean useSalmon);
+
+	void getVirusLength(Object explorer) throws Exception;
+
+	void getRatio(Object explorer) throws Exception;
+
+	int getSortedAbundanceRatio(Object explorer) throws Exception;
+
+	int getSortedAbundanceRatioFromSalmon(Object explorer) throws Exception;
+
+	Map<String, Double> sortByComparator(Map<String, Double> map, boolean ascending);
+
+	long coveredBps(int[] starts, int[] ends, int numReads, int genomeLen);
+
+	int fillReadSet(int[] starts, int[] ends, int numReads);
+
+	int compareReads(int[] starts, int[] ends, int numReads);
+
+	static Target load() throws Exception {
+		return (Target) Class.forName("BenchmarkTarget").getDeclaredConstructor().newInstance();
+	}
+}
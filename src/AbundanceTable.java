@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/*
+ * Ranking of the viruses that passed all filtering criteria, by estimated
+ * abundance, highest first; equal abundances are ordered by accession.
+ * Entries are kept as catalog ids and counts in a binary heap on primitive
+ * arrays whose root is the lowest ranked entry, so with a limit only the top
+ * K entries are ever kept.
+ */
+public class AbundanceTable {
+	private final VirusCatalog catalog;
+	// maximum number of entries kept, 0 means no limit
+	private final int topK;
+	private int[] ids = new int[64];
+	private double[] counts = new double[64];
+	private int size = 0;
+	private boolean sorted = false;
+
+	public AbundanceTable(VirusCatalog catalog, int topK) {
+		this.catalog = catalog;
+		this.topK = Math.max(topK, 0);
+	}
+
+	public void add(int id, double count) {
+		if (topK > 0 && size == topK) {
+			// replace the lowest ranked entry if the new one ranks above it
+			if (!ranksBefore(id, count, ids[0], counts[0])) {
+				return;
+			}
+			ids[0] = id;
+			counts[0] = count;
+			siftDown(0, size);
+			return;
+		}
+		if (size == ids.length) {
+			int newLen = topK > 0 ? Math.min(2 * size, topK) : 2 * size;
+			ids = Arrays.copyOf(ids, newLen);
+			counts = Arrays.copyOf(counts, newLen);
+		}
+		ids[size] = id;
+		counts[size] = count;
+		siftUp(size);
+		size++;
+	}
+
+	// order the entries by rank; after this getId(0) is the most abundant virus
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		// heap sort: moving the lowest ranked entry to the end leaves the entries ordered by rank
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		sorted = true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	public double getCount(int i) {
+		return counts[i];
+	}
+
+	private boolean ranksBefore(int id1, double count1, int id2, double count2) {
+		if (count1 != count2) {
+			return count1 > count2;
+		}
+		return catalog.getAccession(id1).compareTo(catalog.getAccession(id2)) < 0;
+	}
+
+	// whether entry i ranks above entry j; higher ranked entries sit deeper in the heap
+	private boolean above(int i, int j) {
+		return ranksBefore(ids[i], counts[i], ids[j], counts[j]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!above(parent, i)) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= end) {
+				break;
+			}
+			if (child + 1 < end && above(child, child + 1)) {
+				child++;
+			}
+			if (!above(i, child)) {
+				break;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double count = counts[i];
+		counts[i] = counts[j];
+		counts[j] = count;
+	}
+}
@@ -0,0 +1,163 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Sequential reader of bam records. Only the fixed-size fields and the cigar
+ * of each record are decoded, from a record buffer that is reused for the
+ * whole file, so reading a record does not create any objects.
+ */
+public class BamReader {
+	private final InputStream in;
+	private String[] refNames;
+	private int[] refLengths;
+	private byte[] record = new byte[1024];
+	private int recordSize = 0;
+	private final byte[] intBuf = new byte[4];
+
+	public BamReader(String fileName, int numThreads) throws IOException {
+		in = new BgzfReader(fileName, numThreads);
+		try {
+			readHeader();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		byte[] magic = new byte[4];
+		readFully(magic, 4);
+		if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+			throw new IOException("Not a bam file.");
+		}
+		int textLen = readInt();
+		skip(textLen);
+		int numRefs = readInt();
+		refNames = new String[numRefs];
+		refLengths = new int[numRefs];
+		for (int i = 0; i < numRefs; i++) {
+			int nameLen = readInt();
+			byte[] name = new byte[nameLen];
+			readFully(name, nameLen);
+			// names are NUL-terminated
+			refNames[i] = new String(name, 0, nameLen - 1, StandardCharsets.UTF_8);
+			refLengths[i] = readInt();
+		}
+	}
+
+	// read the next record; false at the end of the file
+	public boolean next() throws IOException {
+		int n = in.read(intBuf, 0, 4);
+		if (n < 0) {
+			return false;
+		}
+		if (n < 4) {
+			readFully(intBuf, n, 4 - n);
+		}
+		recordSize = getInt(intBuf, 0);
+		if (recordSize > record.length) {
+			record = new byte[Math.max(recordSize, 2 * record.length)];
+		}
+		readFully(record, recordSize);
+		return true;
+	}
+
+	public int getNumRefs() {
+		return refNames.length;
+	}
+
+	public String getRefName(int refId) {
+		return refNames[refId];
+	}
+
+	public int getRefLength(int refId) {
+		return refLengths[refId];
+	}
+
+	public int getRefId() {
+		return getInt(record, 0);
+	}
+
+	// 1-based leftmost position, as in sam
+	public int getPos() {
+		return getInt(record, 4) + 1;
+	}
+
+	public int getFlag() {
+		return getShort(record, 14);
+	}
+
+	public boolean isUnmapped() {
+		return (getFlag() & 0x04) != 0 || getRefId() < 0;
+	}
+
+	public int getSeqLength() {
+		return getInt(record, 16);
+	}
+
+	// number of reference bases covered by the alignment according to the cigar
+	public int getReferenceLength() {
+		int nameLen = record[8] & 0xff;
+		int numCigarOps = getShort(record, 12);
+		int off = 32 + nameLen;
+		int len = 0;
+		for (int i = 0; i < numCigarOps; i++) {
+			int op = getInt(record, off + 4 * i);
+			switch (op & 0xf) {
+			case 0: // M
+			case 2: // D
+			case 3: // N
+			case 7: // =
+			case 8: // X
+				len += op >>> 4;
+				break;
+			default:
+				break;
+			}
+		}
+		return len;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readInt() throws IOException {
+		readFully(intBuf, 4);
+		return getInt(intBuf, 0);
+	}
+
+	private void readFully(byte[] b, int len) throws IOException {
+		readFully(b, 0, len);
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0) {
+				throw new EOFException("Truncated bam file.");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void skip(int len) throws IOException {
+		byte[] b = new byte[Math.min(len, 1 << 16)];
+		while (len > 0) {
+			int n = Math.min(len, b.length);
+			readFully(b, n);
+			len -= n;
+		}
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	private static int getShort(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+	}
+}
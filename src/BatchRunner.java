@@ -0,0 +1,265 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Runs FastViromeExplorer for all samples of a sample sheet in one JVM. The
+ * virus catalog is loaded once and shared by all samples. Samples run on
+ * '-jobs' threads; at most '-mappers' mapper processes run at the same time
+ * and the coverage stage of a sample reserves '-jobMem' MB of a '-maxMem' MB
+ * budget. Every sample gets its own output directory, and the status and
+ * timing of all samples is written to FastViromeExplorer-batch-summary.tsv.
+ */
+public class BatchRunner {
+	private String sampleSheet = "";
+	private String outDir = "";
+	private String virusListFile = "ncbi-viruses-list.txt";
+	private int numJobs = 2;
+	private int numMappers = 1;
+	private int jobMem = 1024;
+	private int maxMem = (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+	// options passed on to every sample
+	private List<String> sampleArgs = new ArrayList<String>();
+
+	private Semaphore mapperSlots;
+	private Semaphore memory;
+	private VirusCatalog catalog;
+
+	private static class Sample {
+		String name;
+		String read1;
+		String read2;
+		String status = "OK";
+		String message = "";
+		int numViruses = 0;
+		double mappingSeconds = 0;
+		double coverageSeconds = 0;
+		double totalSeconds = 0;
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-")) {
+				if ((i + 1) >= args.length) {
+					System.out.println("Missing argument after " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+				if (args[i].equals("-batch")) {
+					sampleSheet = args[i + 1];
+				} else if (args[i].equals("-o")) {
+					outDir = args[i + 1];
+				} else if (args[i].equals("-jobs")) {
+					numJobs = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-mappers")) {
+					numMappers = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-jobMem")) {
+					jobMem = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-maxMem")) {
+					maxMem = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-1") || args[i].equals("-2")) {
+					System.out.println("The read files of a batch are given in the sample sheet.");
+					printUsage();
+					System.exit(1);
+				} else {
+					if (args[i].equals("-l")) {
+						virusListFile = args[i + 1];
+					}
+					sampleArgs.add(args[i]);
+					sampleArgs.add(args[i + 1]);
+				}
+				i++;
+			}
+		}
+		if (sampleSheet.isEmpty() || !new File(sampleSheet).isFile()) {
+			System.out.println("Could not find the sample sheet: " + sampleSheet);
+			printUsage();
+			System.exit(1);
+		}
+		if (outDir.isEmpty()) {
+			outDir = Paths.get(".").toAbsolutePath().normalize().toString();
+		}
+		numJobs = Math.max(numJobs, 1);
+		numMappers = Math.max(numMappers, 1);
+		maxMem = Math.max(maxMem, 1);
+		jobMem = Math.min(Math.max(jobMem, 1), maxMem);
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:");
+		System.out.println(
+				"java -cp /path-to-FastViromeExplorer/bin FastViromeExplorer -batch $sampleSheet -i $indexFile -o $outputDirectory");
+		System.out.println("-batch: sample sheet, one sample per line: name, read file 1 and optionally read file 2, "
+				+ "separated by tabs.");
+		System.out.println("-o: output directory, each sample is written to a sub-directory named after the sample.");
+		System.out.println("-jobs: number of samples processed at the same time, default: 2.");
+		System.out.println("-mappers: number of kallisto/salmon processes running at the same time, default: 1.");
+		System.out.println("-jobMem: memory in MB reserved for the coverage stage of a sample, default: 1024.");
+		System.out.println("-maxMem: memory in MB available to all samples, default: the maximum heap size.");
+		System.out.println("All other parameters of FastViromeExplorer are applied to every sample.");
+	}
+
+	private List<Sample> readSampleSheet() throws Exception {
+		List<Sample> samples = new ArrayList<Sample>();
+		Set<String> names = new HashSet<String>();
+		BufferedReader br = new BufferedReader(new FileReader(sampleSheet));
+		String str = "";
+		while ((str = br.readLine()) != null) {
+			if (str.trim().isEmpty() || str.startsWith("#")) {
+				continue;
+			}
+			String[] results = str.split("\t");
+			if (results.length < 2) {
+				br.close();
+				throw new Exception("Invalid line in sample sheet: " + str);
+			}
+			Sample sample = new Sample();
+			sample.name = results[0].trim();
+			sample.read1 = results[1].trim();
+			sample.read2 = results.length > 2 ? results[2].trim() : "";
+			// the name is the output directory of the sample, so two samples must not share it
+			if (sample.name.isEmpty() || !names.add(sample.name)) {
+				br.close();
+				throw new Exception((sample.name.isEmpty() ? "Empty" : "Duplicate") + " sample name in sample sheet: "
+						+ str);
+			}
+			samples.add(sample);
+		}
+		br.close();
+		return samples;
+	}
+
+	private FastViromeExplorer createExplorer(Sample sample) {
+		List<String> args = new ArrayList<String>();
+		// the reads kept by the coverage stage stay within the memory reserved for it, unless set otherwise
+		args.add("-coverageMem");
+		args.add(Integer.toString(jobMem));
+		args.addAll(sampleArgs);
+		args.add("-1");
+		args.add(sample.read1);
+		if (!sample.read2.isEmpty()) {
+			args.add("-2");
+			args.add(sample.read2);
+		}
+		args.add("-o");
+		args.add(outDir + "/" + sample.name);
+		return new FastViromeExplorer(RunConfig.fromArgs(args.toArray(new String[args.size()])), catalog);
+	}
+
+	private void runSample(Sample sample, FastViromeExplorer explorer) {
+		long start = System.nanoTime();
+		try {
+			new File(explorer.getOutDir()).mkdirs();
+			explorer.checkInputs();
+
+			// in streaming mode the coverage is calculated while the mapper runs
+			int mappingMem = explorer.isStreamMappings() ? jobMem : 0;
+			mapperSlots.acquire();
+			memory.acquire(mappingMem);
+			long stageStart = System.nanoTime();
+			try {
+				explorer.mapReads();
+			} finally {
+				memory.release(mappingMem);
+				mapperSlots.release();
+			}
+			sample.mappingSeconds = (System.nanoTime() - stageStart) / 1e9;
+
+			memory.acquire(jobMem);
+			stageStart = System.nanoTime();
+			try {
+				explorer.calculateRatio();
+				sample.numViruses = explorer.writeAbundance();
+			} finally {
+				memory.release(jobMem);
+			}
+			sample.coverageSeconds = (System.nanoTime() - stageStart) / 1e9;
+		} catch (Exception e) {
+			sample.status = "FAILED";
+			sample.message = String.valueOf(e.getMessage());
+		}
+		explorer.writeMetrics();
+		sample.totalSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Finished sample " + sample.name + ": " + sample.status + ".");
+	}
+
+	private void writeSummary(List<Sample> samples) throws Exception {
+		DecimalFormat format = new DecimalFormat("0.##");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-batch-summary.tsv"));
+		bw.write("#Sample\tStatus\tNumViruses\tMappingSeconds\tCoverageSeconds\tTotalSeconds\tMessage\n");
+		for (Sample sample : samples) {
+			bw.write(sample.name + "\t" + sample.status + "\t" + sample.numViruses + "\t"
+					+ format.format(sample.mappingSeconds) + "\t" + format.format(sample.coverageSeconds) + "\t"
+					+ format.format(sample.totalSeconds) + "\t" + sample.message + "\n");
+		}
+		bw.close();
+	}
+
+	private int run() throws Exception {
+		List<Sample> samples = readSampleSheet();
+		catalog = VirusCatalog.load(virusListFile);
+		System.out.println("Loaded " + catalog.size() + " viruses from " + virusListFile + ".");
+		mapperSlots = new Semaphore(numMappers, true);
+		memory = new Semaphore(maxMem, true);
+
+		// parse the arguments of all samples before starting any of them
+		final List<FastViromeExplorer> explorers = new ArrayList<FastViromeExplorer>();
+		for (Sample sample : samples) {
+			explorers.add(createExplorer(sample));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numJobs);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < samples.size(); i++) {
+			final Sample sample = samples.get(i);
+			final FastViromeExplorer explorer = explorers.get(i);
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() {
+					runSample(sample, explorer);
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+
+		writeSummary(samples);
+		int numFailed = 0;
+		for (Sample sample : samples) {
+			if (!sample.status.equals("OK")) {
+				numFailed++;
+			}
+		}
+		System.out.println("Finished " + samples.size() + " samples, " + numFailed + " failed. "
+				+ "See FastViromeExplorer-batch-summary.tsv for details.");
+		return numFailed;
+	}
+
+	public static void main(String[] args) {
+		BatchRunner runner = new BatchRunner();
+		runner.parseArguments(args);
+		try {
+			if (runner.run() > 0) {
+				System.exit(1);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
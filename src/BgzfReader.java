@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Input stream over a BGZF file (the block-gzip container used by bam). The
+ * compressed blocks are read in order on the calling thread and inflated on
+ * a pool of threads, several blocks ahead of the reader; the inflated blocks
+ * are returned in file order.
+ */
+public class BgzfReader extends InputStream {
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private final DataInputStream in;
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private boolean endOfFile = false;
+	private byte[] current = new byte[0];
+	private int pos = 0;
+
+	public BgzfReader(String fileName, int numThreads) throws IOException {
+		this(new FileInputStream(fileName), numThreads);
+	}
+
+	public BgzfReader(InputStream in, int numThreads) {
+		this.in = new DataInputStream(new BufferedInputStream(in, MAX_BLOCK_SIZE));
+		if (numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads);
+		} else {
+			executor = null;
+		}
+		maxPending = 4 * Math.max(numThreads, 1);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	// make sure the current block has unread bytes; false at the end of the file
+	private boolean fill() throws IOException {
+		while (pos == current.length) {
+			while (!endOfFile && pending.size() < maxPending) {
+				final byte[] block = readBlock();
+				if (block == null) {
+					endOfFile = true;
+				} else if (executor == null) {
+					current = inflate(block);
+					pos = 0;
+					break;
+				} else {
+					pending.add(executor.submit(new Callable<byte[]>() {
+						public byte[] call() throws Exception {
+							return inflate(block);
+						}
+					}));
+				}
+			}
+			if (executor == null) {
+				if (endOfFile && pos == current.length) {
+					return false;
+				}
+				continue;
+			}
+			if (pending.isEmpty()) {
+				return false;
+			}
+			try {
+				current = pending.poll().get();
+			} catch (Exception e) {
+				throw new IOException("Could not inflate bgzf block.", e);
+			}
+			pos = 0;
+		}
+		return true;
+	}
+
+	// the whole compressed block, or null at the end of the file
+	private byte[] readBlock() throws IOException {
+		int id1 = in.read();
+		if (id1 < 0) {
+			return null;
+		}
+		byte[] header = new byte[12];
+		header[0] = (byte) id1;
+		try {
+			in.readFully(header, 1, 11);
+		} catch (EOFException e) {
+			throw new IOException("Truncated bgzf header.");
+		}
+		if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0) {
+			throw new IOException("Not a bgzf file.");
+		}
+		int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte[] extra = new byte[xlen];
+		try {
+			in.readFully(extra);
+		} catch (EOFException e) {
+			throw new IOException("Truncated bgzf header.");
+		}
+		int blockSize = -1;
+		for (int i = 0; i + 4 <= xlen; ) {
+			int slen = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2) {
+				blockSize = ((extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8)) + 1;
+			}
+			i += 4 + slen;
+		}
+		if (blockSize < 0) {
+			throw new IOException("Missing bgzf block size.");
+		}
+		byte[] block = new byte[blockSize - 12 - xlen];
+		try {
+			in.readFully(block);
+		} catch (EOFException e) {
+			throw new IOException("Truncated bgzf block.");
+		}
+		return block;
+	}
+
+	// block holds the deflated data followed by crc32 and the inflated size
+	private static byte[] inflate(byte[] block) throws IOException {
+		int n = block.length;
+		int crc = readInt(block, n - 8);
+		int size = readInt(block, n - 4);
+		byte[] out = new byte[size];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(block, 0, n - 8);
+		try {
+			int len = 0;
+			while (len < size && !inflater.finished()) {
+				int k = inflater.inflate(out, len, size - len);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				len += k;
+			}
+			if (len != size) {
+				throw new IOException("Corrupted bgzf block.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted bgzf block.", e);
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(out, 0, size);
+		if ((int) crc32.getValue() != crc) {
+			throw new IOException("Bgzf block failed the crc check.");
+		}
+		return out;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Checkpoints of the finished stages of a run, kept in
+ * FastViromeExplorer-checkpoints.tsv in the output directory. Each stage is
+ * stored with a fingerprint, a sha-256 of its inputs, tool versions and
+ * parameters, and an optional value such as the average read length. A
+ * rerun can skip a stage whose fingerprint is unchanged.
+ */
+public class Checkpoints {
+	private final File file;
+	private final Map<String, String[]> stages = new LinkedHashMap<String, String[]>();
+
+	public Checkpoints(String fileName) throws IOException {
+		file = new File(fileName);
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String str = "";
+		while ((str = br.readLine()) != null) {
+			if (str.startsWith("#")) {
+				continue;
+			}
+			String[] results = str.split("\t", -1);
+			if (results.length == 3) {
+				stages.put(results[0], new String[] { results[1], results[2] });
+			}
+		}
+		br.close();
+	}
+
+	// the value stored for a stage, or null if the stage has not finished with this fingerprint
+	public synchronized String get(String stage, String fingerprint) {
+		String[] entry = stages.get(stage);
+		if (entry == null || !entry[0].equals(fingerprint)) {
+			return null;
+		}
+		return entry[1];
+	}
+
+	public synchronized void put(String stage, String fingerprint, String value) throws IOException {
+		stages.put(stage, new String[] { fingerprint, value });
+		write();
+	}
+
+	// forget a stage, e.g. before it is run again
+	public synchronized void remove(String stage) throws IOException {
+		if (stages.remove(stage) != null) {
+			write();
+		}
+	}
+
+	// write to a temporary file first, so an interrupted run does not leave a broken file
+	private void write() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+		bw.write("#Stage\tFingerprint\tValue\n");
+		for (Map.Entry<String, String[]> entry : stages.entrySet()) {
+			bw.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+		}
+		bw.close();
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not write " + file + ".");
+			}
+		}
+	}
+
+	// sha-256 of the given parts
+	public static String fingerprint(String... parts) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (String part : parts) {
+			digest.update(part.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	// path, size and modification time of a file; input files are not hashed, as reads can be very large
+	public static String fileStamp(String fileName) {
+		if (fileName.isEmpty()) {
+			return "";
+		}
+		File f = new File(fileName);
+		return f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+	}
+}
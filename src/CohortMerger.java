@@ -0,0 +1,473 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Merges the binary results (ResultFile) of any number of samples into one
+ * virus x sample matrix. The entries of every result are ordered by catalog
+ * id, so the results are merged like sorted runs: only the current entry of
+ * every open file and one row of the matrix are kept in memory. Up to 256
+ * results are merged in one pass; beyond that, groups of 256 are merged
+ * into intermediate files first, so the number of open files stays
+ * bounded. The matrix is written as a tab-delimited table with one row per
+ * virus found in any sample, or as a sparse Matrix Market file whose rows are
+ * the catalog ids + 1, with the row and column names in .rows.tsv and
+ * .cols.tsv files next to it.
+ */
+public class CohortMerger {
+	private static final int MAX_OPEN_FILES = 256;
+
+	private String resultList = "";
+	private String outFile = "FastViromeExplorer-cohort.tsv";
+	private String virusListFile = "ncbi-viruses-list.txt";
+	private String format = "tsv";
+	private String value = "abundance";
+	// result and intermediate files open at once, well below the common limit of 1024 file descriptors
+	private int maxOpenFiles = MAX_OPEN_FILES;
+	// samples of the columns and number of entries of all of them, recorded as the results are opened
+	private final List<String> sampleNames = new ArrayList<String>();
+	private long numValues = 0;
+
+	CohortMerger() {
+	}
+
+	CohortMerger(int maxOpenFiles) {
+		this.maxOpenFiles = Math.max(maxOpenFiles, 2);
+	}
+
+	void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-")) {
+				if ((i + 1) >= args.length) {
+					System.out.println("Missing argument after " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+				if (args[i].equals("-merge")) {
+					resultList = args[i + 1];
+				} else if (args[i].equals("-o")) {
+					outFile = args[i + 1];
+				} else if (args[i].equals("-l")) {
+					virusListFile = args[i + 1];
+				} else if (args[i].equals("-format")) {
+					format = args[i + 1];
+				} else if (args[i].equals("-value")) {
+					value = args[i + 1];
+				} else {
+					System.out.println("Unknown parameter " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+				i++;
+			}
+		}
+		if (resultList.isEmpty() || !new File(resultList).isFile()) {
+			System.out.println("Could not find the list of results: " + resultList);
+			printUsage();
+			System.exit(1);
+		}
+		if (!format.equals("tsv") && !format.equals("mtx")) {
+			System.out.println("Unknown format " + format + ", use tsv or mtx.");
+			printUsage();
+			System.exit(1);
+		}
+		if (!value.equals("abundance") && !value.equals("support") && !value.equals("ratio")) {
+			System.out.println("Unknown value " + value + ", use abundance, support or ratio.");
+			printUsage();
+			System.exit(1);
+		}
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:");
+		System.out.println(
+				"java -cp /path-to-FastViromeExplorer/bin FastViromeExplorer -merge $resultList -l $virusListFile -o $outputFile");
+		System.out.println("-merge: list of results, one per line: an output directory of FastViromeExplorer or its "
+				+ ResultFile.FILE_NAME + " file.");
+		System.out.println("-l: the virus list or catalog the samples were profiled with, default: ncbi-viruses-list.txt.");
+		System.out.println("-o: output file, default: FastViromeExplorer-cohort.tsv.");
+		System.out.println("-format: tsv for a table with one row per virus and one column per sample, "
+				+ "mtx for a sparse Matrix Market file, default: tsv.");
+		System.out.println("-value: abundance (estimated abundance), support or ratio, default: abundance.");
+	}
+
+	private List<String> readResultList() throws Exception {
+		List<String> files = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(resultList));
+		try {
+			String str = "";
+			while ((str = br.readLine()) != null) {
+				str = str.trim();
+				if (str.isEmpty() || str.startsWith("#")) {
+					continue;
+				}
+				files.add(new File(str).isDirectory() ? str + "/" + ResultFile.FILE_NAME : str);
+			}
+		} finally {
+			br.close();
+		}
+		return files;
+	}
+
+	private double getValue(ResultFile.Reader reader) {
+		if (value.equals("support")) {
+			return reader.getSupport();
+		} else if (value.equals("ratio")) {
+			return reader.getRatio();
+		}
+		return reader.getEstimatedAbundance();
+	}
+
+	// entries of one or more samples (columns) in the order of catalog id, then column
+	private interface Entries {
+		boolean next() throws IOException;
+
+		int getId();
+
+		int getColumn();
+
+		double getValue();
+
+		void close() throws IOException;
+	}
+
+	// the entries of one result file, as one column
+	private class ResultEntries implements Entries {
+		private final ResultFile.Reader reader;
+		private final int column;
+
+		ResultEntries(ResultFile.Reader reader, int column) {
+			this.reader = reader;
+			this.column = column;
+		}
+
+		public boolean next() throws IOException {
+			return reader.next();
+		}
+
+		public int getId() {
+			return reader.getId();
+		}
+
+		public int getColumn() {
+			return column;
+		}
+
+		public double getValue() {
+			return CohortMerger.this.getValue(reader);
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	// the entries of an intermediate file written by writeRun(): id, column and value until the end of the file
+	private static class RunEntries implements Entries {
+		private final File file;
+		private final DataInputStream in;
+		private int id;
+		private int column;
+		private double value;
+
+		RunEntries(File file) throws IOException {
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+		}
+
+		public boolean next() throws IOException {
+			try {
+				id = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			column = in.readInt();
+			value = in.readDouble();
+			return true;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public int getColumn() {
+			return column;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		public void close() throws IOException {
+			in.close();
+			file.delete();
+		}
+	}
+
+	// the entries of several sources in one, ordered by id and column with a priority queue
+	private static class MergedEntries implements Entries {
+		private final List<Entries> sources;
+		private final PriorityQueue<Integer> queue;
+		private int current = -1;
+
+		MergedEntries(final List<Entries> sources) throws IOException {
+			this.sources = sources;
+			queue = new PriorityQueue<Integer>(Math.max(sources.size(), 1), new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int cmp = Integer.compare(sources.get(a).getId(), sources.get(b).getId());
+					return cmp != 0 ? cmp : Integer.compare(sources.get(a).getColumn(), sources.get(b).getColumn());
+				}
+			});
+			try {
+				for (int i = 0; i < sources.size(); i++) {
+					if (sources.get(i).next()) {
+						queue.add(i);
+					}
+				}
+			} catch (IOException e) {
+				closeAll(sources);
+				throw e;
+			}
+		}
+
+		public boolean next() throws IOException {
+			if (current >= 0 && sources.get(current).next()) {
+				queue.add(current);
+			}
+			if (queue.isEmpty()) {
+				current = -1;
+				return false;
+			}
+			current = queue.poll();
+			return true;
+		}
+
+		public int getId() {
+			return sources.get(current).getId();
+		}
+
+		public int getColumn() {
+			return sources.get(current).getColumn();
+		}
+
+		public double getValue() {
+			return sources.get(current).getValue();
+		}
+
+		public void close() throws IOException {
+			closeAll(sources);
+		}
+	}
+
+	private static void closeAll(List<Entries> sources) throws IOException {
+		IOException failure = null;
+		for (Entries source : sources) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// open result files as the columns from firstColumn on, and record their samples
+	private List<Entries> openResults(List<String> files, int firstColumn, VirusCatalog catalog) throws Exception {
+		List<Entries> sources = new ArrayList<Entries>();
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				ResultFile.Reader reader = new ResultFile.Reader(files.get(i), 8192);
+				sources.add(new ResultEntries(reader, firstColumn + i));
+				if (reader.getCatalogChecksum() != catalog.getChecksum() || reader.getCatalogSize() != catalog.size()) {
+					throw new Exception(files.get(i) + " was not profiled with the virus catalog " + virusListFile + ".");
+				}
+				sampleNames.add(reader.getSampleName());
+				numValues += reader.getNumEntries();
+			}
+		} catch (Exception e) {
+			closeAll(sources);
+			throw e;
+		}
+		return sources;
+	}
+
+	private static List<Entries> openRuns(List<File> runs) throws IOException {
+		List<Entries> sources = new ArrayList<Entries>();
+		try {
+			for (File run : runs) {
+				sources.add(new RunEntries(run));
+			}
+		} catch (IOException e) {
+			closeAll(sources);
+			throw e;
+		}
+		return sources;
+	}
+
+	// merge sources into a new intermediate file in dir; the sources are closed
+	private static File writeRun(List<Entries> sources, File dir) throws IOException {
+		Entries entries = new MergedEntries(sources);
+		try {
+			File run = File.createTempFile("run", ".bin", dir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+			try {
+				while (entries.next()) {
+					out.writeInt(entries.getId());
+					out.writeInt(entries.getColumn());
+					out.writeDouble(entries.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			return run;
+		} finally {
+			entries.close();
+		}
+	}
+
+	/*
+	 * merge the results; with more than maxOpenFiles results, groups of them
+	 * are first merged into intermediate files, and groups of these again,
+	 * so no more than maxOpenFiles files are open at once
+	 */
+	int run() throws Exception {
+		List<String> files = readResultList();
+		VirusCatalog catalog = VirusCatalog.load(virusListFile);
+		if (files.size() <= maxOpenFiles) {
+			writeMatrix(new MergedEntries(openResults(files, 0, catalog)), catalog, files);
+			return files.size();
+		}
+		File tmpDir = Files.createTempDirectory(new File(outFile).getAbsoluteFile().getParentFile().toPath(),
+				"FastViromeExplorer-merge").toFile();
+		try {
+			List<File> runs = new ArrayList<File>();
+			for (int start = 0; start < files.size(); start += maxOpenFiles) {
+				List<String> group = files.subList(start, Math.min(start + maxOpenFiles, files.size()));
+				runs.add(writeRun(openResults(group, start, catalog), tmpDir));
+			}
+			while (runs.size() > maxOpenFiles) {
+				List<File> merged = new ArrayList<File>();
+				for (int start = 0; start < runs.size(); start += maxOpenFiles) {
+					List<File> group = runs.subList(start, Math.min(start + maxOpenFiles, runs.size()));
+					merged.add(writeRun(openRuns(group), tmpDir));
+				}
+				runs = merged;
+			}
+			writeMatrix(new MergedEntries(openRuns(runs)), catalog, files);
+		} finally {
+			File[] left = tmpDir.listFiles();
+			if (left != null) {
+				for (File file : left) {
+					file.delete();
+				}
+			}
+			tmpDir.delete();
+		}
+		return files.size();
+	}
+
+	// write the merged entries of all samples as the matrix; the entries are closed
+	private void writeMatrix(Entries entries, VirusCatalog catalog, List<String> files) throws Exception {
+		try {
+			Writer out = new BufferedWriter(new FileWriter(outFile), 1 << 16);
+			Writer rows = null;
+			try {
+				if (format.equals("tsv")) {
+					out.write("#VirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species");
+					for (String sampleName : sampleNames) {
+						out.write("\t" + sampleName);
+					}
+					out.write("\n");
+				} else {
+					out.write("%%MatrixMarket matrix coordinate real general\n");
+					out.write("% FastViromeExplorer " + value + ", rows: " + outFile + ".rows.tsv, columns: " + outFile
+							+ ".cols.tsv\n");
+					out.write(catalog.size() + " " + sampleNames.size() + " " + numValues + "\n");
+					writeColumns(outFile + ".cols.tsv", files);
+					rows = new BufferedWriter(new FileWriter(outFile + ".rows.tsv"));
+					rows.write("#Row\tVirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species\n");
+				}
+
+				double[] row = new double[sampleNames.size()];
+				int numViruses = 0;
+				boolean more = entries.next();
+				while (more) {
+					int id = entries.getId();
+					if (format.equals("tsv")) {
+						out.write(catalog.getAccession(id) + "\t" + catalog.getName(id) + "\t" + catalog.getLineage(id));
+					} else {
+						rows.write((id + 1) + "\t" + catalog.getAccession(id) + "\t" + catalog.getName(id) + "\t"
+								+ catalog.getLineage(id) + "\n");
+					}
+					while (more && entries.getId() == id) {
+						int column = entries.getColumn();
+						row[column] = entries.getValue();
+						if (format.equals("mtx")) {
+							out.write((id + 1) + " " + (column + 1) + " " + row[column] + "\n");
+						}
+						more = entries.next();
+					}
+					if (format.equals("tsv")) {
+						for (int i = 0; i < row.length; i++) {
+							out.write(row[i] == 0.0 ? "\t0" : "\t" + row[i]);
+						}
+						out.write("\n");
+					}
+					Arrays.fill(row, 0.0);
+					numViruses++;
+				}
+				System.out.println("Merged " + sampleNames.size() + " samples with " + numViruses + " viruses into "
+						+ outFile + ".");
+			} finally {
+				out.close();
+				if (rows != null) {
+					rows.close();
+				}
+			}
+		} finally {
+			entries.close();
+		}
+	}
+
+	private void writeColumns(String fileName, List<String> files) throws Exception {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
+		try {
+			bw.write("#Column\tSample\tResult\n");
+			for (int i = 0; i < files.size(); i++) {
+				bw.write((i + 1) + "\t" + sampleNames.get(i) + "\t" + files.get(i) + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		CohortMerger merger = new CohortMerger();
+		merger.parseArguments(args);
+		try {
+			merger.run();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Computes covered bases, depth and breadth of one genome from the read
+ * intervals mapped to it. Reads are kept as packed start/end pairs in
+ * off-heap pages of a ReadBufferPool, and written to its spill file when the
+ * pool is out of budget. The coverage is computed in a single sweep over a
+ * difference array, so the cost is O(reads + genome length) with no
+ * allocation per base.
+ */
+public class CoverageCalculator {
+	// difference array reused by all calculators of a thread, grown to the largest genome seen so far
+	private static final ThreadLocal<int[]> depthDiffBuffer = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[0];
+		}
+	};
+	// buffer for reading spilled reads back
+	private static final ThreadLocal<ByteBuffer> spillBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+		}
+	};
+	private final ReadBufferPool pool;
+	private int[] pages = new int[4];
+	private int numPages = 0;
+	private int numPageReads = 0;
+	// reads in the spill file, as segments of a file position and a number of reads
+	private long[] spillPositions = new long[0];
+	private int[] spillCounts = new int[0];
+	private int numSpills = 0;
+	private int numReads = 0;
+	private int genomeLen = 0;
+	private long coveredBps = 0;
+	private long totalDepth = 0;
+
+	private interface ReadVisitor {
+		void visit(int startPos, int endPos);
+	}
+
+	// a calculator with its own pool without a budget
+	public CoverageCalculator() {
+		this(new ReadBufferPool(0, null, 16));
+	}
+
+	public CoverageCalculator(ReadBufferPool pool) {
+		this.pool = pool;
+	}
+
+	public void addRead(int startPos, int endPos) {
+		if (numPageReads == numPages * ReadBufferPool.PAGE_READS) {
+			addPage();
+		}
+		pool.put(pages[numPageReads / ReadBufferPool.PAGE_READS], numPageReads % ReadBufferPool.PAGE_READS,
+				startPos, endPos);
+		numPageReads++;
+		numReads++;
+	}
+
+	// take another page from the pool, or spill the pages when the pool is out of budget
+	private void addPage() {
+		int page = numPages == 0 ? pool.allocateFirst() : pool.allocate();
+		if (page < 0) {
+			spill();
+			return;
+		}
+		if (numPages == pages.length) {
+			pages = Arrays.copyOf(pages, 2 * numPages);
+		}
+		pages[numPages++] = page;
+	}
+
+	// write the reads in the pages to the spill file and keep only the first page
+	private void spill() {
+		try {
+			long position = pool.spill(pages, numPages, numPageReads);
+			if (numSpills == spillPositions.length) {
+				spillPositions = Arrays.copyOf(spillPositions, Math.max(2 * numSpills, 4));
+				spillCounts = Arrays.copyOf(spillCounts, Math.max(2 * numSpills, 4));
+			}
+			spillPositions[numSpills] = position;
+			spillCounts[numSpills] = numPageReads;
+			numSpills++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int i = 1; i < numPages; i++) {
+			pool.free(pages[i]);
+		}
+		numPages = 1;
+		numPageReads = 0;
+	}
+
+	// visit the spilled reads, then the reads in the pages
+	private void forEachRead(ReadVisitor visitor) {
+		if (numSpills > 0) {
+			ByteBuffer buf = spillBuffer.get();
+			int maxReads = buf.capacity() / 8;
+			for (int s = 0; s < numSpills; s++) {
+				long position = spillPositions[s];
+				for (int done = 0; done < spillCounts[s];) {
+					int n = Math.min(spillCounts[s] - done, maxReads);
+					buf.clear();
+					buf.limit(n * 8);
+					try {
+						pool.readSpilled(position, buf);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					buf.flip();
+					for (int i = 0; i < n; i++) {
+						visitor.visit(buf.getInt(), buf.getInt());
+					}
+					position += n * 8;
+					done += n;
+				}
+			}
+		}
+		for (int i = 0; i < numPageReads; i++) {
+			int page = pages[i / ReadBufferPool.PAGE_READS];
+			int offset = i % ReadBufferPool.PAGE_READS;
+			visitor.visit(pool.getStart(page, offset), pool.getEnd(page, offset));
+		}
+	}
+
+	// add the reads of another calculator, e.g. the part of a genome read by another thread
+	public void addReads(CoverageCalculator other) {
+		other.forEachRead(new ReadVisitor() {
+			public void visit(int startPos, int endPos) {
+				addRead(startPos, endPos);
+			}
+		});
+	}
+
+	// return the pages to the pool; the reads are gone, the computed coverage stays
+	public void release() {
+		for (int i = 0; i < numPages; i++) {
+			pool.free(pages[i]);
+		}
+		numPages = 0;
+		numPageReads = 0;
+		numSpills = 0;
+	}
+
+	public void clear() {
+		release();
+		numReads = 0;
+		genomeLen = 0;
+		coveredBps = 0;
+		totalDepth = 0;
+	}
+
+	// positions are 1-based and inclusive, as in the sam file
+	public void compute(int genomeLen) {
+		sweep(genomeLen, null);
+	}
+
+	// compute the coverage and also keep the depth along the genome
+	public DepthProfile computeProfile(int genomeLen) {
+		DepthProfile profile = new DepthProfile(genomeLen);
+		sweep(genomeLen, profile);
+		return profile;
+	}
+
+	private void sweep(final int genomeLen, DepthProfile profile) {
+		this.genomeLen = genomeLen;
+		coveredBps = 0;
+		totalDepth = 0;
+		if (genomeLen <= 0) {
+			return;
+		}
+		int[] buffer = depthDiffBuffer.get();
+		if (buffer.length < genomeLen + 2) {
+			buffer = new int[genomeLen + 2];
+			depthDiffBuffer.set(buffer);
+		}
+		final int[] depthDiff = buffer;
+		forEachRead(new ReadVisitor() {
+			public void visit(int startPos, int endPos) {
+				int start = Math.max(startPos, 1);
+				int end = Math.min(endPos, genomeLen);
+				if (start <= end) {
+					depthDiff[start]++;
+					depthDiff[end + 1]--;
+				}
+			}
+		});
+		int depth = 0;
+		for (int i = 1; i <= genomeLen; i++) {
+			depth += depthDiff[i];
+			if (depth > 0) {
+				coveredBps++;
+				totalDepth += depth;
+			}
+			if (profile != null) {
+				profile.add(depth);
+			}
+		}
+		Arrays.fill(depthDiff, 0, genomeLen + 2, 0);
+	}
+
+	public int getNumReads() {
+		return numReads;
+	}
+
+	public int getGenomeLen() {
+		return genomeLen;
+	}
+
+	public long getCoveredBps() {
+		return coveredBps;
+	}
+
+	public double getMeanDepth() {
+		if (genomeLen <= 0) {
+			return 0.0;
+		}
+		return (double) totalDepth / genomeLen;
+	}
+
+	public double getBreadth() {
+		if (genomeLen <= 0) {
+			return 0.0;
+		}
+		return (double) coveredBps / genomeLen;
+	}
+}
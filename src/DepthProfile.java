@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/*
+ * Read depth along one genome, kept as runs of equal depth, so its size
+ * depends on the number of depth changes rather than on the genome length.
+ * It is built by CoverageCalculator while it computes the coverage, and
+ * gives the mean and median depth, the evenness of the coverage and the
+ * mean depth in fixed-size bins.
+ */
+public class DepthProfile {
+	private final int genomeLen;
+	// run i covers positions ends[i - 1] + 1 to ends[i], 1-based, with depth depths[i]
+	private int[] depths = new int[16];
+	private int[] ends = new int[16];
+	private int numRuns = 0;
+	private long totalDepth = 0;
+
+	public DepthProfile(int genomeLen) {
+		this.genomeLen = genomeLen;
+	}
+
+	// add the depth of the next position; positions are added in order starting at 1
+	void add(int depth) {
+		if (numRuns > 0 && depths[numRuns - 1] == depth) {
+			ends[numRuns - 1]++;
+		} else {
+			if (numRuns == depths.length) {
+				depths = Arrays.copyOf(depths, 2 * numRuns);
+				ends = Arrays.copyOf(ends, 2 * numRuns);
+			}
+			depths[numRuns] = depth;
+			ends[numRuns] = numRuns == 0 ? 1 : ends[numRuns - 1] + 1;
+			numRuns++;
+		}
+		totalDepth += depth;
+	}
+
+	public int getGenomeLen() {
+		return genomeLen;
+	}
+
+	public int getNumRuns() {
+		return numRuns;
+	}
+
+	public double getMeanDepth() {
+		return genomeLen <= 0 ? 0.0 : (double) totalDepth / genomeLen;
+	}
+
+	// depth that at least half of the positions reach
+	public int getMedianDepth() {
+		if (numRuns == 0) {
+			return 0;
+		}
+		// runs as (depth, length) pairs packed into longs, sorted by depth
+		long[] runs = new long[numRuns];
+		for (int i = 0; i < numRuns; i++) {
+			runs[i] = ((long) depths[i] << 32) | getRunLength(i);
+		}
+		Arrays.sort(runs);
+		long half = (genomeLen + 1) / 2;
+		long seen = 0;
+		for (long run : runs) {
+			seen += run & 0xffffffffL;
+			if (seen >= half) {
+				return (int) (run >>> 32);
+			}
+		}
+		return (int) (runs[runs.length - 1] >>> 32);
+	}
+
+	/*
+	 * evenness score of Oikonomopoulos et al. (2016): 1 for a uniform depth,
+	 * lower the more the positions below the rounded mean depth fall short
+	 * of it
+	 */
+	public double getEvenness() {
+		long mean = Math.round(getMeanDepth());
+		if (mean == 0) {
+			return 0.0;
+		}
+		long numBelow = 0;
+		long depthBelow = 0;
+		for (int i = 0; i < numRuns; i++) {
+			if (depths[i] <= mean) {
+				numBelow += getRunLength(i);
+				depthBelow += (long) depths[i] * getRunLength(i);
+			}
+		}
+		return 1.0 - (numBelow - (double) depthBelow / mean) / genomeLen;
+	}
+
+	private int getRunLength(int i) {
+		return ends[i] - (i == 0 ? 0 : ends[i - 1]);
+	}
+
+	/*
+	 * write the mean depth of each bin of binSize bases as bedGraph lines
+	 * (0-based start, exclusive end); bins without reads are left out
+	 */
+	public void writeBins(Writer out, String name, int binSize) throws IOException {
+		int run = 0;
+		for (int binStart = 1; binStart <= genomeLen; binStart += binSize) {
+			int binEnd = (int) Math.min((long) binStart + binSize - 1, genomeLen);
+			long depth = 0;
+			while (run < numRuns && ends[run] < binStart) {
+				run++;
+			}
+			for (int i = run; i < numRuns; i++) {
+				int start = Math.max(i == 0 ? 1 : ends[i - 1] + 1, binStart);
+				int end = Math.min(ends[i], binEnd);
+				depth += (long) depths[i] * (end - start + 1);
+				if (ends[i] >= binEnd) {
+					break;
+				}
+			}
+			if (depth > 0) {
+				out.write(name + "\t" + (binStart - 1) + "\t" + binEnd + "\t"
+						+ Math.round(100.0 * depth / (binEnd - binStart + 1)) / 100.0 + "\n");
+			}
+		}
+	}
+}
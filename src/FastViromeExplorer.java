@@ -1,146 +1,97 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.InputStreamReader;
-import java.lang.ProcessBuilder.Redirect;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class FastViromeExplorer {
-	private static String outDir = "";
-	private static String read1 = "";
-	private static String read2 = "";
-	private static String kallistoIndexFile = "";
-	private static String refDbFile = "";
-	private static String virusListFile = "";
-	private static double ratioCriteria = 0.3;
-	private static double coverageCriteria = 0.1;
-	private static int numReadsCriteria = 10;
-	private static double avgReadLen = 0;
-	private static boolean ASC = true;
-	private static boolean DESC = false;
-	private static Map<String, Integer> virusLength;
-	private static Map<String, String> virusLineage;
-	private static Map<String, String> virusRatio;
-	private static boolean useSalmon = false;
-	private static boolean reportRatio = false;
-
-	// sort a map
-	private static Map<String, Double> sortByComparator(Map<String, Double> unsortMap, final boolean order) {
-		List<Entry<String, Double>> list = new LinkedList<Entry<String, Double>>(unsortMap.entrySet());
-
-		// Sorting the list based on values
-		Collections.sort(list, new Comparator<Entry<String, Double>>() {
-			public int compare(Entry<String, Double> o1, Entry<String, Double> o2) {
-				if (order) {
-					return o1.getValue().compareTo(o2.getValue());
-				} else {
-					return o2.getValue().compareTo(o1.getValue());
-
-				}
-			}
-		});
-
-		// Maintaining insertion order with the help of LinkedList
-		Map<String, Double> sortedMap = new LinkedHashMap<String, Double>();
-		for (Entry<String, Double> entry : list) {
-			sortedMap.put(entry.getKey(), entry.getValue());
-		}
-
-		return sortedMap;
-	}
-
-	private static void parseArguments(String[] args) {
-		if (args.length == 0) {
-			printUsage();
-			System.exit(1);
-		} else {
-			for (int i = 0; i < args.length; i++) {
-				if (args[i].startsWith("-")) {
-					if ((i + 1) >= args.length) {
-						System.out.println("Missing argument after " + args[i] + " .");
-						printUsage();
-						System.exit(1);
-					} else {
-						if (args[i].equals("-o")) {
-							outDir = args[i + 1];
-						} else if (args[i].equals("-1")) {
-							read1 = args[i + 1];
-						} else if (args[i].equals("-2")) {
-							read2 = args[i + 1];
-						} else if (args[i].equals("-i")) {
-							kallistoIndexFile = args[i + 1];
-						} else if (args[i].equals("-db")) {
-							refDbFile = args[i + 1];
-						} else if (args[i].equals("-l")) {
-							virusListFile = args[i + 1];
-						} else if (args[i].equals("-cr")) {
-							ratioCriteria = Double.parseDouble(args[i + 1]);
-						} else if (args[i].equals("-co")) {
-							coverageCriteria = Double.parseDouble(args[i + 1]);
-						} else if (args[i].equals("-cn")) {
-							numReadsCriteria = Integer.parseInt(args[i + 1]);
-						} else if (args[i].equals("-salmon")) {
-							if (args[i + 1].equalsIgnoreCase("true")) {
-								useSalmon = true;
-							} else {
-								useSalmon = false;
-							}
-						} else if (args[i].equals("-reportRatio")) {
-                            if (args[i + 1].equalsIgnoreCase("true")) {
-                                reportRatio = true;
-                            } else {
-                                reportRatio = false;
-                            }
-                        } else {
-							System.out.println("Invalid argument.");
-							printUsage();
-							System.exit(1);
-						}
-					}
-				}
-			}
-		} // finish parsing arguments
-		if (read1.isEmpty()) {
-			System.out.println("Please provide the read file.");
-			printUsage();
-			System.exit(1);
-		}
-		if (kallistoIndexFile.isEmpty() && refDbFile.isEmpty()) {
-			System.out.println("Please provide the reference database or kallisto index file or salmon index directory.");
-			printUsage();
-			System.exit(1);
-		}
-		if (virusListFile.isEmpty()) {
-			virusListFile = "ncbi-viruses-list.txt";
-		}
-		if (outDir.isEmpty()) {
-			outDir = Paths.get(".").toAbsolutePath().normalize().toString();
-		}
-		if (ratioCriteria < 0.0 || ratioCriteria > 1.0) {
-			System.out.println("The ratio criteria should be between 0.0 and 1.0. " 
-					+ "Using the default value: 0.3.");
-			ratioCriteria = 0.3;
-		}
-		if (coverageCriteria < 0.0 || coverageCriteria > 1.0) {
-			System.out.println("The coverage criteria should be between 0.0 and 1.0. " 
-					+ "Using the default value: 0.1.");
-			coverageCriteria = 0.1;
-		}
-	}	
+	private final RunConfig config;
+	private final String outDir;
+	private final String read1;
+	private final String read2;
+	private final String kallistoIndexFile;
+	private final String refDbFile;
+	private final String virusListFile;
+	private final double ratioCriteria;
+	private final double coverageCriteria;
+	private final int numReadsCriteria;
+	private double avgReadLen = 0;
+	private VirusCatalog catalog;
+	// support, predicted support and ratio of every virus that passed the ratio and coverage criteria
+	private Map<String, double[]> virusRatio;
+	// read count, covered bases and genome length of every virus with mapped reads
+	private Map<String, String> coverageSummary;
+	private final boolean useSalmon;
+	private final boolean reportRatio;
+	private final boolean streamMappings;
+	private final boolean writeBam;
+	// map with Pseudoaligner instead of kallisto/salmon
+	private final boolean builtinMapper;
+	private final boolean sortedSam;
+	private final int numThreads;
+	private final int kmerSize;
+	private final String indexCacheDir;
+	private final double indexCacheSize;
+	private ExecutorService ratioExecutor;
+	private Semaphore ratioPermits;
+	private AtomicReference<Throwable> ratioError;
+	private ExecutorService readStatsExecutor;
+	private Future<FastqStats> read1Stats;
+	private Future<FastqStats> read2Stats;
+	private RunMetrics metrics = new RunMetrics();
+	private RunMetrics.Stage readStatsStage;
+	private final int progressSeconds;
+	private final int topK;
+	// ranks of Taxonomy.RANKS the abundances are rolled up to
+	private final int[] rollUpRanks;
+	private final boolean resume;
+	private final int subsampleTop;
+	private final double subsampleTolerance;
+	private final long subsampleStart;
+	private final int numShards;
+	private final String sortMemory;
+	private final int depthBin;
+	// depth along the genome of each virus with mapped reads, kept when depthBin is set
+	private Map<String, DepthProfile> depthProfiles;
+	// off-heap storage of the reads of the viruses while their coverage is collected
+	private final ReadBufferPool readBuffers;
+	// index used by the mapper, resolved once as it may be looked up in the index cache
+	private String indexPath;
+	// the cached index in use, released once the reads are mapped
+	private IndexCache.Lease indexLease;
+	// number of reads (pairs) in the read files, known once they are scanned
+	private long numInputReads = 0;
+	// counts estimated by the built-in mapper in this run, by reference, or null to read them from abundance.tsv
+	private String[] estimatedNames;
+	private double[] estimatedCounts;
+	private Checkpoints checkpoints;
+	private String mappingFingerprint;
+	private List<VirusAbundance> viruses = new ArrayList<VirusAbundance>();
 
 	private static void printUsage() {
 		System.out.println("Usage:");
@@ -150,359 +101,580 @@ public class FastViromeExplorer {
 		System.out.println("-2: input .fastq file for read sequences (paired-end 2).");
 		System.out.println("-i: kallisto/salmon index file, mandatory field.");
 		System.out.println("-db: reference database file in fasta/fa format.");
+		System.out.println("-k: k-mer size of the index built from the reference database, default: 31.");
+		System.out.println("-indexCache: directory where indexes built from the reference database are kept, "
+				+ "default: ~/.fastviromeexplorer/index-cache.");
+		System.out.println("-indexCacheSize: size limit of the index cache in GB, least recently used indexes "
+				+ "are removed beyond it, default: 0 (no limit).");
 		System.out.println("-o: output directory. Default option is the project directory.");
 		System.out.println("-l: virus list containing "
-				+ "all viruses present in the reference database along with their length.");
+				+ "all viruses present in the reference database along with their length, "
+				+ "or the catalog compiled from it with VirusCatalog.");
 		System.out.println("-cr: the value of ratio criteria, default: 0.3.");
 		System.out.println("-co: the value of coverage criteria, default: 0.1.");
 		System.out.println("-cn: the value of number of reads criteria, default: 10.");
+		System.out.println("-t: number of threads used to read the bam file and to calculate coverage and ratio, "
+				+ "also passed to salmon and samtools sort, default: 1.");
 		System.out.println(
 				"-salmon: use salmon instead of kallisto, default: false. To use salmon pass '-salmon true' as parameter.");
 		System.out.println(
                 "-reportRatio: default: false. To get ratio pass '-reportRatio true' as parameter.");
+		System.out.println("-stream: read the kallisto/salmon mappings directly instead of writing a sorted bam file, "
+				+ "default: false. To stream pass '-stream true' as parameter.");
+		System.out.println("-writeBam: with '-stream true', also write the sorted bam file, default: false.");
+		System.out.println("-sam: keep the sorted alignments as a sam file and scan it in parallel chunks, "
+				+ "default: false.");
+		System.out.println("-resume: skip the stages that finished in an earlier run with the same inputs, "
+				+ "tool versions and parameters, default: false. To resume pass '-resume true' as parameter.");
+		System.out.println("-topK: only report the given number of most abundant viruses, default: 0 (all).");
+		System.out.println("-progress: print the progress of the running stages every given number of seconds, "
+				+ "default: 0 (off).");
+		System.out.println("-sortMem: memory per thread of samtools sort, default: 768M.");
+		System.out.println("-depthBin: write the mean read depth in bins of the given number of bases as a bedGraph "
+				+ "file, and the mean depth, median depth and evenness of each virus, default: 0 (off).");
+		System.out.println("-ranks: comma-separated ranks the abundances are summed up to in "
+				+ "FastViromeExplorer-rank-abundance.tsv, or none, default: family,genus.");
+		System.out.println("-coverageMem: memory in MB for the reads kept while the coverage is calculated, "
+				+ "reads beyond it are spilled to disk, default: 0 (no limit).");
+		System.out.println("-builtin: map the reads to the reference database given with -db in the JVM "
+				+ "instead of running kallisto/salmon, default: false.");
+		System.out.println("-shards: split the reads into the given number of parts and map them with as many "
+				+ "kallisto/salmon processes at once, default: 1.");
+		System.out.println("-subsampleTop: map the reads in growing increments and stop when the given number of "
+				+ "most abundant viruses is stable, default: 0 (map all reads).");
+		System.out.println("-subsampleTolerance: largest change of the relative abundance of a top virus between "
+				+ "increments that counts as stable, default: 0.05.");
+		System.out.println("-subsampleStart: number of reads in the first increment, doubled in each further "
+				+ "increment, default: 100000.");
 	}
 	
-	private static void checkInputs() {
+	public void checkInputs() throws Exception {
         File file = new File(read1);
         if (!file.exists() || file.isDirectory()) {
-            System.out.println("Could not find read file: " + read1);
-            System.exit(1);
+            throw new Exception("Could not find read file: " + read1);
         }
         if(!read2.isEmpty()) {
             file = new File(read2);
             if (!file.exists() || file.isDirectory()) {
-                System.out.println("Could not find read file: " + read2);
-                System.exit(1);
+                throw new Exception("Could not find read file: " + read2);
             }
         }
         if(!kallistoIndexFile.isEmpty()) {
             file = new File(kallistoIndexFile);
             if (useSalmon) {
                 if (!file.exists()) {
-                    System.out.println("Could not find salmon index directory: " + kallistoIndexFile);
-                    System.exit(1);
+                    throw new Exception("Could not find salmon index directory: " + kallistoIndexFile);
                 }
             }
             else {
                 if (!file.exists() || file.isDirectory()) {
-                    System.out.println("Could not find kallisto index file: " + kallistoIndexFile);
-                    System.exit(1);
+                    throw new Exception("Could not find kallisto index file: " + kallistoIndexFile);
                 }
             }
         }
         if(!refDbFile.isEmpty()) {
             file = new File(refDbFile);
             if (!file.exists() || file.isDirectory()) {
-                System.out.println("Could not find reference database file: " + refDbFile);
-                System.exit(1);
+                throw new Exception("Could not find reference database file: " + refDbFile);
             }
         }
+        if (catalog == null && !new File(virusListFile).isFile()) {
+            throw new Exception("Could not find the list of viruses (" + virusListFile + ").");
+        }
     }
 
-	private static void callKallisto() {
-		File f1 = new File(virusListFile);
-		if (!f1.isFile()) {
-			System.out.println(
-					"Could not find the list of viruses (ncbi-viruses-list.txt) " + "in the project directory.");
-			printUsage();
-			System.exit(1);
+	/*
+	 * the mapper, followed by samtools removing the unmapped reads and sorting
+	 * the rest into sortedFile, unless the mappings are streamed into the JVM;
+	 * the names of the programs in the metrics end with label
+	 */
+	private ProcessPipeline newMappingPipeline(String reads1, String reads2, String quantDir, String sortedFile,
+			boolean sam, int threads, String label, RunMetrics.Stage stage) throws Exception {
+		ProcessPipeline pipeline = new ProcessPipeline(outDir + "/log.txt", stage);
+		pipeline.add((useSalmon ? "salmon quant" : "kallisto quant") + label,
+				getMapperCommand(reads1, reads2, quantDir, threads));
+		if (!streamMappings) {
+			// uncompressed bam, as it is only passed on to samtools sort
+			pipeline.add("samtools view" + label, "samtools", "view", "-u", "-h", "-F", "0x04", "-");
+			pipeline.add("samtools sort" + label, getSortCommand(sortedFile, sam, threads));
 		}
-		try {
-			String command = "";
-			// index file is given
-			if (!kallistoIndexFile.isEmpty()) {
-				if (read2.isEmpty()) {
-					command = "kallisto quant -i " + kallistoIndexFile + " -o " + outDir
-							+ " --single -l 200 -s 50 --pseudobam " + read1
-							+ " | samtools view -bS - | samtools view -h -F 0x04 -b - | " + "samtools sort - -o "
-							+ outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				} else {
-					command = "kallisto quant -i " + kallistoIndexFile + " -o " + outDir + " --pseudobam " + read1 + " "
-							+ read2 + " | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				}
-			} else if (!refDbFile.isEmpty()) {
-				if (read2.isEmpty()) {
-					command = "kallisto index -i kallisto-index.idx " + refDbFile + "\n"
-							+ "kallisto quant -i kallisto-index.idx " + "-o " + outDir
-							+ " --single -l 200 -s 50 --pseudobam " + read1
-							+ " | samtools view -bS - | samtools view -h -F 0x04 -b - | " + "samtools sort - -o "
-							+ outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				} else {
-					command = "kallisto index -i kallisto-index.idx " + refDbFile + "\n"
-							+ "kallisto quant -i kallisto-index.idx " + "-o " + outDir + " --pseudobam " + read1 + " "
-							+ read2 + " | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				}
+		return pipeline;
+	}
+
+	// samtools sort reading sam or bam from its standard input, with the threads and memory per thread given
+	private List<String> getSortCommand(String sortedFile, boolean sam, int threads) {
+		List<String> command = new ArrayList<String>(
+				Arrays.asList("samtools", "sort", "-@", Integer.toString(threads), "-m", sortMemory));
+		if (sam) {
+			command.add("-O");
+			command.add("sam");
+		}
+		command.add("-o");
+		command.add(sortedFile);
+		command.add("-");
+		return command;
+	}
+
+	// run the mapper and the samtools programs after it; in streaming mode this also calculates the ratio
+	private void runMapper() throws Exception {
+		RunMetrics.Stage stage = metrics.startStage("mapping");
+		ProcessPipeline pipeline = newMappingPipeline(read1, read2, outDir, getSortedMappingsFile(), sortedSam,
+				numThreads, "", stage);
+		pipeline.start(streamMappings);
+		if (streamMappings) {
+			try {
+				getRatioFromStream(pipeline.getOutput(), stage);
+			} catch (Exception e) {
+				// a failed program explains the failure better, if there is one
+				pipeline.cancel();
+				pipeline.waitFor();
+				throw e;
 			}
+		}
+		pipeline.waitFor();
+		stage.finish();
+	}
+
+	/*
+	 * map the reads to the reference database with the built-in mapper and
+	 * calculate the ratio from its mappings; the estimated counts are kept
+	 * for writeAbundance() and written to abundance.tsv, as by kallisto
+	 */
+	private void mapBuiltin() throws Exception {
+		RunMetrics.Stage indexStage = metrics.startStage("index");
+		KmerIndex index = KmerIndex.build(refDbFile, kmerSize);
+		indexStage.addBytes(new File(refDbFile).length());
+		indexStage.finish();
+		System.out.println("Indexed " + index.getNumKmers() + " k-mers in " + index.getNumClasses()
+				+ " equivalence classes of " + index.getNumReferences() + " references.");
+
+		RunMetrics.Stage stage = metrics.startStage("mapping");
+		Pseudoaligner mapper = new Pseudoaligner(index, numThreads, readBuffers);
+		mapper.map(read1, read2, stage);
+		estimatedCounts = mapper.estimateCounts();
+		estimatedNames = new String[estimatedCounts.length];
+		for (int ref = 0; ref < estimatedNames.length; ref++) {
+			estimatedNames[ref] = index.getName(ref);
+		}
+		mapper.writeAbundance(getQuantFile(), estimatedCounts);
+		stage.finish();
+		System.out.println("Mapped " + mapper.getNumMapped() + " of " + mapper.getNumFragments() + " reads"
+				+ (read2.isEmpty() ? "" : " (pairs)") + ".");
+
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		long totalReads = mapper.getNumAlignments();
+		Map<String, CoverageCalculator> coverages = mapper.getCoverages();
+		getAverageReadLength();
+		evaluateCoverages(coverages, totalReads);
+		if (totalReads == 0) {
+		    throw new Exception("Error: No reads mapped to the reference database with the built-in mapper. "
+		        + "Please check the read files and the reference database.");
+		}
+		else {
+		    System.out.println("Processed " + totalReads + " mapped reads from the built-in mapper.");
+		}
+	}
 
-			FileWriter shellFileWriter = new FileWriter(outDir + "/run.sh");
-			shellFileWriter.write("#!/bin/bash\n");
-			shellFileWriter.write(command);
-			shellFileWriter.close();
+	private IndexCache getIndexCache() {
+		return new IndexCache(indexCacheDir, (long) (indexCacheSize * 1024 * 1024 * 1024));
+	}
 
-			ProcessBuilder builder = new ProcessBuilder("sh", outDir + "/run.sh");
-			builder.redirectError(new File(outDir + "/log.txt"));
-			Process process = builder.start();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			while (reader.readLine() != null) {
+	// kallisto index file or salmon index directory
+	private String getIndexPath() throws Exception {
+		if (indexPath == null) {
+			indexPath = kallistoIndexFile;
+			// index is built from the reference database, or reused from the index cache
+			if (indexPath.isEmpty()) {
+				indexLease = useSalmon ? getIndexCache().getSalmonIndex(refDbFile, kmerSize, outDir + "/log.txt")
+						: getIndexCache().getKallistoIndex(refDbFile, kmerSize, outDir + "/log.txt");
+				indexPath = indexLease.getPath();
 			}
-			process.waitFor();
-		} catch (Exception ex) {
-			ex.printStackTrace();
 		}
+		return indexPath;
 	}
 
-	private static void callSalmon() {
-		File f1 = new File(virusListFile);
-		if (!f1.isFile()) {
-			System.out.println(
-					"Could not find the list of viruses (ncbi-viruses-list.txt) " + "in the project directory.");
-			printUsage();
-			System.exit(1);
+	// the kallisto/salmon command that maps the given reads, writes its counts to quantDir
+	// and its mappings as sam to the standard output
+	private List<String> getMapperCommand(String reads1, String reads2, String quantDir, int threads)
+			throws Exception {
+		List<String> command = new ArrayList<String>();
+		if (useSalmon) {
+			command.addAll(Arrays.asList("salmon", "quant", "-i", getIndexPath(), "-l", "A", "-p",
+					Integer.toString(threads)));
+			if (reads2.isEmpty()) {
+				command.addAll(Arrays.asList("-r", reads1));
+			} else {
+				command.addAll(Arrays.asList("-1", reads1, "-2", reads2));
+			}
+			command.addAll(Arrays.asList("-o", quantDir, "--writeMappings"));
+			return command;
+		}
+		// the pseudobam output of kallisto 0.43.1 runs on one thread
+		command.addAll(Arrays.asList("kallisto", "quant", "-i", getIndexPath(), "-o", quantDir));
+		if (reads2.isEmpty()) {
+			command.addAll(Arrays.asList("--single", "-l", "200", "-s", "50", "--pseudobam", reads1));
+		} else {
+			command.addAll(Arrays.asList("--pseudobam", reads1, reads2));
+		}
+		return command;
+	}
+	
+	// scan the read files while the mapper runs
+	private void startReadStats() {
+		readStatsStage = metrics.startStage("readLengthScan");
+		AtomicInteger remaining = new AtomicInteger(read2.isEmpty() ? 1 : 2);
+		readStatsExecutor = Executors.newFixedThreadPool(2);
+		read1Stats = readStatsExecutor.submit(newReadStatsTask(read1, remaining));
+		if (!read2.isEmpty()) {
+			read2Stats = readStatsExecutor.submit(newReadStatsTask(read2, remaining));
+		}
+		readStatsExecutor.shutdown();
+	}
+
+	private Callable<FastqStats> newReadStatsTask(final String readFile, final AtomicInteger remaining) {
+		return new Callable<FastqStats>() {
+			public FastqStats call() throws Exception {
+				FastqStats stats = FastqStats.scan(readFile);
+				readStatsStage.addReads(stats.getNumReads());
+				readStatsStage.addBytes(new File(readFile).length());
+				// the stage ends when the last read file is scanned
+				if (remaining.decrementAndGet() == 0) {
+					readStatsStage.finish();
+				}
+				return stats;
+			}
+		};
+	}
+
+	private void getAverageReadLength() throws Exception {
+		if (avgReadLen != 0) {
+			return;
 		}
+		List<FastqStats> statsList = new LinkedList<FastqStats>();
 		try {
-			String command = "";
-			// index file is given
-			if (!kallistoIndexFile.isEmpty()) {
-				if (read2.isEmpty()) {
-					command = "salmon quant -i " + kallistoIndexFile 
-							+ " -l A -r " + read1 + " -o " + outDir
-							+ " --writeMappings | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				} else {
-					command = "salmon quant -i " + kallistoIndexFile 
-							+ " -l A -1 " + read1 + " -2 " + read2 + " -o "
-							+ outDir + " --writeMappings | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
+			statsList.add(read1Stats.get());
+			if (read2Stats != null) {
+				statsList.add(read2Stats.get());
+			}
+		} catch (ExecutionException e) {
+			// the read counts and read stats files would be wrong without the scan of every read file
+			throw new Exception(e.getCause().getMessage(), e.getCause());
+		} finally {
+			readStatsStage.finish();
+		}
+
+		long numReads = 0;
+		long numBases = 0;
+		int maxLen = 0;
+		for (FastqStats stats : statsList) {
+			numReads += stats.getNumReads();
+			numBases += stats.getNumBases();
+			maxLen = Math.max(maxLen, stats.getMaxLength());
+		}
+		if (statsList.size() == 2 && statsList.get(0).getNumReads() != statsList.get(1).getNumReads()) {
+			System.out.println("Warning: The read files have different number of reads: " 
+					+ statsList.get(0).getNumReads() + " and " + statsList.get(1).getNumReads() + ".");
+		}
+		if (numReads > 0) {
+			avgReadLen = (double) numBases / numReads;
+		}
+		if (!statsList.isEmpty()) {
+			numInputReads = statsList.get(0).getNumReads();
+		}
+
+		// write in file
+		BufferedWriter bw = null;
+		try {
+			bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-read-stats.tsv"));
+			bw.write("#ReadFile\tNumReads\tNumBases\tMeanLength\tN50\tMinLength\tMaxLength\n");
+			for (FastqStats stats : statsList) {
+				bw.write(stats.getFileName() + "\t" + stats.getNumReads() + "\t" + stats.getNumBases() + "\t"
+						+ new DecimalFormat("##.##").format(stats.getMeanLength()) + "\t" + stats.getN50() + "\t"
+						+ stats.getMinLength() + "\t" + stats.getMaxLength() + "\n");
+			}
+			bw.close();
+
+			bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-read-length-histogram.tsv"));
+			bw.write("#Length");
+			for (int i = 0; i < statsList.size(); i++) {
+				bw.write("\tNumReads" + (i + 1));
+			}
+			bw.write("\n");
+			for (int len = 1; len <= maxLen; len++) {
+				String line = "" + len;
+				boolean found = false;
+				for (FastqStats stats : statsList) {
+					line += "\t" + stats.getNumReadsOfLength(len);
+					found = found || stats.getNumReadsOfLength(len) > 0;
 				}
-			} else if (!refDbFile.isEmpty()) {
-				if (read2.isEmpty()) {
-					command = "salmon index -t " + refDbFile + " -i salmon-index\n" 
-							+ "salmon quant -i salmon-index"
-							+ " -l A -r " + read1 + " -o " + outDir
-							+ " --writeMappings | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
-				} else {
-					command = "salmon index -t " + refDbFile + " -i salmon-index\n" 
-							+ "salmon quant -i salmon-index"
-							+ " -l A -1 " + read1 + " -2 " + read2 + " -o " + outDir
-							+ " --writeMappings | samtools view -bS - | samtools view -h -F 0x04 -b - | "
-							+ "samtools sort - -o " + outDir + "/FastViromeExplorer-reads-mapped-sorted.sam\n";
+				if (found) {
+					bw.write(line + "\n");
 				}
 			}
+			bw.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 
-			FileWriter shellFileWriter = new FileWriter(outDir + "/run.sh");
-			shellFileWriter.write("#!/bin/bash\n");
-			shellFileWriter.write(command);
-			shellFileWriter.close();
+	    if (avgReadLen == 0) {
+            throw new Exception("Error: Could not extract average read length from read file.");
+        }
+		if (checkpoints != null) {
+			checkpoints.put("readLengthScan", getReadsFingerprint(), avgReadLen + "," + numInputReads);
+		}
+	}
+
+	// genome length, name and lineage of the viruses, from a compiled catalog or a text list
+	void getVirusLength() throws Exception {
+		if (catalog == null) {
+			RunMetrics.Stage stage = metrics.startStage("catalogLoad");
+			catalog = VirusCatalog.load(virusListFile);
+			stage.addBytes(new File(virusListFile).length());
+			stage.finish();
+		}
+	}
 
-			ProcessBuilder builder = new ProcessBuilder("sh", outDir + "/run.sh");
-			builder.redirectError(new File(outDir + "/log.txt"));
-			Process process = builder.start();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			while (reader.readLine() != null) {
+	// calculate support, predicted support and ratio of one virus and keep it if it passes the criteria
+	private void evaluateVirus(String virusName, CoverageCalculator coverage) {
+		int id = catalog.getId(virusName);
+		if (id < 0) {
+			coverage.release();
+			System.out.println("Could not get the genome length of " + virusName 
+					+ ". Please make sure you provided the right genome-length file using -l parameter.");
+			return;
+		}
+		int genomeLen = catalog.getLength(id);
+		if (depthProfiles != null) {
+			depthProfiles.put(virusName, coverage.computeProfile(genomeLen));
+		} else {
+			coverage.compute(genomeLen);
+		}
+		coverage.release();
+		coverageSummary.put(virusName, coverage.getNumReads() + "\t" + coverage.getCoveredBps() + "\t" + genomeLen);
+		filterVirus(virusName, coverage.getNumReads(), coverage.getCoveredBps(), genomeLen);
+	}
+
+	// keep a virus if its support and ratio pass the criteria
+	private void filterVirus(String virusName, long numReads, long coveredBps, double genomeLen) {
+		double[] ratio = getSupportRatio(numReads, coveredBps, genomeLen, avgReadLen);
+		if (passesCriteria(ratio)) {
+			virusRatio.put(virusName, ratio);
+		}
+	}
+
+	// support, predicted support and ratio of a virus
+	private static double[] getSupportRatio(long numReads, long coveredBps, double genomeLen, double readLen) {
+		double support = coveredBps / genomeLen;
+		double cov = (numReads * readLen) / genomeLen;
+		double predictedSupport = 1 - Math.exp(-cov);
+		double ratio = 0.0;
+		if (support < predictedSupport) {
+			ratio = support / predictedSupport;
+		} else {
+			ratio = predictedSupport / support;
+		}
+		return new double[] { support, predictedSupport, ratio };
+	}
+
+	private boolean passesCriteria(double[] ratio) {
+		return ratio[2] >= ratioCriteria && ratio[0] >= coverageCriteria;
+	}
+
+	private void startRatioWorkers() {
+		ratioError = new AtomicReference<Throwable>();
+		if (numThreads > 1) {
+			ratioExecutor = Executors.newFixedThreadPool(numThreads);
+			// at most two pending viruses per thread, so the reader cannot run ahead of the workers
+			ratioPermits = new Semaphore(2 * numThreads);
+		}
+	}
+
+	// hand the reads of a finished virus to the workers; the caller must not touch coverage afterwards
+	private void submitVirus(final String virusName, final CoverageCalculator coverage) 
+			throws InterruptedException {
+		if (ratioExecutor == null) {
+			evaluateVirus(virusName, coverage);
+			return;
+		}
+		ratioPermits.acquire();
+		ratioExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					evaluateVirus(virusName, coverage);
+				} catch (Throwable t) {
+					ratioError.compareAndSet(null, t);
+				} finally {
+					ratioPermits.release();
+				}
 			}
-			process.waitFor();
-		} catch (Exception ex) {
-			ex.printStackTrace();
+		});
+	}
+
+	private void finishRatioWorkers() throws Exception {
+		if (ratioExecutor != null) {
+			ratioExecutor.shutdown();
+			ratioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			ratioExecutor = null;
+		}
+		if (ratioError.get() != null) {
+			throw new Exception("Failed to calculate ratio.", ratioError.get());
 		}
 	}
-	
-	private static void getAverageReadLength() {
-	    try {
-            String command = "";
-            if (read1.endsWith(".gz")) {
-                command = "gzip -dc " + read1 
-                        + " | awk 'NR%4 == 2 {lenSum+=length($0); readCount++;} END {print lenSum/readCount}'";
-            } else {
-                command = "awk 'NR%4 == 2 {lenSum+=length($0); readCount++;} END {print lenSum/readCount}' "
-                        + read1;
-            }
-            
-            FileWriter shellFileWriter = new FileWriter(outDir + "/run.sh");
-            shellFileWriter.write("#!/bin/bash\n");
-            shellFileWriter.write(command);
-            shellFileWriter.close();
-
-            ProcessBuilder builder = new ProcessBuilder("sh", outDir + "/run.sh");
-            builder.redirectError(Redirect.appendTo(new File(outDir + "/log.txt")));
-            Process process = builder.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String str = "";
-            while ((str = reader.readLine()) != null) {
-                avgReadLen = Double.parseDouble(str);
-            }
-            process.waitFor();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        }
-	    
-	    if (avgReadLen == 0) {
-            System.out.println("Error: Could not extract average read length from read file.");
-            System.exit(1);
-        }
+
+	// stop the workers after a failure, dropping the viruses not evaluated yet; nothing to do once finished
+	private void stopRatioWorkers() throws InterruptedException {
+		if (ratioExecutor != null) {
+			ratioExecutor.shutdownNow();
+			ratioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			ratioExecutor = null;
+		}
 	}
 
-	private static void getVirusLength() {
-		virusLength = new HashMap<String, Integer>();
-		virusLineage = new HashMap<String, String>();
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(virusListFile));
-			String str = "";
-			while ((str = br.readLine()) != null) {
-				String[] results = str.split("\t");
-				if (results.length == 4) {
-					int length = Integer.parseInt(results[3]);
-					virusLength.put(results[0].trim(), length);
-					virusLineage.put(results[0].trim(), results[1].trim() + "\t" + results[2].trim());
-				} else {
-					int length = Integer.parseInt(results[1]);
-					virusLength.put(results[0].trim(), length);
-					virusLineage.put(results[0].trim(), "N/A\tN/A");
+	/*
+	 * read alignments from the sam output of the mapper and collect the reads of
+	 * each virus in coverages; the mapper output is grouped by read, so the
+	 * coverage of a reference is looked up by its catalog id without making a
+	 * String of its name. The reads are added to those of the stage, so the
+	 * outputs of several mappers can be read at once.
+	 */
+	private long readAlignments(SamReader sam, Map<String, CoverageCalculator> coverages, 
+			OutputStream samWriter, RunMetrics.Stage stage) throws Exception {
+		long totalReads = 0;
+		CoverageCalculator[] coveragesById = new CoverageCalculator[catalog.size()];
+		byte[] prevName = new byte[256];
+		int prevNameLen = -1;
+		CoverageCalculator coverage = null;
+		while (sam.next()) {
+			if (sam.isHeader()) {
+				if (samWriter != null) {
+					sam.writeLine(samWriter);
 				}
+				continue;
 			}
-			br.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+			// skip unmapped reads
+			if (sam.isUnmapped()) {
+				continue;
+			}
+			if (samWriter != null) {
+				sam.writeLine(samWriter);
+			}
+			if ((++totalReads & 0xffff) == 0) {
+				stage.addReads(0x10000);
+			}
+			int startPos = sam.getPos();
+			int endPos = sam.getSeqLength() + startPos - 1;
+			if (!sam.refNameEquals(prevName, prevNameLen)) {
+				int nameLen = sam.getRefNameLength();
+				int id = catalog.getId(sam.getBuffer(), sam.getRefNameOffset(), nameLen);
+				coverage = id < 0 ? null : coveragesById[id];
+				if (coverage == null) {
+					// first read of this virus, or a virus that is not in the catalog
+					String virusName = sam.getRefName();
+					coverage = coverages.get(virusName);
+					if (coverage == null) {
+						coverage = new CoverageCalculator(readBuffers);
+						coverages.put(virusName, coverage);
+					}
+					if (id >= 0) {
+						coveragesById[id] = coverage;
+					}
+				}
+				if (nameLen > prevName.length) {
+					prevName = new byte[2 * nameLen];
+				}
+				System.arraycopy(sam.getBuffer(), sam.getRefNameOffset(), prevName, 0, nameLen);
+				prevNameLen = nameLen;
+			}
+			coverage.addRead(startPos, endPos);
 		}
+		stage.addReads(totalReads & 0xffff);
+		return totalReads;
 	}
 
-	private static void getRatio() {
-		virusRatio = new HashMap<String, String>();
-		// read from sam
-		TreeSet<Read> readSet = new TreeSet<Read>();
-		int totalReads = 0;
-		int numReads = 0;
-		BufferedReader br = null;
+	// read the sorted bam; the reads of a virus are evaluated as soon as the next virus starts
+	void getRatio() throws Exception {
+		if (sortedSam) {
+			getRatioFromSam();
+			return;
+		}
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		long totalReads = 0;
+		RunMetrics.Stage stage = metrics.startStage("coverage");
+		BamReader bam = null;
 		try {
-			br = new BufferedReader(new FileReader(outDir + "/FastViromeExplorer-reads-mapped-sorted.sam"));
-			String str = "";
-			String prevVirusName = null;
-			double ratio = 0.0;
-			// read sam file
-			while ((str = br.readLine()) != null) {
-				if (!str.startsWith("@")) {
-				    totalReads++;
-					String[] results = str.split("\t");
-					String virusName = results[2].trim();
-					int startPos = Integer.parseInt(results[3].trim());
-					int endPos = results[9].trim().length() + startPos - 1;
-					if (prevVirusName != null && !virusName.equals(prevVirusName)) 
-					{
-						// finish calculating ratio for prev virus
-						double coveredBps = 0.0;
-						if (!virusLength.containsKey(prevVirusName)) {
-							System.out.println("Could not get the genome length of " + prevVirusName 
-									+ ". Please make sure you provided the right genome-length file using -l parameter.");
-						}
-						double genomeLen = virusLength.get(prevVirusName);
-
-						for (int i = 1; i <= genomeLen; i++) {
-							Read tempRead = new Read(i, i + (2 * (int) avgReadLen));
-							NavigableSet<Read> smallSet = readSet.headSet(tempRead, true);
-							Iterator<Read> it = smallSet.descendingIterator();
-							while (it.hasNext()) {
-								tempRead = it.next();
-								if (i >= tempRead.getStartPos() && i <= tempRead.getEndPos()) {
-									coveredBps++;
-									break;
-								}
-								if (tempRead.getEndPos() + 2 * avgReadLen < i) {
-									break;
-								}
-							}
-						}
-
-						double support = coveredBps / genomeLen;
-						double cov = (numReads * avgReadLen) / genomeLen;
-						double predictedSupport = 1 - Math.exp(-cov);
-						ratio = 0.0;
-						if (support < predictedSupport) {
-							ratio = support / predictedSupport;
-						} else {
-							ratio = predictedSupport / support;
-						}
-						if (ratio >= ratioCriteria && support >= coverageCriteria) {
-						    if (reportRatio) {
-						        virusRatio.put(prevVirusName, support + "\t" + predictedSupport + "\t" 
-						            + new DecimalFormat("##.####").format(ratio));
-						    }
-						    else {
-						        virusRatio.put(prevVirusName, "");
-						    }							
-						}
-						// create new readSet
-						readSet = new TreeSet<Read>();
-						numReads = 0;
-						Read read = new Read(startPos, endPos);
-						numReads++;
-						readSet.add(read);
-					} 
-					else {
-						Read read = new Read(startPos, endPos);
-						numReads++;
-						readSet.add(read);
-					}
-					prevVirusName = virusName;
+			startRatioWorkers();
+			String bamFile = outDir + "/FastViromeExplorer-reads-mapped-sorted.bam";
+			stage.addBytes(new File(bamFile).length());
+			bam = new BamReader(bamFile, numThreads);
+			CoverageCalculator coverage = new CoverageCalculator(readBuffers);
+			int prevRefId = -1;
+			while (bam.next()) {
+				if (bam.isUnmapped()) {
+					continue;
+				}
+				if ((++totalReads & 0xffff) == 0) {
+					stage.setReads(totalReads);
 				}
+				int refId = bam.getRefId();
+				int startPos = bam.getPos();
+				int readLen = bam.getSeqLength() > 0 ? bam.getSeqLength() : bam.getReferenceLength();
+				int endPos = readLen + startPos - 1;
+				if (prevRefId != -1 && refId != prevRefId) {
+					// finish calculating ratio for prev virus
+					submitVirus(bam.getRefName(prevRefId), coverage);
+					coverage = new CoverageCalculator(readBuffers);
+				}
+				coverage.addRead(startPos, endPos);
+				prevRefId = refId;
 			}
 			// calculate ratio for the last virus
-			if (prevVirusName != null) {
-			    double coveredBps = 0.0;
-			    if (!virusLength.containsKey(prevVirusName)) {
-                    System.out.println("Could not get the genome length of " + prevVirusName 
-                            + ". Please make sure you provided the right genome-length file using -l parameter.");
-                }
-	            double genomeLen = virusLength.get(prevVirusName);
-	            for (int i = 1; i <= genomeLen; i++) {
-	                Read tempRead = new Read(i, i + (2 * (int) avgReadLen));
-	                NavigableSet<Read> smallSet = readSet.headSet(tempRead, true);
-	                Iterator<Read> it = smallSet.descendingIterator();
-	                while (it.hasNext()) {
-	                    tempRead = it.next();
-	                    if (i >= tempRead.getStartPos() && i <= tempRead.getEndPos()) {
-	                        coveredBps++;
-	                        break;
-	                    }
-	                    if (tempRead.getEndPos() + 2 * avgReadLen < i) {
-	                        break;
-	                    }
-	                }
-	            }
-
-	            double support = coveredBps / genomeLen;
-	            double cov = (numReads * avgReadLen) / genomeLen;
-	            double predictedSupport = 1 - Math.exp(-cov);
-	            ratio = 0.0;
-	            if (support < predictedSupport) {
-	                ratio = support / predictedSupport;
-	            } else {
-	                ratio = predictedSupport / support;
-	            }
-
-	            if (ratio >= ratioCriteria && support >= coverageCriteria) {
-	                if (reportRatio) {
-	                    virusRatio.put(prevVirusName, support + "\t" + predictedSupport + "\t" 
-	                        + new DecimalFormat("##.####").format(ratio));
-	                }
-	                else {
-	                    virusRatio.put(prevVirusName, "");
-	                }
-	            }
-			}			
-
-			readSet = null;
-			br.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+			if (prevRefId != -1) {
+				submitVirus(bam.getRefName(prevRefId), coverage);
+			}
+			finishRatioWorkers();
+		} finally {
+			if (bam != null) {
+				bam.close();
+			}
+			stopRatioWorkers();
+			stage.setReads(totalReads);
+			stage.finish();
 		}
 		if (totalReads == 0) {
-		    System.out.println("Error: The sam file "
+		    throw new Exception("Error: The bam file "
+		        + "FastViromeExplorer-reads-mapped-sorted.bam is empty. Please check the "
+		        + "kallisto and samtools version. Please use kallisto 0.43.1 and samtools 1.4 or later.");
+		}
+		else {
+		    System.out.println("Processed " + totalReads + " reads from "
+		        + "FastViromeExplorer-reads-mapped-sorted.bam.");
+		}
+	}
+
+	// scan the sorted sam in chunks on numThreads threads; each virus is evaluated by the thread that read it
+	private void getRatioFromSam() throws Exception {
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		long totalReads = 0;
+		RunMetrics.Stage stage = metrics.startStage("coverage");
+		try {
+			String samFile = outDir + "/FastViromeExplorer-reads-mapped-sorted.sam";
+			stage.addBytes(new File(samFile).length());
+			totalReads = new SortedSamScanner(samFile, numThreads, readBuffers).scan(new SortedSamScanner.Handler() {
+				public void handle(String virusName, CoverageCalculator coverage) {
+					evaluateVirus(virusName, coverage);
+				}
+			});
+		} finally {
+			stage.setReads(totalReads);
+			stage.finish();
+		}
+		if (totalReads == 0) {
+		    throw new Exception("Error: The sam file "
 		        + "FastViromeExplorer-reads-mapped-sorted.sam is empty. Please check the "
 		        + "kallisto and samtools version. Please use kallisto 0.43.1 and samtools 1.4 or later.");
-		    System.exit(1);
 		}
 		else {
 		    System.out.println("Processed " + totalReads + " reads from "
@@ -510,134 +682,984 @@ public class FastViromeExplorer {
 		}
 	}
 
-	private static int getSortedAbundanceRatio() {
-	    int numFinalViruses = 0;
-		Map<String, Double> map = new HashMap<String, Double>();
-		BufferedReader br = null;
+	// calculate ratio directly from the sam output of kallisto/salmon, which is not sorted;
+	// reading the mapper output is accounted to the mapping stage
+	private void getRatioFromStream(InputStream in, RunMetrics.Stage mappingStage) throws Exception {
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		long totalReads = 0;
+		ProcessPipeline sortPipeline = null;
+		try {
+			OutputStream samWriter = null;
+			if (writeBam) {
+				sortPipeline = newSortPipeline(outDir + "/FastViromeExplorer-reads-mapped-sorted.bam", numThreads,
+						"", mappingStage);
+				samWriter = new BufferedOutputStream(sortPipeline.getInput(), 1 << 16);
+			}
+			Map<String, CoverageCalculator> coverages = new LinkedHashMap<String, CoverageCalculator>();
+			SamReader sam = new SamReader(in);
+			try {
+				totalReads = readAlignments(sam, coverages, samWriter, mappingStage);
+			} finally {
+				sam.close();
+			}
+			if (samWriter != null) {
+				// samtools sorts while the coverage is calculated
+				samWriter.close();
+			}
+
+			// the ratio needs the read length, which is scanned while the mapper runs
+			getAverageReadLength();
+			evaluateCoverages(coverages, totalReads);
+		} catch (Exception e) {
+			if (sortPipeline != null) {
+				// a failed samtools explains the failure better, if it failed
+				sortPipeline.cancel();
+				sortPipeline.waitFor();
+			}
+			throw e;
+		}
+		if (sortPipeline != null) {
+			sortPipeline.waitFor();
+		}
+		if (totalReads == 0) {
+		    throw new Exception("Error: The mapping output has no mapped reads. Please check the "
+		        + "kallisto version. Please use kallisto 0.43.1.");
+		}
+		else {
+		    System.out.println("Processed " + totalReads + " mapped reads from the mapping output.");
+		}
+	}
+
+	// samtools sort writing bamFile from the sam written to getInput() of the pipeline
+	private ProcessPipeline newSortPipeline(String bamFile, int threads, String label, RunMetrics.Stage stage)
+			throws Exception {
+		ProcessPipeline pipeline = new ProcessPipeline(outDir + "/log.txt", stage);
+		pipeline.add("samtools sort" + label, getSortCommand(bamFile, false, threads));
+		pipeline.start(false);
+		return pipeline;
+	}
+
+	// calculate the ratio of all viruses in coverages, which is emptied on the way
+	private void evaluateCoverages(Map<String, CoverageCalculator> coverages, long totalReads) throws Exception {
+		RunMetrics.Stage stage = metrics.startStage("coverage");
+		stage.setReads(totalReads);
+		startRatioWorkers();
+		try {
+			Iterator<Entry<String, CoverageCalculator>> it = coverages.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry<String, CoverageCalculator> entry = it.next();
+				submitVirus(entry.getKey(), entry.getValue());
+				it.remove();
+			}
+			finishRatioWorkers();
+		} finally {
+			stopRatioWorkers();
+			stage.finish();
+		}
+	}
+
+	int getSortedAbundanceRatio() throws Exception {
+		// abundance.tsv: target_id, length, eff_length, est_counts, tpm
+		return writeSortedAbundance(outDir + "/abundance.tsv", 3);
+	}
+
+	int getSortedAbundanceRatioFromSalmon() throws Exception {
+		// quant.sf: Name, Length, EffectiveLength, TPM, NumReads
+		return writeSortedAbundance(outDir + "/quant.sf", 4);
+	}
+
+	/*
+	 * read the abundance file of kallisto/salmon in one pass, keeping only the
+	 * viruses that pass the ratio and number of reads criteria, and write them
+	 * sorted by estimated abundance (only the first topK, if it is set)
+	 */
+	private int writeSortedAbundance(String quantFile, int countColumn) throws Exception {
+		int[] passedIds = new int[64];
+		double[] passedCounts = new double[passedIds.length];
+		int numPassed = 0;
+		if (!new File(quantFile).isFile()) {
+			throw new Exception("Error: Could not find the abundance file " + quantFile + " of kallisto/salmon.");
+		}
+		BufferedReader br = new BufferedReader(new FileReader(quantFile));
 		try {
-			br = new BufferedReader(new FileReader(outDir + "/abundance.tsv"));
 			br.readLine();
 			String str = "";
 			while ((str = br.readLine()) != null) {
-				String[] results = str.split("\t");
-				double est_count = Double.parseDouble(results[3]);
-				if (est_count != 0.0) {
-					map.put(results[0], est_count);
+				int nameEnd = str.indexOf('\t');
+				int countStart = nameEnd;
+				for (int i = 1; i < countColumn && countStart >= 0; i++) {
+					countStart = str.indexOf('\t', countStart + 1);
+				}
+				if (nameEnd < 0 || countStart < 0) {
+					throw new Exception("Invalid line in " + quantFile + ": " + str);
+				}
+				int countEnd = str.indexOf('\t', countStart + 1);
+				double est_count;
+				try {
+					est_count = Double.parseDouble(str.substring(countStart + 1, countEnd < 0 ? str.length() : countEnd));
+				} catch (NumberFormatException e) {
+					throw new Exception("Invalid line in " + quantFile + ": " + str);
+				}
+				if (est_count == 0.0 || est_count < numReadsCriteria) {
+					continue;
+				}
+				String virusName = str.substring(0, nameEnd);
+				// viruses that are not in the catalog have no ratio
+				if (virusRatio.containsKey(virusName)) {
+					if (numPassed == passedIds.length) {
+						passedIds = Arrays.copyOf(passedIds, 2 * numPassed);
+						passedCounts = Arrays.copyOf(passedCounts, 2 * numPassed);
+					}
+					passedIds[numPassed] = catalog.getId(virusName);
+					passedCounts[numPassed] = est_count;
+					numPassed++;
 				}
 			}
+		} finally {
 			br.close();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
+		return writeSortedAbundance(passedIds, passedCounts, numPassed);
+	}
+
+	// the same for the counts estimated by the built-in mapper, without going through abundance.tsv
+	private int writeSortedAbundance(String[] names, double[] estimates) throws Exception {
+		int[] passedIds = new int[names.length];
+		double[] passedCounts = new double[names.length];
+		int numPassed = 0;
+		for (int ref = 0; ref < names.length; ref++) {
+			if (estimates[ref] == 0.0 || estimates[ref] < numReadsCriteria || !virusRatio.containsKey(names[ref])) {
+				continue;
+			}
+			passedIds[numPassed] = catalog.getId(names[ref]);
+			passedCounts[numPassed] = estimates[ref];
+			numPassed++;
+		}
+		return writeSortedAbundance(passedIds, passedCounts, numPassed);
+	}
 
-		map = sortByComparator(map, DESC);
+	/*
+	 * write the viruses that passed all criteria, given by catalog id and
+	 * count, sorted by estimated abundance (only the first topK, if it is
+	 * set); the abundances per rank are rolled up from all of them
+	 */
+	private int writeSortedAbundance(int[] ids, double[] counts, int numViruses) throws Exception {
+		AbundanceTable table = new AbundanceTable(catalog, topK);
+		for (int i = 0; i < numViruses; i++) {
+			table.add(ids[i], counts[i]);
+		}
+		table.sort();
 
 		// write in file
-		BufferedWriter bw = null;
+		BufferedWriter bw = new BufferedWriter(
+				new FileWriter(outDir + "/FastViromeExplorer-final-sorted-abundance.tsv"));
 		try {
-			bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-final-sorted-abundance.tsv"));
 			if (reportRatio) {
 			    bw.write(
 			        "#NCBIAccession\tName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\tSupport\tPredictedSupport\tRatio\n");
-			    for (Entry<String, Double> entry : map.entrySet()) {
-	                if (virusRatio.containsKey(entry.getKey()) && entry.getValue() >= numReadsCriteria) {
-	                    numFinalViruses++;
-	                    bw.write(entry.getKey() + "\t" + virusLineage.get(entry.getKey()) + "\t" + entry.getValue() + "\t" 
-	                        + virusRatio.get(entry.getKey()) + "\n");
-	                }
-	            }
 			}
 			else {
-        			bw.write(
-        					"#VirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\n");
-        			for (Entry<String, Double> entry : map.entrySet()) {
-        				if (virusRatio.containsKey(entry.getKey()) && entry.getValue() >= numReadsCriteria) {
-        					numFinalViruses++;
-        				    bw.write(entry.getKey() + "\t" + virusLineage.get(entry.getKey()) + "\t" + entry.getValue() + "\n");
-        				}
-        			}
+			    bw.write(
+			        "#VirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\n");
 			}
+			viruses = new ArrayList<VirusAbundance>();
+			for (int i = 0; i < table.size(); i++) {
+				int id = table.getId(i);
+				String virusName = catalog.getAccession(id);
+				double[] ratio = virusRatio.get(virusName);
+				viruses.add(new VirusAbundance(virusName, catalog.getName(id), catalog.getLineage(id),
+						table.getCount(i), ratio[0], ratio[1], ratio[2]));
+				bw.write(virusName + "\t" + catalog.getName(id) + "\t" + catalog.getLineage(id) + "\t" 
+						+ table.getCount(i));
+				if (reportRatio) {
+					bw.write("\t" + ratio[0] + "\t" + ratio[1] + "\t" + new DecimalFormat("##.####").format(ratio[2]));
+				}
+				bw.write("\n");
+			}
+		} finally {
 			bw.close();
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+		// all viruses passing the filters, not only the top K, keyed by catalog id for merging many samples
+		List<VirusAbundance> passed = new ArrayList<VirusAbundance>(numViruses);
+		for (int i = 0; i < numViruses; i++) {
+			String virusName = catalog.getAccession(ids[i]);
+			double[] ratio = virusRatio.get(virusName);
+			passed.add(new VirusAbundance(virusName, catalog.getName(ids[i]), catalog.getLineage(ids[i]), counts[i],
+					ratio[0], ratio[1], ratio[2]));
 		}
-		return numFinalViruses;
+		ResultFile.write(outDir + "/" + ResultFile.FILE_NAME, getSampleName(), catalog, avgReadLen, passed);
+		if (rollUpRanks.length > 0) {
+			writeRankAbundance(ids, counts, numViruses);
+		}
+		return table.size();
 	}
 
-	private static int getSortedAbundanceRatioFromSalmon() {
-	    int numFinalViruses = 0;
-		Map<String, Double> map = new HashMap<String, Double>();
-		BufferedReader br = null;
+	/*
+	 * write the abundances of the given viruses summed up per taxon of every
+	 * rank in rollUpRanks; the viruses are mapped to their taxa by catalog id
+	 * in the taxonomy tree of the catalog, without looking at their lineage
+	 * strings
+	 */
+	private void writeRankAbundance(int[] ids, double[] counts, int numViruses) throws Exception {
+		Taxonomy taxonomy = catalog.getTaxonomy();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-rank-abundance.tsv"));
 		try {
-			br = new BufferedReader(new FileReader(outDir + "/quant.sf"));
-			br.readLine();
-			String str = "";
-			while ((str = br.readLine()) != null) {
-				String[] results = str.split("\t");
-				double est_count = Double.parseDouble(results[4]);
-				if (est_count != 0.0) {
-					map.put(results[0], est_count);
+			bw.write("#Rank\tTaxon\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\tNumViruses\n");
+			for (int rank : rollUpRanks) {
+				Taxonomy.RankTotals totals = taxonomy.rollUp(ids, counts, numViruses, rank);
+				for (int i = 0; i < totals.size(); i++) {
+					int node = totals.getNode(i);
+					bw.write(Taxonomy.RANKS[rank] + "\t" + taxonomy.getName(node) + "\t" + taxonomy.getPath(node) + "\t"
+							+ totals.getTotal(i) + "\t" + totals.getNumViruses(i) + "\n");
 				}
 			}
-			br.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} finally {
+			bw.close();
 		}
+	}
 
-		map = sortByComparator(map, DESC);
+	// name of the output directory, which is named after the sample in batch mode
+	private String getSampleName() {
+		return String.valueOf(new File(outDir).getAbsoluteFile().toPath().normalize().getFileName());
+	}
 
-		// write in file
-		BufferedWriter bw = null;
+	public FastViromeExplorer(String[] args) {
+		this(RunConfig.fromArgs(args), null);
+	}
+
+	/*
+	 * a run with the given configuration; the catalog is read-only and can be
+	 * shared by runs on other threads, or null to load it from the virus list
+	 */
+	public FastViromeExplorer(RunConfig config, VirusCatalog catalog) {
+		this.config = config;
+		this.catalog = catalog;
+		outDir = config.getOutDir();
+		read1 = config.getRead1();
+		read2 = config.getRead2();
+		kallistoIndexFile = config.getIndexFile();
+		refDbFile = config.getRefDbFile();
+		virusListFile = config.getVirusListFile();
+		ratioCriteria = config.getRatioCriteria();
+		coverageCriteria = config.getCoverageCriteria();
+		numReadsCriteria = config.getNumReadsCriteria();
+		useSalmon = config.isUseSalmon();
+		reportRatio = config.isReportRatio();
+		builtinMapper = config.isBuiltinMapper();
+		// the built-in mapper passes its mappings on like a stream
+		streamMappings = config.isStreamMappings() || builtinMapper;
+		writeBam = config.isWriteBam();
+		sortedSam = config.isSortedSam();
+		numThreads = config.getNumThreads();
+		kmerSize = config.getKmerSize();
+		indexCacheDir = config.getIndexCacheDir();
+		indexCacheSize = config.getIndexCacheSize();
+		progressSeconds = config.getProgressSeconds();
+		topK = config.getTopK();
+		List<Integer> ranks = new ArrayList<Integer>();
+		for (String rank : config.getRollUpRanks().split(",")) {
+			if (!rank.trim().isEmpty()) {
+				ranks.add(Taxonomy.getRank(rank));
+			}
+		}
+		rollUpRanks = new int[ranks.size()];
+		for (int i = 0; i < rollUpRanks.length; i++) {
+			rollUpRanks[i] = ranks.get(i);
+		}
+		resume = config.isResume();
+		subsampleTop = config.getSubsampleTop();
+		subsampleTolerance = config.getSubsampleTolerance();
+		subsampleStart = config.getSubsampleStart();
+		numShards = config.getNumShards();
+		sortMemory = config.getSortMemory();
+		depthBin = config.getDepthBin();
+		readBuffers = new ReadBufferPool((long) (config.getCoverageMemory() * 1024 * 1024),
+				outDir + "/FastViromeExplorer-reads.spill", 4096);
+		if (depthBin > 0) {
+			depthProfiles = new ConcurrentHashMap<String, DepthProfile>();
+		}
+	}
+
+	public RunConfig getConfig() {
+		return config;
+	}
+
+	// the average read length is normally scanned from the read files; set directly by the benchmarks
+	void setAverageReadLength(double avgReadLen) {
+		this.avgReadLen = avgReadLen;
+	}
+
+	public String getOutDir() {
+		return outDir;
+	}
+
+	public boolean isStreamMappings() {
+		return streamMappings;
+	}
+
+	private String getReadsFingerprint() throws Exception {
+		return Checkpoints.fingerprint(Checkpoints.fileStamp(read1), Checkpoints.fileStamp(read2));
+	}
+
+	// inputs, tool versions and parameters of the mapping
+	private String getMappingFingerprint() throws Exception {
+		if (mappingFingerprint == null) {
+			String mapperVersion = builtinMapper ? "builtin"
+					: useSalmon ? IndexCache.getToolVersion(Arrays.asList("salmon", "--version"))
+					: IndexCache.getToolVersion(Arrays.asList("kallisto", "version"));
+			String samtoolsVersion = streamMappings && !writeBam ? ""
+					: IndexCache.getToolVersion(Arrays.asList("samtools", "--version"));
+			String index = kallistoIndexFile.isEmpty() ? "db=" + Checkpoints.fileStamp(refDbFile) + " k=" + kmerSize
+					: "index=" + Checkpoints.fileStamp(kallistoIndexFile);
+			mappingFingerprint = Checkpoints.fingerprint(getReadsFingerprint(), index, mapperVersion, samtoolsVersion,
+					"salmon=" + useSalmon, "builtin=" + builtinMapper, "stream=" + streamMappings, "writeBam=" + writeBam,
+					"sam=" + sortedSam,
+					"subsample=" + subsampleTop + "," + subsampleTolerance + "," + subsampleStart,
+					"shards=" + (subsampleTop > 0 ? 1 : numShards));
+		}
+		return mappingFingerprint;
+	}
+
+	// the coverage summary does not depend on the filtering criteria, so they can change without a new checkpoint
+	private String getCoverageFingerprint() throws Exception {
+		return Checkpoints.fingerprint(getMappingFingerprint(), Double.toString(avgReadLen),
+				Checkpoints.fileStamp(virusListFile), "depthBin=" + depthBin);
+	}
+
+	private String getSortedMappingsFile() {
+		return outDir + (sortedSam ? "/FastViromeExplorer-reads-mapped-sorted.sam"
+				: "/FastViromeExplorer-reads-mapped-sorted.bam");
+	}
+
+	private String getQuantFile() {
+		return outDir + (useSalmon ? "/quant.sf" : "/abundance.tsv");
+	}
+
+	// whether the mapping of an earlier run can be used: its outputs exist and, unless the coverage
+	// summary is still valid, the sorted mappings needed to calculate it again are there
+	private boolean canSkipMapping() throws Exception {
+		if (checkpoints.get("mapping", getMappingFingerprint()) == null || !new File(getQuantFile()).isFile()) {
+			return false;
+		}
+		if (!streamMappings && subsampleTop == 0 && new File(getSortedMappingsFile()).isFile()) {
+			return true;
+		}
+		// the coverage fingerprint needs the read length, which is only known here if it was checkpointed
+		return avgReadLen != 0 && hasCoverageSummary();
+	}
+
+	// run the mapper; in streaming mode this also calculates the ratio
+	public void mapReads() throws Exception {
+		metrics.startProgress(progressSeconds, new File(outDir).getName());
+		if (resume) {
+			checkpoints = new Checkpoints(outDir + "/FastViromeExplorer-checkpoints.tsv");
+			String value = checkpoints.get("readLengthScan", getReadsFingerprint());
+			// the value is the mean read length and the number of input reads
+			if (value != null && value.indexOf(',') > 0
+					&& new File(outDir + "/FastViromeExplorer-read-stats.tsv").isFile()) {
+				avgReadLen = Double.parseDouble(value.substring(0, value.indexOf(',')));
+				numInputReads = Long.parseLong(value.substring(value.indexOf(',') + 1));
+				System.out.println("Using the read length scan of an earlier run.");
+			}
+		}
+		// also when the mapping is reused, as the ratio needs the read length
+		if (avgReadLen == 0) {
+			startReadStats();
+		}
+		if (resume) {
+			if (canSkipMapping()) {
+				System.out.println("Using the mapping of an earlier run.");
+				return;
+			}
+			checkpoints.remove("mapping");
+			checkpoints.remove("coverage");
+		}
+		if (streamMappings || subsampleTop > 0) {
+			// the ratio is calculated from the mapper output, so genome lengths are needed first
+			getVirusLength();
+		}
 		try {
-			bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-final-sorted-abundance.tsv"));
-			if (reportRatio) {
-                bw.write(
-                    "#NCBIAccession\tName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\tSupport\tPredictedSupport\tRatio\n");
-                for (Entry<String, Double> entry : map.entrySet()) {
-                    if (virusRatio.containsKey(entry.getKey()) && entry.getValue() >= numReadsCriteria) {
-                        numFinalViruses++;
-                        bw.write(entry.getKey() + "\t" + virusLineage.get(entry.getKey()) + "\t" + entry.getValue() + "\t" 
-                            + virusRatio.get(entry.getKey()) + "\n");
-                    }
-                }
-            }
-            else {
-                bw.write(
-                        "#VirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance\n");
-                for (Entry<String, Double> entry : map.entrySet()) {
-                    if (virusRatio.containsKey(entry.getKey()) && entry.getValue() >= numReadsCriteria) {
-                        numFinalViruses++;
-                        bw.write(entry.getKey() + "\t" + virusLineage.get(entry.getKey()) + "\t" + entry.getValue() + "\n");
-                    }
-                }
-            }
-			bw.close();
+			if (builtinMapper) {
+				mapBuiltin();
+			} else if (subsampleTop > 0) {
+				mapInIncrements();
+			} else if (numShards > 1) {
+				mapInShards();
+			} else {
+				runMapper();
+			}
+		} finally {
+			if (indexLease != null) {
+				indexLease.close();
+				indexLease = null;
+			}
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+		if (checkpoints != null) {
+			checkpoints.put("mapping", getMappingFingerprint(), "");
+			if (streamMappings || subsampleTop > 0) {
+				writeCoverageSummary();
+			}
 		}
-		return numFinalViruses;
 	}
 
-	public static void main(String[] args) {
-		parseArguments(args);
-		checkInputs();
-		System.out.println("Finished parsing inputs.");
-		if (useSalmon) {
-			callSalmon();
-		} else {
-			callKallisto();
+	/*
+	 * split the reads into numShards parts and map them with as many
+	 * kallisto/salmon processes at once. The reads are dealt out to the shards
+	 * through named pipes while the mappers run, so nothing is copied to disk
+	 * and every mapper starts at once. The counts of the shards are summed
+	 * into one abundance file and their sorted mappings are merged into one
+	 * file; when streaming, their mappings are collected into one coverage per
+	 * virus instead. When a shard fails, the others are stopped.
+	 */
+	private void mapInShards() throws Exception {
+		RunMetrics.Stage stage = metrics.startStage("mapping");
+		String[] shardDirs = new String[numShards];
+		String[] shards1 = new String[numShards];
+		String[] shards2 = new String[numShards];
+		for (int i = 0; i < numShards; i++) {
+			shardDirs[i] = outDir + "/shards/" + (i + 1);
+			new File(shardDirs[i]).mkdirs();
+			shards1[i] = shardDirs[i] + "/reads_1.fastq";
+			shards2[i] = read2.isEmpty() ? "" : shardDirs[i] + "/reads_2.fastq";
+		}
+
+		List<Map<String, CoverageCalculator>> shardCoverages = new ArrayList<Map<String, CoverageCalculator>>();
+		List<ProcessPipeline> pipelines = new ArrayList<ProcessPipeline>();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		AtomicLong totalReads = new AtomicLong();
+		// the threads of the mapper and samtools are shared by the shards
+		int threads = Math.max(numThreads / numShards, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(numShards + 1);
+		try {
+			makePipes(shards1, shards2);
+			for (int i = 0; i < numShards; i++) {
+				String label = " shard " + (i + 1);
+				ProcessPipeline pipeline = newMappingPipeline(shards1[i], shards2[i], shardDirs[i],
+						shardDirs[i] + "/sorted.bam", false, threads, label, stage);
+				pipeline.start(streamMappings);
+				pipelines.add(pipeline);
+				shardCoverages.add(new LinkedHashMap<String, CoverageCalculator>());
+				ProcessPipeline sortPipeline = streamMappings && writeBam
+						? newSortPipeline(shardDirs[i] + "/sorted.bam", threads, label, stage) : null;
+				if (sortPipeline != null) {
+					pipelines.add(sortPipeline);
+				}
+				results.add(executor.submit(newShardTask(pipeline, sortPipeline, shardCoverages.get(i),
+						totalReads, stage)));
+			}
+			Future<?> split = executor.submit(newSplitTask(shards1, shards2));
+			for (Future<?> result : results) {
+				result.get();
+			}
+			split.get();
+		} catch (Exception e) {
+			// stop the other shards
+			for (ProcessPipeline pipeline : pipelines) {
+				pipeline.cancel();
+			}
+			throw e instanceof ExecutionException ? new Exception(e.getCause().getMessage(), e.getCause()) : e;
+		} finally {
+			// after a failure the splitting may wait for a pipe whose mapper is gone
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				releasePipes(shards1, shards2);
+			}
+			for (int i = 0; i < numShards; i++) {
+				new File(shards1[i]).delete();
+				new File(shards2[i]).delete();
+			}
+		}
+
+		Map<String, String[]> quantLines = new LinkedHashMap<String, String[]>();
+		Map<String, double[]> counts = new LinkedHashMap<String, double[]>();
+		String quantHeader = null;
+		for (String shardDir : shardDirs) {
+			quantHeader = addCounts(shardDir + (useSalmon ? "/quant.sf" : "/abundance.tsv"), quantLines, counts);
+		}
+		writeCounts(getQuantFile(), quantHeader, quantLines, counts);
+
+		if (!streamMappings || writeBam) {
+			List<String> command = new ArrayList<String>(
+					Arrays.asList("samtools", "merge", "-f", "-@", Integer.toString(numThreads)));
+			if (sortedSam && !streamMappings) {
+				command.add("-O");
+				command.add("SAM");
+			}
+			command.add(streamMappings ? outDir + "/FastViromeExplorer-reads-mapped-sorted.bam" 
+					: getSortedMappingsFile());
+			for (String shardDir : shardDirs) {
+				command.add(shardDir + "/sorted.bam");
+			}
+			ProcessPipeline pipeline = new ProcessPipeline(outDir + "/log.txt", stage).add("samtools merge", command);
+			pipeline.start(false);
+			pipeline.waitFor();
+		}
+		stage.finish();
+		if (!streamMappings) {
+			return;
+		}
+
+		// the reads of a virus from all shards
+		Map<String, CoverageCalculator> coverages = shardCoverages.get(0);
+		for (int i = 1; i < numShards; i++) {
+			for (Entry<String, CoverageCalculator> entry : shardCoverages.get(i).entrySet()) {
+				CoverageCalculator coverage = coverages.get(entry.getKey());
+				if (coverage == null) {
+					coverages.put(entry.getKey(), entry.getValue());
+				} else {
+					coverage.addReads(entry.getValue());
+					entry.getValue().release();
+				}
+			}
+			shardCoverages.get(i).clear();
+		}
+		if (totalReads.get() == 0) {
+			throw new Exception("Error: The mapping output has no mapped reads. Please check the "
+					+ "kallisto version. Please use kallisto 0.43.1.");
 		}
 		getAverageReadLength();
-		getVirusLength();
-		getRatio();
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		evaluateCoverages(coverages, totalReads.get());
+		System.out.println("Processed " + totalReads + " mapped reads from the mapping output of " + numShards
+				+ " shards.");
+	}
+
+	// create the named pipes the reads of the shards are passed through
+	private static void makePipes(String[] files1, String[] files2) throws Exception {
+		List<String> command = new ArrayList<String>(Arrays.asList("mkfifo"));
+		for (int i = 0; i < files1.length; i++) {
+			new File(files1[i]).delete();
+			command.add(files1[i]);
+			if (!files2[i].isEmpty()) {
+				new File(files2[i]).delete();
+				command.add(files2[i]);
+			}
+		}
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		process.getInputStream().close();
+		if (process.waitFor() != 0) {
+			throw new Exception("Error: Could not create the named pipes of the shards with mkfifo.");
+		}
+	}
+
+	/*
+	 * open and close every pipe at both ends, so neither the splitting nor a
+	 * mapper waits for the other end of a pipe that will never be opened
+	 */
+	private static void releasePipes(String[] files1, String[] files2) {
+		for (int i = 0; i < files1.length; i++) {
+			for (String file : new String[] { files1[i], files2[i] }) {
+				if (!file.isEmpty() && new File(file).exists()) {
+					try {
+						new RandomAccessFile(file, "rw").close();
+					} catch (Exception e) {
+						// the pipe is gone already
+					}
+				}
+			}
+		}
+	}
+
+	// deal the reads out to the pipes of the shards
+	private Callable<Void> newSplitTask(final String[] files1, final String[] files2) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				try {
+					FastqChunker chunker = new FastqChunker(read1, read2);
+					try {
+						chunker.split(files1, files2);
+					} finally {
+						chunker.close();
+					}
+				} catch (Exception e) {
+					// the mappers still waiting to open their pipes get empty input and finish
+					releasePipes(files1, files2);
+					throw e;
+				}
+				return null;
+			}
+		};
+	}
+
+	// wait for the mapping of one shard and, when streaming, collect its mappings in coverages
+	private Callable<Void> newShardTask(final ProcessPipeline pipeline, final ProcessPipeline sortPipeline,
+			final Map<String, CoverageCalculator> coverages, final AtomicLong totalReads,
+			final RunMetrics.Stage stage) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				if (streamMappings) {
+					OutputStream samWriter = sortPipeline == null ? null
+							: new BufferedOutputStream(sortPipeline.getInput(), 1 << 16);
+					SamReader sam = new SamReader(pipeline.getOutput());
+					try {
+						totalReads.addAndGet(readAlignments(sam, coverages, samWriter, stage));
+					} catch (Exception e) {
+						pipeline.cancel();
+						pipeline.waitFor();
+						throw e;
+					}
+					sam.close();
+					if (samWriter != null) {
+						samWriter.close();
+						sortPipeline.waitFor();
+					}
+				}
+				pipeline.waitFor();
+				return null;
+			}
+		};
+	}
+
+	/*
+	 * map the reads in increments, starting with subsampleStart reads and
+	 * doubling each time, and stop once the subsampleTop most abundant
+	 * viruses stay the same and their relative abundances change by at most
+	 * subsampleTolerance between two increments. The mappings and the counts
+	 * of all increments are added up, so the rest of the run sees them as the
+	 * mapping of the reads used.
+	 */
+	private void mapInIncrements() throws Exception {
+		RunMetrics.Stage stage = metrics.startStage("mapping");
+		String incrementDir = outDir + "/subsample";
+		new File(incrementDir).mkdirs();
+		String chunk1 = incrementDir + "/reads_1.fastq";
+		String chunk2 = read2.isEmpty() ? "" : incrementDir + "/reads_2.fastq";
+		String quantFile = incrementDir + (useSalmon ? "/quant.sf" : "/abundance.tsv");
+		Map<String, CoverageCalculator> coverages = new LinkedHashMap<String, CoverageCalculator>();
+		// columns of the abundance file and the summed count of each target
+		Map<String, String[]> quantLines = new LinkedHashMap<String, String[]>();
+		Map<String, double[]> counts = new LinkedHashMap<String, double[]>();
+		String quantHeader = null;
+		List<Long> roundReads = new ArrayList<Long>();
+		List<String> rounds = new ArrayList<String>();
+		Map<String, Double> prevTop = null;
+		long totalReads = 0;
+		long increment = subsampleStart;
+		boolean stable = false;
+		FastqChunker chunker = new FastqChunker(read1, read2);
+		try {
+			while (!stable && !chunker.isExhausted()) {
+				if (chunker.nextChunk(increment, chunk1, chunk2) == 0) {
+					break;
+				}
+				ProcessPipeline pipeline = new ProcessPipeline(outDir + "/log.txt", stage);
+				pipeline.add((useSalmon ? "salmon quant" : "kallisto quant") + " increment " + (rounds.size() + 1),
+						getMapperCommand(chunk1, chunk2, incrementDir, numThreads));
+				pipeline.start(true);
+				SamReader sam = new SamReader(pipeline.getOutput());
+				try {
+					totalReads += readAlignments(sam, coverages, null, stage);
+				} catch (Exception e) {
+					pipeline.cancel();
+					pipeline.waitFor();
+					throw e;
+				}
+				sam.close();
+				pipeline.waitFor();
+				quantHeader = addCounts(quantFile, quantLines, counts);
+
+				Map<String, Double> top = getTopViruses(coverages, counts, chunker.getMeanLength());
+				double maxChange = 0;
+				for (Entry<String, Double> entry : top.entrySet()) {
+					Double prev = prevTop == null ? null : prevTop.get(entry.getKey());
+					maxChange = Math.max(maxChange, Math.abs(entry.getValue() - (prev == null ? 0 : prev)));
+				}
+				stable = prevTop != null && !top.isEmpty() && top.keySet().equals(prevTop.keySet())
+						&& maxChange <= subsampleTolerance;
+				roundReads.add(chunker.getNumReads());
+				rounds.add(String.join(",", top.keySet()) + "\t"
+						+ (prevTop == null ? "" : new DecimalFormat("0.####").format(maxChange)) + "\t" + stable);
+				prevTop = top;
+				increment *= 2;
+			}
+		} finally {
+			chunker.close();
+			new File(chunk1).delete();
+			new File(chunk2).delete();
+		}
+		stage.setReads(totalReads);
+		stage.finish();
+		if (totalReads == 0) {
+			throw new Exception("Error: The mapping output has no mapped reads. Please check the "
+					+ "kallisto version. Please use kallisto 0.43.1.");
+		}
+		writeCounts(getQuantFile(), quantHeader, quantLines, counts);
+
+		getAverageReadLength();
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		evaluateCoverages(coverages, totalReads);
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-subsample.tsv"));
+		bw.write("#Increment\tNumReads\tFractionOfReads\tTopViruses\tMaxChange\tStable\n");
+		for (int i = 0; i < rounds.size(); i++) {
+			String fraction = numInputReads == 0 ? "" 
+					: new DecimalFormat("0.####").format((double) roundReads.get(i) / numInputReads);
+			bw.write((i + 1) + "\t" + roundReads.get(i) + "\t" + fraction + "\t" + rounds.get(i) + "\n");
+		}
+		bw.close();
+		long usedReads = roundReads.get(roundReads.size() - 1);
+		System.out.println("Used " + usedReads + (numInputReads == 0 ? "" : " of " + numInputReads)
+				+ " reads in " + rounds.size() + " increments; the top viruses were "
+				+ (stable ? "stable." : "not stable before all reads were used."));
+		System.out.println("Processed " + totalReads + " mapped reads from the mapping output.");
+	}
+
+	// add the counts of an abundance file of kallisto/salmon to counts and return its header
+	private String addCounts(String quantFile, Map<String, String[]> quantLines, Map<String, double[]> counts)
+			throws Exception {
+		int countColumn = useSalmon ? 4 : 3;
+		BufferedReader br = new BufferedReader(new FileReader(quantFile));
+		String header = br.readLine();
+		String str = "";
+		while ((str = br.readLine()) != null) {
+			String[] results = str.split("\t");
+			double[] count = counts.get(results[0]);
+			if (count == null) {
+				quantLines.put(results[0], results);
+				counts.put(results[0], new double[] { Double.parseDouble(results[countColumn]) });
+			} else {
+				count[0] += Double.parseDouble(results[countColumn]);
+			}
+		}
+		br.close();
+		return header;
+	}
+
+	// write the summed counts in the format of kallisto/salmon, with the tpm calculated from them
+	private void writeCounts(String quantFile, String header, Map<String, String[]> quantLines,
+			Map<String, double[]> counts) throws Exception {
+		int countColumn = useSalmon ? 4 : 3;
+		int tpmColumn = useSalmon ? 3 : 4;
+		double totalRate = 0;
+		for (Entry<String, String[]> entry : quantLines.entrySet()) {
+			double effLen = Double.parseDouble(entry.getValue()[2]);
+			if (effLen > 0) {
+				totalRate += counts.get(entry.getKey())[0] / effLen;
+			}
+		}
+		BufferedWriter bw = new BufferedWriter(new FileWriter(quantFile));
+		bw.write(header + "\n");
+		for (Entry<String, String[]> entry : quantLines.entrySet()) {
+			String[] results = entry.getValue();
+			double count = counts.get(entry.getKey())[0];
+			double effLen = Double.parseDouble(results[2]);
+			results[countColumn] = Double.toString(count);
+			results[tpmColumn] = Double.toString(effLen > 0 && totalRate > 0 ? count / effLen / totalRate * 1e6 : 0);
+			bw.write(String.join("\t", results) + "\n");
+		}
+		bw.close();
+	}
+
+	// relative abundance of the subsampleTop most abundant viruses that pass all criteria on the reads mapped so far
+	private Map<String, Double> getTopViruses(Map<String, CoverageCalculator> coverages, Map<String, double[]> counts,
+			double readLen) {
+		AbundanceTable table = new AbundanceTable(catalog, subsampleTop);
+		double totalCount = 0;
+		for (Entry<String, double[]> entry : counts.entrySet()) {
+			double count = entry.getValue()[0];
+			CoverageCalculator coverage = coverages.get(entry.getKey());
+			int id = catalog.getId(entry.getKey());
+			if (count == 0.0 || count < numReadsCriteria || coverage == null || id < 0) {
+				continue;
+			}
+			coverage.compute(catalog.getLength(id));
+			if (passesCriteria(getSupportRatio(coverage.getNumReads(), coverage.getCoveredBps(),
+					catalog.getLength(id), readLen))) {
+				table.add(id, count);
+				totalCount += count;
+			}
+		}
+		table.sort();
+		Map<String, Double> top = new LinkedHashMap<String, Double>();
+		for (int i = 0; i < table.size(); i++) {
+			top.put(catalog.getAccession(table.getId(i)), table.getCount(i) / totalCount);
+		}
+		return top;
+	}
+
+	public void calculateRatio() throws Exception {
+		boolean reused = false;
+		// unless already calculated from the streamed mappings
+		if (virusRatio == null) {
+			getAverageReadLength();
+			getVirusLength();
+			reused = readCoverageSummary();
+			if (!reused) {
+				getRatio();
+				if (checkpoints != null) {
+					writeCoverageSummary();
+				}
+			}
+		}
+		if (!reused) {
+			writeDepthProfiles();
+		}
+		if (readBuffers.getSpilledBytes() > 0) {
+			System.out.println("Spilled " + String.format("%.1f", readBuffers.getSpilledBytes() / (1024.0 * 1024))
+					+ " MB of reads beyond the coverage memory budget to disk.");
+		}
+		readBuffers.close();
+	}
+
+	/*
+	 * write the binned depth of the viruses as bedGraph and their depth
+	 * statistics, with -depthBin only; not called when the coverage of an
+	 * earlier run was reused, as its files are still there
+	 */
+	private void writeDepthProfiles() throws Exception {
+		if (depthProfiles == null) {
+			return;
+		}
+		Map<String, DepthProfile> sorted = new TreeMap<String, DepthProfile>(depthProfiles);
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-depth.bedGraph"));
+		bw.write("track type=bedGraph name=FastViromeExplorer-depth description=\"mean depth in bins of " 
+				+ depthBin + " bases\"\n");
+		for (Entry<String, DepthProfile> entry : sorted.entrySet()) {
+			entry.getValue().writeBins(bw, entry.getKey(), depthBin);
+		}
+		bw.close();
+
+		DecimalFormat format = new DecimalFormat("0.####");
+		bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-depth-stats.tsv"));
+		bw.write("#VirusIdentifier\tGenomeLength\tMeanDepth\tMedianDepth\tEvenness\n");
+		for (Entry<String, DepthProfile> entry : sorted.entrySet()) {
+			DepthProfile profile = entry.getValue();
+			bw.write(entry.getKey() + "\t" + profile.getGenomeLen() + "\t" + format.format(profile.getMeanDepth())
+					+ "\t" + profile.getMedianDepth() + "\t" + format.format(profile.getEvenness()) + "\n");
+		}
+		bw.close();
+	}
+
+	// write the coverage summary and its checkpoint
+	private void writeCoverageSummary() throws Exception {
+		Map<String, String> sorted = new TreeMap<String, String>(coverageSummary);
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outDir + "/FastViromeExplorer-coverage-summary.tsv"));
+		bw.write("#VirusIdentifier\tNumReads\tCoveredBases\tGenomeLength\n");
+		for (Entry<String, String> entry : sorted.entrySet()) {
+			bw.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+		}
+		bw.close();
+		checkpoints.put("coverage", getCoverageFingerprint(), "");
+	}
+
+	// whether the coverage of an earlier run is still valid and its files, with the depth files of -depthBin, are there
+	private boolean hasCoverageSummary() throws Exception {
+		return checkpoints != null && checkpoints.get("coverage", getCoverageFingerprint()) != null
+				&& new File(outDir + "/FastViromeExplorer-coverage-summary.tsv").isFile()
+				&& (depthBin <= 0 || new File(outDir + "/FastViromeExplorer-depth.bedGraph").isFile()
+						&& new File(outDir + "/FastViromeExplorer-depth-stats.tsv").isFile());
+	}
+
+	// apply the current criteria to the coverage summary of an earlier run, if it is still valid
+	private boolean readCoverageSummary() throws Exception {
+		if (!hasCoverageSummary()) {
+			return false;
+		}
+		File summaryFile = new File(outDir + "/FastViromeExplorer-coverage-summary.tsv");
+		virusRatio = new ConcurrentHashMap<String, double[]>();
+		coverageSummary = new ConcurrentHashMap<String, String>();
+		BufferedReader br = new BufferedReader(new FileReader(summaryFile));
+		String str = "";
+		while ((str = br.readLine()) != null) {
+			if (str.startsWith("#")) {
+				continue;
+			}
+			String[] results = str.split("\t");
+			coverageSummary.put(results[0], results[1] + "\t" + results[2] + "\t" + results[3]);
+			filterVirus(results[0], Long.parseLong(results[1]), Long.parseLong(results[2]),
+					Integer.parseInt(results[3]));
+		}
+		br.close();
+		System.out.println("Filtered " + coverageSummary.size() + " viruses from the coverage summary of an earlier run.");
+		return true;
+	}
+
+	// write the final abundance file and return the number of viruses in it
+	public int writeAbundance() throws Exception {
+		RunMetrics.Stage stage = metrics.startStage("abundance");
 		int numFinalViruses = 0;
-		if (useSalmon) {
+		if (estimatedCounts != null) {
+			numFinalViruses = writeSortedAbundance(estimatedNames, estimatedCounts);
+		} else if (useSalmon) {
+			stage.addBytes(new File(outDir + "/quant.sf").length());
 			numFinalViruses = getSortedAbundanceRatioFromSalmon();
 		} else {
+			stage.addBytes(new File(outDir + "/abundance.tsv").length());
 			numFinalViruses = getSortedAbundanceRatio();
 		}
+		stage.finish();
+		return numFinalViruses;
+	}
+
+	/*
+	 * run all stages and return the result; the output files are written as
+	 * well. Runs do not share any mutable state, so several of them can run
+	 * on different threads of the same JVM.
+	 */
+	public ProfilingResult run() throws Exception {
+		try {
+			checkInputs();
+			new File(outDir).mkdirs();
+			System.out.println("Finished parsing inputs.");
+			mapReads();
+			calculateRatio();
+			writeAbundance();
+		} finally {
+			writeMetrics();
+		}
+		return getResult();
+	}
+
+	// the viruses written by writeAbundance()
+	public ProfilingResult getResult() {
+		return new ProfilingResult(outDir, avgReadLen, viruses);
+	}
+
+	// write the timing, throughput and memory of the stages run so far
+	public void writeMetrics() {
+		metrics.stopProgress();
+		if (!new File(outDir).isDirectory()) {
+			return;
+		}
+		try {
+			metrics.write(outDir + "/FastViromeExplorer-metrics.json");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		for (String arg : args) {
+			if (arg.equals("-batch")) {
+				BatchRunner.main(args);
+				return;
+			}
+			if (arg.equals("-server")) {
+				ProfilingServer.main(args);
+				return;
+			}
+			if (arg.equals("-merge")) {
+				CohortMerger.main(args);
+				return;
+			}
+		}
+		FastViromeExplorer explorer = null;
+		try {
+			explorer = new FastViromeExplorer(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+		int numFinalViruses = 0;
+		try {
+			numFinalViruses = explorer.run().getNumViruses();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
 		if (numFinalViruses == 0) {
 		    System.out.println("None of the viruses in the given database passed all the 3 filtering criteria. "
 		        + "So the output file FastViromeExplorer-final-sorted-abundance.tsv is empty. "
@@ -0,0 +1,139 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Cuts the reads of a sample into consecutive chunks, written as plain fastq
+ * files, for mapping a sample in increments, or deals them out to shards
+ * that are mapped in parallel, usually through named pipes read by the
+ * mappers. Both mates are read in step, so a chunk or
+ * shard of paired-end reads holds the same pairs in both files.
+ */
+public class FastqChunker {
+	private final BufferedReader reader1;
+	private final BufferedReader reader2;
+	private long numReads = 0;
+	private long numBases = 0;
+	private boolean exhausted = false;
+
+	// read2 is empty for single-end reads
+	public FastqChunker(String read1, String read2) throws IOException {
+		reader1 = open(read1);
+		reader2 = read2.isEmpty() ? null : open(read2);
+	}
+
+	private static BufferedReader open(String fileName) throws IOException {
+		return new BufferedReader(new InputStreamReader(FastqStats.open(fileName), StandardCharsets.US_ASCII),
+				1 << 16);
+	}
+
+	/*
+	 * write the next maxReads reads (pairs) to chunk1 and chunk2 and return how
+	 * many were written, 0 when all reads have been used
+	 */
+	public long nextChunk(long maxReads, String chunk1, String chunk2) throws IOException {
+		OutputStream out1 = new BufferedOutputStream(new FileOutputStream(chunk1), 1 << 16);
+		OutputStream out2 = reader2 == null ? null : new BufferedOutputStream(new FileOutputStream(chunk2), 1 << 16);
+		long n = 0;
+		try {
+			while (n < maxReads && !exhausted) {
+				if (!copyRecord(reader1, out1) || (reader2 != null && !copyRecord(reader2, out2))) {
+					exhausted = true;
+					break;
+				}
+				n++;
+			}
+		} finally {
+			out1.close();
+			if (out2 != null) {
+				out2.close();
+			}
+		}
+		numReads += n;
+		return n;
+	}
+
+	/*
+	 * deal the remaining reads (pairs) out to the shards in turn, so every
+	 * shard gets the same number of reads give or take one, and return how
+	 * many were written; files2 is not used for single-end reads
+	 */
+	public long split(String[] files1, String[] files2) throws IOException {
+		OutputStream[] out1 = new OutputStream[files1.length];
+		OutputStream[] out2 = new OutputStream[files1.length];
+		long n = 0;
+		try {
+			for (int i = 0; i < files1.length; i++) {
+				out1[i] = new BufferedOutputStream(new FileOutputStream(files1[i]), 1 << 16);
+				if (reader2 != null) {
+					out2[i] = new BufferedOutputStream(new FileOutputStream(files2[i]), 1 << 16);
+				}
+			}
+			while (!exhausted) {
+				int shard = (int) (n % files1.length);
+				if (!copyRecord(reader1, out1[shard]) || (reader2 != null && !copyRecord(reader2, out2[shard]))) {
+					exhausted = true;
+					break;
+				}
+				n++;
+			}
+		} finally {
+			for (int i = 0; i < files1.length; i++) {
+				if (out1[i] != null) {
+					out1[i].close();
+				}
+				if (out2[i] != null) {
+					out2[i].close();
+				}
+			}
+		}
+		numReads += n;
+		return n;
+	}
+
+	// copy one 4-line record; false at the end of the file
+	private boolean copyRecord(BufferedReader reader, OutputStream out) throws IOException {
+		String header = reader.readLine();
+		while (header != null && header.isEmpty()) {
+			header = reader.readLine();
+		}
+		if (header == null) {
+			return false;
+		}
+		String seq = reader.readLine();
+		String plus = reader.readLine();
+		String qual = reader.readLine();
+		if (seq == null || plus == null || qual == null) {
+			throw new IOException("Truncated fastq record: " + header);
+		}
+		numBases += seq.length();
+		out.write((header + "\n" + seq + "\n" + plus + "\n" + qual + "\n").getBytes(StandardCharsets.US_ASCII));
+		return true;
+	}
+
+	// reads (pairs) written so far
+	public long getNumReads() {
+		return numReads;
+	}
+
+	// mean length of the reads written so far, over both mates
+	public double getMeanLength() {
+		long numSeqs = reader2 == null ? numReads : 2 * numReads;
+		return numSeqs == 0 ? 0 : (double) numBases / numSeqs;
+	}
+
+	public boolean isExhausted() {
+		return exhausted;
+	}
+
+	public void close() throws IOException {
+		reader1.close();
+		if (reader2 != null) {
+			reader2.close();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Read count and read length statistics of one fastq file, collected by a
+ * byte-level scan. For .gz files the decompression runs on its own thread and
+ * hands filled buffers to the scanning thread, so inflating and parsing
+ * overlap.
+ */
+public class FastqStats {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int QUEUED_BUFFERS = 16;
+
+	private final String fileName;
+	private long numReads = 0;
+	private long numBases = 0;
+	// lengthCounts[len] = number of reads of length len
+	private long[] lengthCounts = new long[512];
+
+	private FastqStats(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public static FastqStats scan(String fileName) throws IOException {
+		FastqStats stats = new FastqStats(fileName);
+		InputStream in = open(fileName);
+		try {
+			stats.scan(in);
+		} finally {
+			in.close();
+		}
+		return stats;
+	}
+
+	// the content of a read file; gzip files are inflated on a separate thread
+	static InputStream open(String fileName) throws IOException {
+		InputStream in = new FileInputStream(fileName);
+		if (fileName.endsWith(".gz")) {
+			in = new InflaterThreadStream(new GZIPInputStream(in, BUFFER_SIZE));
+		}
+		return in;
+	}
+
+	private void scan(InputStream in) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		int lineInRecord = 0;
+		int lineLen = 0;
+		byte last = 0;
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) > 0) {
+			for (int i = 0; i < n; i++) {
+				byte b = buf[i];
+				if (b == '\n') {
+					if (lineInRecord == 1) {
+						addRead(last == '\r' ? lineLen - 1 : lineLen);
+					}
+					lineInRecord = (lineInRecord + 1) & 3;
+					lineLen = 0;
+				} else {
+					lineLen++;
+				}
+				last = b;
+			}
+		}
+		// sequence line without a trailing newline
+		if (lineInRecord == 1 && lineLen > 0) {
+			addRead(last == '\r' ? lineLen - 1 : lineLen);
+		}
+	}
+
+	private void addRead(int len) {
+		if (len >= lengthCounts.length) {
+			lengthCounts = Arrays.copyOf(lengthCounts, Math.max(len + 1, lengthCounts.length * 2));
+		}
+		lengthCounts[len]++;
+		numReads++;
+		numBases += len;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getNumReads() {
+		return numReads;
+	}
+
+	public long getNumBases() {
+		return numBases;
+	}
+
+	public double getMeanLength() {
+		if (numReads == 0) {
+			return 0.0;
+		}
+		return (double) numBases / numReads;
+	}
+
+	// read length such that reads of this length or longer hold half of all bases
+	public int getN50() {
+		long halfBases = (numBases + 1) / 2;
+		long sum = 0;
+		for (int len = lengthCounts.length - 1; len > 0; len--) {
+			sum += lengthCounts[len] * len;
+			if (sum >= halfBases && lengthCounts[len] > 0) {
+				return len;
+			}
+		}
+		return 0;
+	}
+
+	public int getMinLength() {
+		for (int len = 0; len < lengthCounts.length; len++) {
+			if (lengthCounts[len] > 0) {
+				return len;
+			}
+		}
+		return 0;
+	}
+
+	public int getMaxLength() {
+		for (int len = lengthCounts.length - 1; len >= 0; len--) {
+			if (lengthCounts[len] > 0) {
+				return len;
+			}
+		}
+		return 0;
+	}
+
+	public long getNumReadsOfLength(int len) {
+		if (len < 0 || len >= lengthCounts.length) {
+			return 0;
+		}
+		return lengthCounts[len];
+	}
+
+	/*
+	 * Reads the wrapped stream on a separate thread into a small queue of
+	 * buffers. An empty buffer marks the end of the stream.
+	 */
+	private static class InflaterThreadStream extends InputStream {
+		private static final byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUED_BUFFERS);
+		private final Thread thread;
+		private volatile IOException error;
+		private byte[] current;
+		private int pos;
+
+		InflaterThreadStream(final InputStream in) {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							byte[] buf = new byte[BUFFER_SIZE];
+							int len = 0;
+							int n;
+							while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+								len += n;
+							}
+							if (len == 0) {
+								break;
+							}
+							queue.put(len == buf.length ? buf : Arrays.copyOf(buf, len));
+						}
+					} catch (IOException e) {
+						error = e;
+					} catch (InterruptedException e) {
+						return;
+					} finally {
+						try {
+							in.close();
+						} catch (IOException e) {
+						}
+					}
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+					}
+				}
+			}, "fastq-inflater");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (current == END) {
+				return -1;
+			}
+			if (current == null || pos == current.length) {
+				try {
+					current = queue.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while reading " + e.getMessage());
+				}
+				pos = 0;
+				if (current == END) {
+					if (error != null) {
+						throw error;
+					}
+					return -1;
+				}
+			}
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			thread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Cache of kallisto/salmon indexes built from a reference database (-db).
+ * An entry is keyed by the sha-256 of the fasta file, the k-mer size and the
+ * version of the tool, so an index is only built again when one of them
+ * changes. The sha-256 of a fasta file is kept with its size and
+ * modification time, so the file is only read again when it changes. Building an entry is guarded by a file lock, so concurrent runs
+ * build each index once. A run holds a shared lock on the entry while it
+ * uses the index, taken before the build lock is released. When the cache
+ * grows beyond its size limit, the least recently used entries that are
+ * neither being built nor in use are removed.
+ *
+ * Layout of the cache directory:
+ *   <key>/        finished entry, holding kallisto-index.idx or salmon-index/
+ *   <key>.lock    lock file of the entry, locked to build or remove it
+ *   <key>.use     locked shared by the runs using the entry; a separate file,
+ *                 as closing any channel of a file may release all locks of
+ *                 the JVM on it
+ *   <key>.tmp/    entry being built
+ *   digests/      size, modification time and sha-256 of the fasta files,
+ *                 one file per path named by the sha-256 of the path
+ *
+ * The lock and use files of an entry are removed with it. A lock file is
+ * marked before it is removed, so a run that was waiting for its lock locks
+ * the lock file of the entry again.
+ */
+public class IndexCache {
+	// file locks are held per JVM, so threads of the same JVM are serialized separately
+	private static final ConcurrentHashMap<String, ReentrantLock> jvmLocks =
+			new ConcurrentHashMap<String, ReentrantLock>();
+
+	// shared file locks of the entries in use by this JVM, which holds one lock per entry for all its runs;
+	// no other channel of a .use file is opened while it is held here
+	private static final Map<String, Use> uses = new HashMap<String, Use>();
+
+	private final File cacheDir;
+	private final long maxBytes;
+
+	private static final class Use {
+		final RandomAccessFile file;
+		final FileLock lock;
+		int count = 0;
+
+		Use(RandomAccessFile file, FileLock lock) {
+			this.file = file;
+			this.lock = lock;
+		}
+	}
+
+	/*
+	 * an index of the cache in use by a run; it is not removed from the cache
+	 * until the lease is closed
+	 */
+	public static final class Lease implements Closeable {
+		private final String key;
+		private final String path;
+		private boolean closed = false;
+
+		private Lease(String key, String path) {
+			this.key = key;
+			this.path = path;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public void close() throws IOException {
+			synchronized (uses) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				Use use = uses.get(key);
+				if (--use.count == 0) {
+					uses.remove(key);
+					use.lock.release();
+					use.file.close();
+				}
+			}
+		}
+	}
+
+	// maxBytes <= 0 means no size limit
+	public IndexCache(String cacheDir, long maxBytes) {
+		this.cacheDir = new File(cacheDir);
+		this.maxBytes = maxBytes;
+	}
+
+	// the kallisto index of the reference database, to be closed when the run no longer uses it
+	public Lease getKallistoIndex(String refDbFile, int kmerSize, String logFile) throws Exception {
+		String version = getToolVersion(Arrays.asList("kallisto", "version"));
+		return getEntry("kallisto", version, refDbFile, kmerSize, logFile, "kallisto-index.idx");
+	}
+
+	public Lease getSalmonIndex(String refDbFile, int kmerSize, String logFile) throws Exception {
+		String version = getToolVersion(Arrays.asList("salmon", "--version"));
+		return getEntry("salmon", version, refDbFile, kmerSize, logFile, "salmon-index");
+	}
+
+	private Lease getEntry(String tool, String version, String refDbFile, int kmerSize, String logFile,
+			String indexName) throws Exception {
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new Exception("Could not create index cache directory: " + cacheDir);
+		}
+		String key = tool + "-k" + kmerSize + "-"
+				+ sha256(tool + " " + version + " k=" + kmerSize + " " + getDigest(refDbFile));
+		File entry = new File(cacheDir, key);
+
+		Lease lease;
+		ReentrantLock jvmLock = getJvmLock(key);
+		jvmLock.lock();
+		try {
+			FileLock lock = lockEntry(key, true);
+			try {
+				if (entry.isDirectory()) {
+					System.out.println("Using cached " + tool + " index " + entry + ".");
+				} else {
+					System.out.println("Building " + tool + " index in " + entry + ".");
+					File tmp = new File(cacheDir, key + ".tmp");
+					deleteRecursively(tmp);
+					tmp.mkdirs();
+					File index = new File(tmp, indexName);
+					List<String> command = new ArrayList<String>();
+					if (tool.equals("kallisto")) {
+						command.addAll(Arrays.asList("kallisto", "index", "-k", "" + kmerSize,
+								"-i", index.getAbsolutePath(), refDbFile));
+					} else {
+						command.addAll(Arrays.asList("salmon", "index", "-k", "" + kmerSize,
+								"-t", refDbFile, "-i", index.getAbsolutePath()));
+					}
+					ProcessBuilder builder = new ProcessBuilder(command);
+					builder.redirectOutput(Redirect.appendTo(new File(logFile)));
+					builder.redirectError(Redirect.appendTo(new File(logFile)));
+					int exitCode = builder.start().waitFor();
+					if (exitCode != 0 || !index.exists()) {
+						deleteRecursively(tmp);
+						throw new Exception("Could not build the " + tool + " index for " + refDbFile
+								+ ". See " + logFile + " for details.");
+					}
+					if (!tmp.renameTo(entry)) {
+						throw new Exception("Could not move the " + tool + " index to " + entry + ".");
+					}
+				}
+				// the modification time of an entry is its last use
+				entry.setLastModified(System.currentTimeMillis());
+				lease = use(key, new File(entry, indexName).getAbsolutePath());
+			} finally {
+				lock.channel().close();
+			}
+		} finally {
+			jvmLock.unlock();
+		}
+		try {
+			evict(entry);
+		} catch (IOException e) {
+			lease.close();
+			throw e;
+		}
+		return lease;
+	}
+
+	/*
+	 * the lock of the lock file of an entry, or null if wait is false and
+	 * another run holds it; a lock file that evict() marked and removed while
+	 * it was being locked is locked again. The lock is released by closing
+	 * its channel.
+	 */
+	private FileLock lockEntry(String key, boolean wait) throws IOException {
+		while (true) {
+			FileChannel channel = FileChannel.open(new File(cacheDir, key + ".lock").toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				FileLock lock = wait ? channel.lock() : channel.tryLock();
+				if (lock == null) {
+					channel.close();
+					return null;
+				}
+				if (channel.size() == 0) {
+					return lock;
+				}
+				channel.close();
+				if (!wait) {
+					return null;
+				}
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+	}
+
+	// take the shared lock of an entry, called with its lock held so it cannot be removed in between
+	private Lease use(String key, String path) throws IOException {
+		synchronized (uses) {
+			Use use = uses.get(key);
+			if (use == null) {
+				RandomAccessFile file = new RandomAccessFile(new File(cacheDir, key + ".use"), "rw");
+				try {
+					use = new Use(file, file.getChannel().lock(0, Long.MAX_VALUE, true));
+				} catch (IOException e) {
+					file.close();
+					throw e;
+				}
+				uses.put(key, use);
+			}
+			use.count++;
+			return new Lease(key, path);
+		}
+	}
+
+	// remove the least recently used entries until the cache fits in maxBytes
+	private void evict(File keep) throws IOException {
+		if (maxBytes <= 0) {
+			return;
+		}
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<File>();
+		long totalBytes = 0;
+		for (File file : files) {
+			if (file.isDirectory() && !file.getName().endsWith(".tmp") && !file.getName().equals("digests")) {
+				entries.add(file);
+				totalBytes += sizeOf(file);
+			}
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		});
+		for (File entry : entries) {
+			if (totalBytes <= maxBytes) {
+				break;
+			}
+			if (entry.equals(keep)) {
+				continue;
+			}
+			ReentrantLock jvmLock = getJvmLock(entry.getName());
+			if (!jvmLock.tryLock()) {
+				continue;
+			}
+			try {
+				FileLock lock = lockEntry(entry.getName(), false);
+				if (lock == null) {
+					continue;
+				}
+				try {
+					synchronized (uses) {
+						// in use by this JVM, whose shared lock would make tryLock throw
+						if (uses.containsKey(entry.getName())) {
+							continue;
+						}
+						File useFile = new File(cacheDir, entry.getName() + ".use");
+						RandomAccessFile use = new RandomAccessFile(useFile, "rw");
+						try {
+							// in use by another run
+							FileLock useLock = use.getChannel().tryLock();
+							if (useLock == null) {
+								continue;
+							}
+							try {
+								long size = sizeOf(entry);
+								deleteRecursively(entry);
+								totalBytes -= size;
+								System.out.println("Removed " + entry + " from the index cache.");
+							} finally {
+								useLock.release();
+							}
+						} finally {
+							use.close();
+						}
+						// the use file is only opened with the lock file locked
+						useFile.delete();
+						// runs waiting for the lock file see the mark and open the lock file of the entry again
+						lock.channel().write(ByteBuffer.wrap(new byte[] { 1 }), 0);
+						new File(cacheDir, entry.getName() + ".lock").delete();
+					}
+				} finally {
+					lock.channel().close();
+				}
+			} finally {
+				jvmLock.unlock();
+			}
+		}
+	}
+
+	private static ReentrantLock getJvmLock(String key) {
+		ReentrantLock lock = jvmLocks.get(key);
+		if (lock == null) {
+			jvmLocks.putIfAbsent(key, new ReentrantLock());
+			lock = jvmLocks.get(key);
+		}
+		return lock;
+	}
+
+	static String getToolVersion(List<String> command) throws Exception {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		StringBuilder version = new StringBuilder();
+		String str = "";
+		while ((str = reader.readLine()) != null) {
+			version.append(str.trim());
+		}
+		process.waitFor();
+		return version.toString();
+	}
+
+	/*
+	 * the sha-256 of a fasta file, read from digests/ if the file has the
+	 * size and modification time it had when its digest was written there
+	 */
+	private String getDigest(String fileName) throws Exception {
+		File file = new File(fileName).getCanonicalFile();
+		File digestsDir = new File(cacheDir, "digests");
+		File digestFile = new File(digestsDir, sha256(file.getPath()));
+		String stamp = file.length() + "\t" + file.lastModified();
+		if (digestFile.isFile()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(digestFile),
+					StandardCharsets.UTF_8));
+			try {
+				String line = br.readLine();
+				if (line != null && line.startsWith(stamp + "\t")) {
+					return line.substring(stamp.length() + 1);
+				}
+			} finally {
+				br.close();
+			}
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		byte[] buf = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String hex = toHex(digest.digest());
+		// written under another name and renamed, so a concurrent run reads either no digest or a whole one
+		digestsDir.mkdirs();
+		File tmp = File.createTempFile(digestFile.getName(), ".tmp", digestsDir);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+				StandardCharsets.UTF_8));
+		try {
+			bw.write(stamp + "\t" + hex + "\n");
+		} finally {
+			bw.close();
+		}
+		if (!tmp.renameTo(digestFile)) {
+			tmp.delete();
+		}
+		return hex;
+	}
+
+	private static String sha256(String text) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		return toHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static long sizeOf(File file) {
+		if (file.isFile()) {
+			return file.length();
+		}
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				size += sizeOf(child);
+			}
+		}
+		return size;
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
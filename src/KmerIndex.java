@@ -0,0 +1,277 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * In-memory k-mer index of a reference FASTA for the built-in mapper. Every
+ * canonical k-mer (k <= 31, two bits per base) maps to the equivalence class
+ * of the references containing it, as in kallisto, and to its first position
+ * in each of these references, so a pseudoaligned read can also be placed on
+ * every reference it maps to. The k-mers are kept in an open-addressing
+ * table on primitive long keys; positions are linked nodes in int arrays.
+ * The index is read-only once built and is shared by all mapping threads.
+ */
+public class KmerIndex {
+	private static final long EMPTY = -1L;
+
+	private final int k;
+	private final long mask;
+	private final List<String> names = new ArrayList<String>();
+	private int[] lengths = new int[64];
+
+	// k-mer table: key, equivalence class and first position node
+	private long[] keys;
+	private int[] classes;
+	private int[] heads;
+	private int size = 0;
+
+	// position nodes: reference, position << 1 | strand (1 if the reference has the reverse complement), next node
+	private int[] nodeRefs = new int[1024];
+	private int[] nodePositions = new int[1024];
+	private int[] nodeNext = new int[1024];
+	private int numNodes = 0;
+
+	// references of every equivalence class, sorted
+	private final List<int[]> classRefs = new ArrayList<int[]>();
+
+	private KmerIndex(int k) {
+		this.k = k;
+		this.mask = k == 32 ? -1L : (1L << (2 * k)) - 1;
+		keys = new long[1 << 16];
+		Arrays.fill(keys, EMPTY);
+		classes = new int[keys.length];
+		heads = new int[keys.length];
+	}
+
+	public static KmerIndex build(String fastaFile, int k) throws IOException {
+		if (k < 1 || k > 31) {
+			throw new IOException("The k-mer size of the built-in mapper should be between 1 and 31.");
+		}
+		KmerIndex index = new KmerIndex(k);
+		// (class + 1) << 32 | reference -> class with the reference added, only needed while building
+		Map<Long, Integer> extended = new HashMap<Long, Integer>();
+		// a repeated name keeps its first sequence, as in the index of kallisto
+		Set<String> seen = new HashSet<String>();
+		BufferedReader br = new BufferedReader(
+				new InputStreamReader(FastqStats.open(fastaFile), StandardCharsets.US_ASCII), 1 << 16);
+		try {
+			String name = null;
+			byte[] seq = new byte[1 << 16];
+			int len = 0;
+			String line;
+			while (true) {
+				line = br.readLine();
+				if (line == null || line.startsWith(">")) {
+					if (name != null && seen.add(name)) {
+						index.addReference(name, seq, len, extended);
+					}
+					if (line == null) {
+						break;
+					}
+					String header = line.substring(1).trim();
+					int space = header.indexOf(' ');
+					name = space < 0 ? header : header.substring(0, space);
+					len = 0;
+				} else if (name != null) {
+					line = line.trim();
+					int n = line.length();
+					if (len + n > seq.length) {
+						seq = Arrays.copyOf(seq, Math.max(2 * seq.length, len + n));
+					}
+					for (int i = 0; i < n; i++) {
+						seq[len++] = (byte) line.charAt(i);
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return index;
+	}
+
+	// 2-bit code of a base, or -1 for anything but A, C, G and T
+	static int encode(byte base) {
+		switch (base) {
+		case 'A':
+		case 'a':
+			return 0;
+		case 'C':
+		case 'c':
+			return 1;
+		case 'G':
+		case 'g':
+			return 2;
+		case 'T':
+		case 't':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	private void addReference(String name, byte[] seq, int len, Map<Long, Integer> extended) {
+		int ref = names.size();
+		names.add(name);
+		if (ref == lengths.length) {
+			lengths = Arrays.copyOf(lengths, 2 * ref);
+		}
+		lengths[ref] = len;
+		long forward = 0;
+		long reverse = 0;
+		int valid = 0;
+		for (int i = 0; i < len; i++) {
+			int code = encode(seq[i]);
+			if (code < 0) {
+				valid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & mask;
+			reverse = (reverse >>> 2) | ((long) (3 - code) << (2 * (k - 1)));
+			if (++valid < k) {
+				continue;
+			}
+			long kmer = Math.min(forward, reverse);
+			int strand = kmer == forward ? 0 : 1;
+			int pos = i - k + 1;
+			int slot = find(kmer);
+			if (keys[slot] == EMPTY) {
+				keys[slot] = kmer;
+				classes[slot] = extend(-1, ref, extended);
+				heads[slot] = addNode(ref, pos, strand, -1);
+				if (++size * 2 > keys.length) {
+					grow();
+				}
+			} else if (nodeRefs[heads[slot]] != ref) {
+				// references are added in order, so the newest node tells if this one has the k-mer yet
+				classes[slot] = extend(classes[slot], ref, extended);
+				heads[slot] = addNode(ref, pos, strand, heads[slot]);
+			}
+		}
+	}
+
+	// the class of the references of a class and one more reference, which is above all of them
+	private int extend(int ec, int ref, Map<Long, Integer> extended) {
+		long key = ((long) (ec + 1) << 32) | ref;
+		Integer result = extended.get(key);
+		if (result == null) {
+			int[] refs = ec < 0 ? new int[0] : classRefs.get(ec);
+			refs = Arrays.copyOf(refs, refs.length + 1);
+			refs[refs.length - 1] = ref;
+			result = classRefs.size();
+			classRefs.add(refs);
+			extended.put(key, result);
+		}
+		return result;
+	}
+
+	private int addNode(int ref, int pos, int strand, int next) {
+		if (numNodes == nodeRefs.length) {
+			nodeRefs = Arrays.copyOf(nodeRefs, 2 * numNodes);
+			nodePositions = Arrays.copyOf(nodePositions, 2 * numNodes);
+			nodeNext = Arrays.copyOf(nodeNext, 2 * numNodes);
+		}
+		nodeRefs[numNodes] = ref;
+		nodePositions[numNodes] = (pos << 1) | strand;
+		nodeNext[numNodes] = next;
+		return numNodes++;
+	}
+
+	private static int hash(long kmer) {
+		kmer ^= kmer >>> 33;
+		kmer *= 0xff51afd7ed558ccdL;
+		kmer ^= kmer >>> 33;
+		return (int) kmer;
+	}
+
+	// slot of the k-mer, or the empty slot where it belongs
+	private int find(long kmer) {
+		int slotMask = keys.length - 1;
+		int slot = hash(kmer) & slotMask;
+		while (keys[slot] != EMPTY && keys[slot] != kmer) {
+			slot = (slot + 1) & slotMask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldClasses = classes;
+		int[] oldHeads = heads;
+		keys = new long[2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		classes = new int[keys.length];
+		heads = new int[keys.length];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				classes[slot] = oldClasses[i];
+				heads[slot] = oldHeads[i];
+			}
+		}
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	long getMask() {
+		return mask;
+	}
+
+	public int getNumReferences() {
+		return names.size();
+	}
+
+	public String getName(int ref) {
+		return names.get(ref);
+	}
+
+	public int getLength(int ref) {
+		return lengths[ref];
+	}
+
+	public int getNumKmers() {
+		return size;
+	}
+
+	public int getNumClasses() {
+		return classRefs.size();
+	}
+
+	// slot of a canonical k-mer, or -1 if it is not in the index
+	int lookup(long kmer) {
+		int slot = find(kmer);
+		return keys[slot] == EMPTY ? -1 : slot;
+	}
+
+	int getClass(int slot) {
+		return classes[slot];
+	}
+
+	int[] getClassRefs(int ec) {
+		return classRefs.get(ec);
+	}
+
+	/*
+	 * first position of the k-mer in a slot on a reference, << 1 | 1 if the
+	 * reference has its reverse complement, or -1 if the reference does not
+	 * have it
+	 */
+	int getPosition(int slot, int ref) {
+		for (int node = heads[slot]; node >= 0; node = nodeNext[node]) {
+			if (nodeRefs[node] == ref) {
+				return nodePositions[node];
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * External programs run as a pipeline, like "a | b | c" in a shell but
+ * without a shell script: the output of each program is copied into the
+ * next one by a pump thread. The error output of every program is appended
+ * to a log file, and its last lines are kept to explain a failure. When a
+ * program exits with an error, the others are stopped and waitFor() reports
+ * the first failed program in the pipeline, its exit code and its last error
+ * lines; programs stopped by cancel() are not reported. The exit code and
+ * wall time of every program are added to the metrics stage.
+ */
+public class ProcessPipeline {
+	private static final int ERROR_LINES = 5;
+
+	private final String logFile;
+	private final RunMetrics.Stage stage;
+	private final List<String> names = new ArrayList<String>();
+	private final List<List<String>> commands = new ArrayList<List<String>>();
+	private final List<Process> processes = new ArrayList<Process>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	// programs that were still running when the pipeline was cancelled
+	private final Set<Process> stopped = new HashSet<Process>();
+	private String[] failures;
+	private Writer log;
+
+	public ProcessPipeline(String logFile, RunMetrics.Stage stage) {
+		this.logFile = logFile;
+		this.stage = stage;
+	}
+
+	// add a program reading the output of the previous one
+	public ProcessPipeline add(String name, List<String> command) {
+		names.add(name);
+		commands.add(command);
+		return this;
+	}
+
+	public ProcessPipeline add(String name, String... command) {
+		return add(name, Arrays.asList(command));
+	}
+
+	/*
+	 * start all programs; with readOutput the output of the last program is
+	 * read with getOutput(), otherwise it is appended to the log file
+	 */
+	public void start(boolean readOutput) throws IOException {
+		log = new FileWriter(logFile, true);
+		failures = new String[commands.size()];
+		try {
+			for (int i = 0; i < commands.size(); i++) {
+				ProcessBuilder builder = new ProcessBuilder(commands.get(i));
+				if (i == commands.size() - 1 && !readOutput) {
+					builder.redirectOutput(Redirect.appendTo(new File(logFile)));
+				}
+				Process process = builder.start();
+				synchronized (this) {
+					processes.add(process);
+				}
+				startMonitor(i);
+				if (i > 0) {
+					startPump(processes.get(i - 1).getInputStream(), processes.get(i).getOutputStream(),
+							names.get(i - 1));
+				}
+			}
+		} catch (IOException e) {
+			cancel();
+			throw new IOException("Could not start " + names.get(processes.size()) + ": " + e.getMessage(), e);
+		}
+	}
+
+	// the input of the first program
+	public OutputStream getInput() {
+		return processes.get(0).getOutputStream();
+	}
+
+	// the output of the last program
+	public InputStream getOutput() {
+		return processes.get(processes.size() - 1).getInputStream();
+	}
+
+	// copy the output of one program into the next one
+	private void startPump(final InputStream in, final OutputStream out, String name) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				byte[] buf = new byte[1 << 16];
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						out.write(buf, 0, n);
+					}
+				} catch (IOException e) {
+					// the next program stopped reading; its exit code tells why
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, "pump " + name);
+		thread.setDaemon(true);
+		thread.start();
+		threads.add(thread);
+	}
+
+	// log the error output of a program, then record its exit code and stop the others if it failed
+	private void startMonitor(final int i) {
+		final Process process = processes.get(i);
+		final long startNanos = System.nanoTime();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				Deque<String> lastLines = new ArrayDeque<String>();
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						synchronized (log) {
+							log.write(line + "\n");
+						}
+						if (lastLines.size() == ERROR_LINES) {
+							lastLines.removeFirst();
+						}
+						lastLines.addLast(line);
+					}
+					reader.close();
+					int exitCode = process.waitFor();
+					stage.addExitCode(names.get(i), exitCode);
+					stage.addProcessSeconds(names.get(i), (System.nanoTime() - startNanos) / 1e9);
+					if (exitCode != 0) {
+						fail(i, names.get(i) + " exited with code " + exitCode
+								+ (lastLines.isEmpty() ? "." : ": " + String.join("\n", lastLines)));
+					}
+				} catch (Exception e) {
+					fail(i, names.get(i) + " failed: " + e.getMessage());
+				}
+			}
+		}, "monitor " + names.get(i));
+		thread.setDaemon(true);
+		thread.start();
+		threads.add(thread);
+	}
+
+	private synchronized void fail(int i, String message) {
+		if (!stopped.contains(processes.get(i))) {
+			failures[i] = message;
+			cancel();
+		}
+	}
+
+	// stop all programs that are still running, e.g. when their output could not be read
+	public synchronized void cancel() {
+		for (Process process : processes) {
+			if (process.isAlive() && stopped.add(process)) {
+				process.destroy();
+			}
+		}
+	}
+
+	// wait for all programs and throw if one of them failed
+	public void waitFor() throws Exception {
+		for (Process process : processes) {
+			process.waitFor();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		synchronized (log) {
+			log.close();
+		}
+		synchronized (this) {
+			// a failed program makes the programs after it fail as well, so the first one is the cause
+			for (String failure : failures) {
+				if (failure != null) {
+					throw new Exception("Error: " + failure + "\nSee " + logFile + " for details.");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Result of one FastViromeExplorer run: the viruses of the final abundance
+ * table, most abundant first, and the average read length they were
+ * evaluated with. The same table is written to
+ * FastViromeExplorer-final-sorted-abundance.tsv in the output directory.
+ */
+public final class ProfilingResult {
+	private final String outDir;
+	private final double avgReadLen;
+	private final List<VirusAbundance> viruses;
+
+	public ProfilingResult(String outDir, double avgReadLen, List<VirusAbundance> viruses) {
+		this.outDir = outDir;
+		this.avgReadLen = avgReadLen;
+		this.viruses = Collections.unmodifiableList(new ArrayList<VirusAbundance>(viruses));
+	}
+
+	public String getOutDir() {
+		return outDir;
+	}
+
+	public double getAverageReadLength() {
+		return avgReadLen;
+	}
+
+	public List<VirusAbundance> getViruses() {
+		return viruses;
+	}
+
+	public int getNumViruses() {
+		return viruses.size();
+	}
+}
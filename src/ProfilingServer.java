@@ -0,0 +1,324 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Long-running FastViromeExplorer that accepts jobs over HTTP on localhost.
+ * The virus catalog is loaded once and stays resident with the warmed-up
+ * code, so a job only pays for its own mapping and coverage. Jobs are
+ * queued and run on '-jobs' threads. Every job names its own output
+ * directory (-o), which no other queued or running job may use, and only
+ * the last '-keepJobs' finished jobs are kept.
+ *
+ *   POST /jobs           arguments of a run, one per line; returns the job id
+ *   GET  /jobs           status of all jobs
+ *   GET  /jobs/<id>      status of one job
+ *   GET  /jobs/<id>/result  final abundance table of a finished job
+ *   POST /shutdown       stop accepting jobs, finish the queued ones and exit
+ */
+public class ProfilingServer {
+	private static final String STATUS_HEADER = "#Job\tStatus\tNumViruses\tSeconds\tOutputDirectory\tMessage\n";
+
+	private int port = 8731;
+	private String virusListFile = "ncbi-viruses-list.txt";
+	private int numJobs = 2;
+	private int queueSize = 1000;
+	private int keepJobs = 1000;
+	// options applied to every job, before the options of the job itself
+	private List<String> defaultArgs = new ArrayList<String>();
+
+	private VirusCatalog catalog;
+	private HttpServer server;
+	private ThreadPoolExecutor executor;
+	private final AtomicInteger nextJobId = new AtomicInteger(1);
+	private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<Integer, Job>();
+	// ids of the finished jobs, oldest first; guards the check of the output directories as well
+	private final Queue<Integer> finishedJobs = new ArrayDeque<Integer>();
+
+	private static class Job {
+		final int id;
+		final RunConfig config;
+		volatile String status = "QUEUED";
+		volatile String message = "";
+		volatile double seconds = 0;
+		volatile ProfilingResult result;
+
+		Job(int id, RunConfig config) {
+			this.id = id;
+			this.config = config;
+		}
+
+		String toTsv() {
+			return id + "\t" + status + "\t" + (result == null ? "" : "" + result.getNumViruses()) + "\t"
+					+ new DecimalFormat("0.##").format(seconds) + "\t" + config.getOutDir() + "\t" + message + "\n";
+		}
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-")) {
+				if ((i + 1) >= args.length) {
+					System.out.println("Missing argument after " + args[i] + " .");
+					printUsage();
+					System.exit(1);
+				}
+				if (args[i].equals("-server")) {
+					port = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-jobs")) {
+					numJobs = Math.max(Integer.parseInt(args[i + 1]), 1);
+				} else if (args[i].equals("-queue")) {
+					queueSize = Math.max(Integer.parseInt(args[i + 1]), 1);
+				} else if (args[i].equals("-keepJobs")) {
+					keepJobs = Math.max(Integer.parseInt(args[i + 1]), 1);
+				} else if (args[i].equals("-l")) {
+					virusListFile = args[i + 1];
+				} else if (args[i].equals("-o")) {
+					System.out.println("The output directory is given by every job.");
+					printUsage();
+					System.exit(1);
+				} else {
+					defaultArgs.add(args[i]);
+					defaultArgs.add(args[i + 1]);
+				}
+				i++;
+			}
+		}
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:");
+		System.out.println(
+				"java -cp /path-to-FastViromeExplorer/bin FastViromeExplorer -server $port -l $virusList -jobs 4");
+		System.out.println("-server: port of the job endpoint on localhost, default: 8731.");
+		System.out.println("-jobs: number of jobs running at the same time, default: 2.");
+		System.out.println("-queue: number of jobs that can wait to run, default: 1000.");
+		System.out.println("-keepJobs: number of finished jobs whose status and result are kept, default: 1000.");
+		System.out.println("All other parameters of FastViromeExplorer except -o are applied to every job, "
+				+ "a job can override them except -l. Every job gives its own output directory with -o.");
+	}
+
+	public void start() throws IOException {
+		catalog = VirusCatalog.load(virusListFile);
+		System.out.println("Loaded " + catalog.size() + " viruses from " + virusListFile + ".");
+		executor = new ThreadPoolExecutor(numJobs, numJobs, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize));
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleJobs(exchange);
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					send(exchange, 405, "Use POST.\n");
+					return;
+				}
+				send(exchange, 200, "Shutting down after " + (executor.getActiveCount() + executor.getQueue().size())
+						+ " remaining jobs.\n");
+				new Thread(new Runnable() {
+					public void run() {
+						shutdown();
+					}
+				}, "shutdown").start();
+			}
+		});
+		server.start();
+		System.out.println("Accepting jobs on http://localhost:" + server.getAddress().getPort() + "/jobs");
+	}
+
+	// stop accepting jobs and wait for the queued ones
+	public void shutdown() {
+		server.stop(0);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Finished all jobs.");
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+		String method = exchange.getRequestMethod();
+		try {
+			// path is "", "jobs"[, id[, "result"]]
+			if (path.length == 2 && method.equals("POST")) {
+				submit(exchange);
+			} else if (path.length == 2 && method.equals("GET")) {
+				StringBuilder body = new StringBuilder(STATUS_HEADER);
+				for (Job job : jobs.values()) {
+					body.append(job.toTsv());
+				}
+				send(exchange, 200, body.toString());
+			} else if ((path.length == 3 || path.length == 4) && method.equals("GET")) {
+				Job job = jobs.get(Integer.parseInt(path[2]));
+				if (job == null) {
+					send(exchange, 404, "No job " + path[2] + ".\n");
+				} else if (path.length == 3) {
+					send(exchange, 200, STATUS_HEADER + job.toTsv());
+				} else if (path[3].equals("result")) {
+					sendResult(exchange, job);
+				} else {
+					send(exchange, 404, "Unknown resource.\n");
+				}
+			} else {
+				send(exchange, 404, "Unknown resource.\n");
+			}
+		} catch (NumberFormatException e) {
+			send(exchange, 400, "Invalid job id.\n");
+		}
+	}
+
+	private void submit(HttpExchange exchange) throws IOException {
+		List<String> jobArgs = new ArrayList<String>();
+		for (String line : readBody(exchange).split("\n")) {
+			if (!line.trim().isEmpty()) {
+				jobArgs.add(line.trim());
+			}
+		}
+		if (jobArgs.contains("-l")) {
+			send(exchange, 400, "The list of viruses is set when the server starts.\n");
+			return;
+		}
+		if (!jobArgs.contains("-o")) {
+			send(exchange, 400, "Please give the output directory of the job with -o.\n");
+			return;
+		}
+		// later options override earlier ones
+		List<String> args = new ArrayList<String>(defaultArgs);
+		args.addAll(jobArgs);
+		args.add("-l");
+		args.add(virusListFile);
+		RunConfig config;
+		try {
+			config = RunConfig.fromArgs(args.toArray(new String[args.size()]));
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, e.getMessage() + "\n");
+			return;
+		}
+		final Job job;
+		synchronized (finishedJobs) {
+			String outDir = new File(config.getOutDir()).getAbsoluteFile().toPath().normalize().toString();
+			for (Job other : jobs.values()) {
+				if (!isFinished(other) && new File(other.config.getOutDir()).getAbsoluteFile().toPath().normalize()
+						.toString().equals(outDir)) {
+					send(exchange, 409, "Job " + other.id + " is already writing to " + outDir + ".\n");
+					return;
+				}
+			}
+			job = new Job(nextJobId.getAndIncrement(), config);
+			jobs.put(job.id, job);
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					runJob(job);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.id);
+			send(exchange, 503, "The job queue is full.\n");
+			return;
+		}
+		send(exchange, 202, job.id + "\n");
+	}
+
+	private void runJob(Job job) {
+		job.status = "RUNNING";
+		long start = System.nanoTime();
+		try {
+			job.result = new FastViromeExplorer(job.config, catalog).run();
+			job.status = "DONE";
+		} catch (Exception e) {
+			job.message = String.valueOf(e.getMessage());
+			job.status = "FAILED";
+		}
+		job.seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Finished job " + job.id + ": " + job.status + ".");
+		// forget the oldest finished jobs beyond keepJobs, so a long-running server does not grow
+		synchronized (finishedJobs) {
+			finishedJobs.add(job.id);
+			while (finishedJobs.size() > keepJobs) {
+				jobs.remove(finishedJobs.poll());
+			}
+		}
+	}
+
+	private static boolean isFinished(Job job) {
+		return job.status.equals("DONE") || job.status.equals("FAILED");
+	}
+
+	private void sendResult(HttpExchange exchange, Job job) throws IOException {
+		ProfilingResult result = job.result;
+		if (result == null) {
+			send(exchange, 409, "Job " + job.id + " is " + job.status + ".\n");
+			return;
+		}
+		StringBuilder body = new StringBuilder(
+				"#VirusIdentifier\tVirusName\tkingdom;phylum;class;order;family;genus;species\tEstimatedAbundance"
+						+ "\tSupport\tPredictedSupport\tRatio\n");
+		DecimalFormat format = new DecimalFormat("##.####");
+		for (VirusAbundance virus : result.getViruses()) {
+			body.append(virus.getAccession()).append("\t").append(virus.getName()).append("\t")
+					.append(virus.getLineage()).append("\t").append(virus.getEstimatedAbundance()).append("\t")
+					.append(virus.getSupport()).append("\t").append(virus.getPredictedSupport()).append("\t")
+					.append(format.format(virus.getRatio())).append("\n");
+		}
+		send(exchange, 200, body.toString());
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			body.write(buf, 0, n);
+		}
+		in.close();
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void send(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	public static void main(String[] args) {
+		ProfilingServer server = new ProfilingServer();
+		server.parseArguments(args);
+		try {
+			server.start();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,525 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Built-in mapper for reference databases given with -db: reads (pairs) are
+ * pseudoaligned to a KmerIndex on numThreads threads, as kallisto does, by
+ * intersecting the equivalence classes of their k-mers. Each mate is then
+ * placed on every reference of the intersection by the position of its first
+ * k-mer, and its interval is added to the coverage of that reference, as an
+ * alignment of the kallisto pseudobam would be. The counts of the
+ * intersections give the estimated counts of the references by a simple EM.
+ */
+public class Pseudoaligner {
+	private static final int BATCH_SIZE = 4096;
+	private static final int MAX_EM_ROUNDS = 500;
+	// fragments longer than this are taken as misplaced when the fragment length is estimated
+	private static final int MAX_FRAGMENT_LENGTH = 10000;
+
+	private final KmerIndex index;
+	private final int numThreads;
+	private final ReadBufferPool readBuffers;
+	// reads of every reference; only references with reads have one
+	private final CoverageCalculator[] coverages;
+	// number of fragments of every set of references
+	private final Map<RefSet, long[]> setCounts = new HashMap<RefSet, long[]>();
+	private long numFragments = 0;
+	private long numMapped = 0;
+	private long numAlignments = 0;
+	private long fragmentLengthSum = 0;
+	private long numFragmentLengths = 0;
+	private long readBases = 0;
+	private long numReads = 0;
+
+	// a sorted set of references; the array is only copied when the set is kept as a key
+	private static final class RefSet {
+		int[] refs;
+		int size;
+		int hash;
+
+		RefSet(int[] refs, int size) {
+			this.refs = refs;
+			this.size = size;
+			this.hash = hash(refs, size);
+		}
+
+		static int hash(int[] refs, int size) {
+			int h = 1;
+			for (int i = 0; i < size; i++) {
+				h = 31 * h + refs[i];
+			}
+			return h;
+		}
+
+		RefSet copy() {
+			return new RefSet(Arrays.copyOf(refs, size), size);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			RefSet other = (RefSet) o;
+			if (size != other.size || hash != other.hash) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (refs[i] != other.refs[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// reads (pairs) passed from the reader to the mapping threads
+	private static final class Batch {
+		final String[] seqs1 = new String[BATCH_SIZE];
+		final String[] seqs2;
+		int size = 0;
+
+		Batch(boolean paired) {
+			seqs2 = paired ? new String[BATCH_SIZE] : null;
+		}
+	}
+
+	// a mapping thread with its own counts and coverages, merged when all reads are mapped
+	private final class Worker implements Callable<Void> {
+		private final BlockingQueue<Batch> queue;
+		private final RunMetrics.Stage stage;
+		final Map<RefSet, long[]> counts = new HashMap<RefSet, long[]>();
+		final CoverageCalculator[] workerCoverages = new CoverageCalculator[index.getNumReferences()];
+		long mapped = 0;
+		long alignments = 0;
+		long fragmentLengths = 0;
+		long numLengths = 0;
+		long bases = 0;
+		long reads = 0;
+		// the intersection of the classes of the read, and the class hit before
+		private int[] set = new int[16];
+		private int setSize;
+		private int[] merged = new int[16];
+		private final RefSet probe = new RefSet(set, 0);
+		// first k-mer hit of each mate: slot in the index, offset in the read and whether the read has its reverse
+		private final int[] firstSlot = new int[2];
+		private final int[] firstOffset = new int[2];
+		private final int[] firstStrand = new int[2];
+		// start of each mate on the reference being placed, 0-based
+		private final int[] starts = new int[2];
+
+		Worker(BlockingQueue<Batch> queue, RunMetrics.Stage stage) {
+			this.queue = queue;
+			this.stage = stage;
+		}
+
+		public Void call() throws Exception {
+			while (true) {
+				Batch batch = queue.take();
+				if (batch.size == 0) {
+					return null;
+				}
+				for (int i = 0; i < batch.size; i++) {
+					map(batch.seqs1[i], batch.seqs2 == null ? null : batch.seqs2[i]);
+				}
+				stage.addReads(batch.size);
+			}
+		}
+
+		private void map(String seq1, String seq2) {
+			setSize = -1;
+			boolean hit1 = addKmers(seq1, 0);
+			boolean hit2 = seq2 != null && addKmers(seq2, 1);
+			reads += seq2 == null ? 1 : 2;
+			bases += seq1.length() + (seq2 == null ? 0 : seq2.length());
+			if (setSize <= 0) {
+				return;
+			}
+			mapped++;
+			probe.refs = set;
+			probe.size = setSize;
+			probe.hash = RefSet.hash(set, setSize);
+			long[] count = counts.get(probe);
+			if (count == null) {
+				count = new long[1];
+				counts.put(probe.copy(), count);
+			}
+			count[0]++;
+			for (int i = 0; i < setSize; i++) {
+				int ref = set[i];
+				CoverageCalculator coverage = workerCoverages[ref];
+				if (coverage == null) {
+					coverage = new CoverageCalculator(readBuffers);
+					workerCoverages[ref] = coverage;
+				}
+				if (hit1) {
+					starts[0] = place(ref, 0, seq1.length());
+					coverage.addRead(starts[0] + 1, starts[0] + seq1.length());
+					alignments++;
+				}
+				if (hit2) {
+					starts[1] = place(ref, 1, seq2.length());
+					coverage.addRead(starts[1] + 1, starts[1] + seq2.length());
+					alignments++;
+				}
+				if (hit1 && hit2 && setSize == 1 && firstStrandOnRef(ref, 0) != firstStrandOnRef(ref, 1)) {
+					int length = Math.max(starts[0] + seq1.length(), starts[1] + seq2.length())
+							- Math.min(starts[0], starts[1]);
+					if (length > 0 && length <= MAX_FRAGMENT_LENGTH) {
+						fragmentLengths += length;
+						numLengths++;
+					}
+				}
+			}
+		}
+
+		/*
+		 * intersect the set of the read with the classes of the k-mers of one
+		 * mate and keep the first k-mer hit; false if no k-mer is in the index
+		 */
+		private boolean addKmers(String seq, int mate) {
+			int k = index.getK();
+			long mask = index.getMask();
+			long forward = 0;
+			long reverse = 0;
+			int valid = 0;
+			int prevClass = -1;
+			boolean hit = false;
+			for (int i = 0; i < seq.length(); i++) {
+				int code = KmerIndex.encode((byte) seq.charAt(i));
+				if (code < 0) {
+					valid = 0;
+					continue;
+				}
+				forward = ((forward << 2) | code) & mask;
+				reverse = (reverse >>> 2) | ((long) (3 - code) << (2 * (k - 1)));
+				if (++valid < k) {
+					continue;
+				}
+				long kmer = Math.min(forward, reverse);
+				int slot = index.lookup(kmer);
+				if (slot < 0) {
+					continue;
+				}
+				int ec = index.getClass(slot);
+				if (!hit) {
+					hit = true;
+					firstSlot[mate] = slot;
+					firstOffset[mate] = i - k + 1;
+					firstStrand[mate] = kmer == forward ? 0 : 1;
+				}
+				if (ec != prevClass) {
+					intersect(index.getClassRefs(ec));
+					prevClass = ec;
+				}
+			}
+			return hit;
+		}
+
+		private void intersect(int[] refs) {
+			if (setSize < 0) {
+				if (refs.length > set.length) {
+					set = new int[refs.length];
+					merged = new int[refs.length];
+				}
+				System.arraycopy(refs, 0, set, 0, refs.length);
+				setSize = refs.length;
+				return;
+			}
+			int n = 0;
+			int j = 0;
+			for (int i = 0; i < setSize && j < refs.length; i++) {
+				while (j < refs.length && refs[j] < set[i]) {
+					j++;
+				}
+				if (j < refs.length && refs[j] == set[i]) {
+					merged[n++] = set[i];
+				}
+			}
+			int[] tmp = set;
+			set = merged;
+			merged = tmp;
+			setSize = n;
+		}
+
+		// whether the mate runs along the reverse strand of the reference
+		private int firstStrandOnRef(int ref, int mate) {
+			return (index.getPosition(firstSlot[mate], ref) & 1) ^ firstStrand[mate];
+		}
+
+		// 0-based start of a mate on a reference from the position of its first k-mer on it
+		private int place(int ref, int mate, int readLen) {
+			int pos = index.getPosition(firstSlot[mate], ref);
+			int start = pos >> 1;
+			if ((pos & 1) == firstStrand[mate]) {
+				return start - firstOffset[mate];
+			}
+			// the reference has the reverse complement of the read
+			return start - (readLen - firstOffset[mate] - index.getK());
+		}
+	}
+
+	public Pseudoaligner(KmerIndex index, int numThreads, ReadBufferPool readBuffers) {
+		this.index = index;
+		this.numThreads = numThreads;
+		this.readBuffers = readBuffers;
+		this.coverages = new CoverageCalculator[index.getNumReferences()];
+	}
+
+	/*
+	 * map the reads of one or two read files; the reads are read on this
+	 * thread and mapped on numThreads others. The first failure of a mapping
+	 * thread stops the mapping and is thrown.
+	 */
+	public void map(String reads1, String reads2, RunMetrics.Stage stage) throws Exception {
+		boolean paired = reads2 != null && !reads2.isEmpty();
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2 * numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Worker> workers = new ArrayList<Worker>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < numThreads; i++) {
+			Worker worker = new Worker(queue, stage);
+			workers.add(worker);
+			futures.add(executor.submit(worker));
+		}
+		BufferedReader in1 = open(reads1);
+		BufferedReader in2 = paired ? open(reads2) : null;
+		try {
+			while (true) {
+				Batch batch = new Batch(paired);
+				while (batch.size < BATCH_SIZE && (batch.seqs1[batch.size] = readSequence(in1, reads1)) != null) {
+					if (paired && (batch.seqs2[batch.size] = readSequence(in2, reads2)) == null) {
+						throw new IOException(reads2 + " has fewer reads than " + reads1 + ".");
+					}
+					batch.size++;
+				}
+				if (batch.size == 0) {
+					break;
+				}
+				numFragments += batch.size;
+				put(queue, batch, futures);
+			}
+			for (int i = 0; i < numThreads; i++) {
+				put(queue, new Batch(false), futures);
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+			in1.close();
+			if (in2 != null) {
+				in2.close();
+			}
+		}
+		merge(workers);
+	}
+
+	private static BufferedReader open(String fileName) throws IOException {
+		return new BufferedReader(new InputStreamReader(FastqStats.open(fileName), StandardCharsets.US_ASCII),
+				1 << 16);
+	}
+
+	// the sequence of the next FASTQ record, or null at the end of the file
+	private static String readSequence(BufferedReader in, String fileName) throws IOException {
+		String header = in.readLine();
+		if (header == null) {
+			return null;
+		}
+		String seq = in.readLine();
+		if (seq == null || in.readLine() == null || in.readLine() == null) {
+			throw new IOException("Truncated FASTQ record in " + fileName + ".");
+		}
+		return seq;
+	}
+
+	// wait for room in the queue, but stop if a mapping thread failed, as it would never make room
+	private static void put(BlockingQueue<Batch> queue, Batch batch, List<Future<Void>> futures) throws Exception {
+		while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			for (Future<Void> future : futures) {
+				if (future.isDone()) {
+					future.get();
+				}
+			}
+		}
+	}
+
+	private void merge(List<Worker> workers) {
+		for (Worker worker : workers) {
+			for (Entry<RefSet, long[]> entry : worker.counts.entrySet()) {
+				long[] count = setCounts.get(entry.getKey());
+				if (count == null) {
+					setCounts.put(entry.getKey(), entry.getValue());
+				} else {
+					count[0] += entry.getValue()[0];
+				}
+			}
+			for (int ref = 0; ref < coverages.length; ref++) {
+				CoverageCalculator coverage = worker.workerCoverages[ref];
+				if (coverage == null) {
+					continue;
+				}
+				if (coverages[ref] == null) {
+					coverages[ref] = coverage;
+				} else {
+					coverages[ref].addReads(coverage);
+					coverage.release();
+				}
+			}
+			numMapped += worker.mapped;
+			numAlignments += worker.alignments;
+			fragmentLengthSum += worker.fragmentLengths;
+			numFragmentLengths += worker.numLengths;
+			readBases += worker.bases;
+			numReads += worker.reads;
+		}
+	}
+
+	// coverage of every reference with mapped reads, by name, in the order of the reference database
+	public Map<String, CoverageCalculator> getCoverages() {
+		Map<String, CoverageCalculator> map = new LinkedHashMap<String, CoverageCalculator>();
+		for (int ref = 0; ref < coverages.length; ref++) {
+			if (coverages[ref] != null) {
+				map.put(index.getName(ref), coverages[ref]);
+			}
+		}
+		return map;
+	}
+
+	public long getNumFragments() {
+		return numFragments;
+	}
+
+	public long getNumMapped() {
+		return numMapped;
+	}
+
+	// number of mates placed on a reference, counting a mate once for every reference it maps to
+	public long getNumAlignments() {
+		return numAlignments;
+	}
+
+	// mean length of the fragments mapped to one reference, or the mean read length without pairs
+	public double getMeanFragmentLength() {
+		if (numFragmentLengths > 0) {
+			return (double) fragmentLengthSum / numFragmentLengths;
+		}
+		return numReads > 0 ? (double) readBases / numReads : 0;
+	}
+
+	// estimated count of every reference, by EM over the sets of references of the fragments
+	public double[] estimateCounts() {
+		return estimateCounts(getEffectiveLengths());
+	}
+
+	// reference lengths less the mean fragment length, as used by kallisto
+	private double[] getEffectiveLengths() {
+		int numRefs = index.getNumReferences();
+		double meanFragment = getMeanFragmentLength();
+		double[] effLengths = new double[numRefs];
+		for (int ref = 0; ref < numRefs; ref++) {
+			effLengths[ref] = Math.max(index.getLength(ref) - meanFragment + 1, 1);
+		}
+		return effLengths;
+	}
+
+	/*
+	 * write the estimated counts of the references in the format of
+	 * kallisto's abundance.tsv: target_id, length, eff_length, est_counts, tpm
+	 */
+	public void writeAbundance(String quantFile, double[] estimates) throws IOException {
+		int numRefs = index.getNumReferences();
+		double[] effLengths = getEffectiveLengths();
+		double totalRate = 0;
+		for (int ref = 0; ref < numRefs; ref++) {
+			totalRate += estimates[ref] / effLengths[ref];
+		}
+		BufferedWriter bw = new BufferedWriter(new FileWriter(quantFile));
+		try {
+			bw.write("target_id\tlength\teff_length\test_counts\ttpm\n");
+			for (int ref = 0; ref < numRefs; ref++) {
+				double tpm = totalRate > 0 ? estimates[ref] / effLengths[ref] / totalRate * 1e6 : 0;
+				bw.write(index.getName(ref) + "\t" + index.getLength(ref) + "\t" + effLengths[ref] + "\t"
+						+ estimates[ref] + "\t" + tpm + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	/*
+	 * share the fragments of every set among its references by their estimated
+	 * abundance per base, until no count changes by 0.01 or more
+	 */
+	private double[] estimateCounts(double[] effLengths) {
+		int numRefs = effLengths.length;
+		double[] counts = new double[numRefs];
+		double[] next = new double[numRefs];
+		List<int[]> sets = new ArrayList<int[]>();
+		List<Long> setSizes = new ArrayList<Long>();
+		for (Entry<RefSet, long[]> entry : setCounts.entrySet()) {
+			int[] refs = entry.getKey().refs;
+			long count = entry.getValue()[0];
+			if (refs.length == 1) {
+				// fragments of one reference stay with it
+				next[refs[0]] += count;
+			} else {
+				sets.add(refs);
+				setSizes.add(count);
+			}
+			for (int ref : refs) {
+				counts[ref] += (double) count / refs.length;
+			}
+		}
+		double[] unique = next.clone();
+		for (int round = 0; round < MAX_EM_ROUNDS && !sets.isEmpty(); round++) {
+			System.arraycopy(unique, 0, next, 0, numRefs);
+			for (int i = 0; i < sets.size(); i++) {
+				int[] refs = sets.get(i);
+				double sum = 0;
+				for (int ref : refs) {
+					sum += counts[ref] / effLengths[ref];
+				}
+				if (sum == 0) {
+					continue;
+				}
+				double share = setSizes.get(i) / sum;
+				for (int ref : refs) {
+					next[ref] += counts[ref] / effLengths[ref] * share;
+				}
+			}
+			double maxChange = 0;
+			for (int ref = 0; ref < numRefs; ref++) {
+				maxChange = Math.max(maxChange, Math.abs(next[ref] - counts[ref]));
+			}
+			double[] tmp = counts;
+			counts = next;
+			next = tmp;
+			if (maxChange < 0.01) {
+				break;
+			}
+		}
+		if (sets.isEmpty()) {
+			return unique;
+		}
+		return counts;
+	}
+}
@@ -40,4 +40,9 @@ public class Read implements Comparable<Read>{
 	public boolean equals(Object o) {
 		return (o instanceof Read) && (this.compareTo((Read)o) == 0);
 	}
+
+	@Override
+	public int hashCode() {
+		return 31 * startPos + endPos;
+	}
 }
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Off-heap storage for the read intervals of the coverage calculators of a
+ * run. Intervals are kept as packed int start/end pairs in pages of
+ * PAGE_READS reads, carved out of direct buffers, so they cost 8 bytes per
+ * read and no heap. With a budget, pages beyond it are refused; a
+ * calculator that is refused a page writes its pages to a shared spill file
+ * and reuses one of them, so a run needs about the budget plus one page per
+ * virus being collected, however deep the sample is.
+ */
+public class ReadBufferPool {
+	public static final int PAGE_READS = 32;
+	static final int PAGE_BYTES = PAGE_READS * 8;
+
+	private final long budgetBytes;
+	private final String spillFileName;
+	private final int chunkPages;
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+	private int numPages = 0;
+	// pages returned by calculators, reused before new ones are carved out
+	private int[] freePages = new int[64];
+	private int numFreePages = 0;
+	private RandomAccessFile spillFile;
+	private volatile FileChannel spill;
+	private long spillEnd = 0;
+	private long peakBytes = 0;
+
+	/*
+	 * budgetBytes of 0 means no limit; the spill file is only created when
+	 * the budget is reached; chunkPages pages are allocated at a time
+	 */
+	public ReadBufferPool(long budgetBytes, String spillFileName, int chunkPages) {
+		this.budgetBytes = budgetBytes;
+		this.spillFileName = spillFileName;
+		this.chunkPages = chunkPages;
+	}
+
+	// a page for a calculator that has none yet; such a page is given even beyond the budget
+	synchronized int allocateFirst() {
+		return allocate(true);
+	}
+
+	// another page for a calculator, or -1 if the budget is used up
+	synchronized int allocate() {
+		return allocate(false);
+	}
+
+	private int allocate(boolean force) {
+		if (numFreePages > 0) {
+			return freePages[--numFreePages];
+		}
+		if (!force && budgetBytes > 0 && (long) (numPages + 1) * PAGE_BYTES > budgetBytes) {
+			return -1;
+		}
+		if (numPages == chunks.length * chunkPages) {
+			ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+			grown[chunks.length] = ByteBuffer.allocateDirect(chunkPages * PAGE_BYTES).order(ByteOrder.nativeOrder());
+			chunks = grown;
+		}
+		peakBytes = Math.max(peakBytes, (long) (numPages + 1) * PAGE_BYTES);
+		return numPages++;
+	}
+
+	synchronized void free(int page) {
+		if (numFreePages == freePages.length) {
+			freePages = Arrays.copyOf(freePages, 2 * numFreePages);
+		}
+		freePages[numFreePages++] = page;
+	}
+
+	int getStart(int page, int i) {
+		return chunks[page / chunkPages].getInt((page % chunkPages) * PAGE_BYTES + 8 * i);
+	}
+
+	int getEnd(int page, int i) {
+		return chunks[page / chunkPages].getInt((page % chunkPages) * PAGE_BYTES + 8 * i + 4);
+	}
+
+	void put(int page, int i, int start, int end) {
+		ByteBuffer chunk = chunks[page / chunkPages];
+		int offset = (page % chunkPages) * PAGE_BYTES + 8 * i;
+		chunk.putInt(offset, start);
+		chunk.putInt(offset + 4, end);
+	}
+
+	// write the first numReads reads of the pages to the spill file and return where they start
+	long spill(int[] pages, int numPages, int numReads) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(numReads * 8).order(ByteOrder.nativeOrder());
+		for (int p = 0; p < numPages; p++) {
+			for (int i = 0; i < PAGE_READS && buf.hasRemaining(); i++) {
+				buf.putInt(getStart(pages[p], i));
+				buf.putInt(getEnd(pages[p], i));
+			}
+		}
+		buf.flip();
+		long position;
+		synchronized (this) {
+			if (spill == null) {
+				if (spillFileName == null) {
+					throw new IOException("No spill file for the reads beyond the memory budget.");
+				}
+				new File(spillFileName).deleteOnExit();
+				spillFile = new RandomAccessFile(spillFileName, "rw");
+				spill = spillFile.getChannel();
+			}
+			position = spillEnd;
+			spillEnd += buf.remaining();
+		}
+		while (buf.hasRemaining()) {
+			spill.write(buf, position + buf.position());
+		}
+		return position;
+	}
+
+	// read spilled reads back into buf, which is filled from its position to its limit
+	void readSpilled(long position, ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		while (buf.hasRemaining()) {
+			if (spill.read(buf, position + buf.position() - start) < 0) {
+				throw new IOException("Unexpected end of " + spillFileName + ".");
+			}
+		}
+	}
+
+	public synchronized long getPeakBytes() {
+		return peakBytes;
+	}
+
+	public synchronized long getSpilledBytes() {
+		return spillEnd;
+	}
+
+	// drop all pages and the spill file; the pool can be used again afterwards
+	public synchronized void close() throws IOException {
+		chunks = new ByteBuffer[0];
+		numPages = 0;
+		numFreePages = 0;
+		spillEnd = 0;
+		if (spill != null) {
+			spillFile.close();
+			spill = null;
+			new File(spillFileName).delete();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Compact binary form of the final abundance table of a sample, written next
+ * to FastViromeExplorer-final-sorted-abundance.tsv so the results of many
+ * samples can be merged without parsing text or joining on accessions. The
+ * viruses are keyed by their catalog id and ordered by it, so any number of
+ * result files can be merged in one pass (see CohortMerger). The checksum of
+ * the catalog the ids belong to is kept in the header.
+ *
+ * Layout (big-endian):
+ *   header:   magic, version, catalog checksum (long), catalog size,
+ *             sample name (modified UTF-8), average read length (double),
+ *             numEntries
+ *   entries:  id, estimated abundance, support, predicted support, ratio
+ *             (int and 4 doubles each), ordered by id
+ */
+public class ResultFile {
+	public static final String FILE_NAME = "FastViromeExplorer-result.bin";
+	private static final int MAGIC = 0x46564552; // "FVER"
+	private static final int VERSION = 1;
+
+	public static void write(String fileName, String sampleName, VirusCatalog catalog, double avgReadLen,
+			List<VirusAbundance> viruses) throws IOException {
+		// ids in the upper half, positions in the list in the lower half, so sorting orders the rows by id
+		long[] order = new long[viruses.size()];
+		for (int i = 0; i < order.length; i++) {
+			int id = catalog.getId(viruses.get(i).getAccession());
+			if (id < 0) {
+				throw new IOException(viruses.get(i).getAccession() + " is not in the virus catalog.");
+			}
+			order[i] = ((long) id << 32) | i;
+		}
+		Arrays.sort(order);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(catalog.getChecksum());
+			out.writeInt(catalog.size());
+			out.writeUTF(sampleName);
+			out.writeDouble(avgReadLen);
+			out.writeInt(order.length);
+			for (long entry : order) {
+				VirusAbundance virus = viruses.get((int) entry);
+				out.writeInt((int) (entry >>> 32));
+				out.writeDouble(virus.getEstimatedAbundance());
+				out.writeDouble(virus.getSupport());
+				out.writeDouble(virus.getPredictedSupport());
+				out.writeDouble(virus.getRatio());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * reads the entries of a result file one at a time; next() moves to the
+	 * next entry and the getters return its fields
+	 */
+	public static class Reader {
+		private final String fileName;
+		private final DataInputStream in;
+		private final long catalogChecksum;
+		private final int catalogSize;
+		private final String sampleName;
+		private final double avgReadLen;
+		private final int numEntries;
+		private int numRead = 0;
+		private int id = -1;
+		private double estimatedAbundance;
+		private double support;
+		private double predictedSupport;
+		private double ratio;
+
+		public Reader(String fileName, int bufferSize) throws IOException {
+			this.fileName = fileName;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), bufferSize));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException(fileName + " is not a FastViromeExplorer result of version " + VERSION + ".");
+				}
+				catalogChecksum = in.readLong();
+				catalogSize = in.readInt();
+				sampleName = in.readUTF();
+				avgReadLen = in.readDouble();
+				numEntries = in.readInt();
+			} catch (EOFException e) {
+				in.close();
+				throw new IOException("Unexpected end of " + fileName + ".");
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public boolean next() throws IOException {
+			if (numRead == numEntries) {
+				id = -1;
+				return false;
+			}
+			try {
+				int nextId = in.readInt();
+				if (nextId <= id || nextId >= catalogSize) {
+					throw new IOException("Invalid virus id " + nextId + " in " + fileName + ".");
+				}
+				id = nextId;
+				estimatedAbundance = in.readDouble();
+				support = in.readDouble();
+				predictedSupport = in.readDouble();
+				ratio = in.readDouble();
+			} catch (EOFException e) {
+				throw new IOException("Unexpected end of " + fileName + ".");
+			}
+			numRead++;
+			return true;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getCatalogChecksum() {
+			return catalogChecksum;
+		}
+
+		public int getCatalogSize() {
+			return catalogSize;
+		}
+
+		public String getSampleName() {
+			return sampleName;
+		}
+
+		public double getAverageReadLength() {
+			return avgReadLen;
+		}
+
+		public int getNumEntries() {
+			return numEntries;
+		}
+
+		// catalog id of the current entry, -1 before the first and after the last one
+		public int getId() {
+			return id;
+		}
+
+		public double getEstimatedAbundance() {
+			return estimatedAbundance;
+		}
+
+		public double getSupport() {
+			return support;
+		}
+
+		public double getPredictedSupport() {
+			return predictedSupport;
+		}
+
+		public double getRatio() {
+			return ratio;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,539 @@
+import java.nio.file.Paths;
+
+/*
+ * Immutable configuration of one FastViromeExplorer run. It is created from
+ * the command line arguments with fromArgs() or set up in code with a
+ * Builder; the values are checked when it is built, and invalid values are
+ * reported with an IllegalArgumentException instead of ending the JVM.
+ */
+public final class RunConfig {
+	private final String outDir;
+	private final String read1;
+	private final String read2;
+	private final String indexFile;
+	private final String refDbFile;
+	private final String virusListFile;
+	private final double ratioCriteria;
+	private final double coverageCriteria;
+	private final int numReadsCriteria;
+	private final boolean useSalmon;
+	private final boolean reportRatio;
+	private final boolean streamMappings;
+	private final boolean writeBam;
+	private final boolean sortedSam;
+	private final int numThreads;
+	private final int kmerSize;
+	private final String indexCacheDir;
+	private final double indexCacheSize;
+	private final int progressSeconds;
+	private final int topK;
+	private final boolean resume;
+	private final int subsampleTop;
+	private final double subsampleTolerance;
+	private final long subsampleStart;
+	private final int numShards;
+	private final String sortMemory;
+	private final int depthBin;
+	private final double coverageMemory;
+	private final String rollUpRanks;
+	private final boolean builtinMapper;
+
+	public static class Builder {
+		private String outDir = "";
+		private String read1 = "";
+		private String read2 = "";
+		private String indexFile = "";
+		private String refDbFile = "";
+		private String virusListFile = "ncbi-viruses-list.txt";
+		private double ratioCriteria = 0.3;
+		private double coverageCriteria = 0.1;
+		private int numReadsCriteria = 10;
+		private boolean useSalmon = false;
+		private boolean reportRatio = false;
+		private boolean streamMappings = false;
+		private boolean writeBam = false;
+		private boolean sortedSam = false;
+		private int numThreads = 1;
+		private int kmerSize = 31;
+		private String indexCacheDir = System.getProperty("user.home") + "/.fastviromeexplorer/index-cache";
+		private double indexCacheSize = 0;
+		private int progressSeconds = 0;
+		private int topK = 0;
+		private boolean resume = false;
+		private int subsampleTop = 0;
+		private double subsampleTolerance = 0.05;
+		private long subsampleStart = 100000;
+		private int numShards = 1;
+		private String sortMemory = "768M";
+		private int depthBin = 0;
+		private double coverageMemory = 0;
+		private String rollUpRanks = "family,genus";
+		private boolean builtinMapper = false;
+
+		public Builder outDir(String outDir) {
+			this.outDir = outDir;
+			return this;
+		}
+
+		public Builder read1(String read1) {
+			this.read1 = read1;
+			return this;
+		}
+
+		public Builder read2(String read2) {
+			this.read2 = read2;
+			return this;
+		}
+
+		// kallisto index file or salmon index directory
+		public Builder indexFile(String indexFile) {
+			this.indexFile = indexFile;
+			return this;
+		}
+
+		public Builder refDbFile(String refDbFile) {
+			this.refDbFile = refDbFile;
+			return this;
+		}
+
+		public Builder virusListFile(String virusListFile) {
+			this.virusListFile = virusListFile;
+			return this;
+		}
+
+		public Builder ratioCriteria(double ratioCriteria) {
+			this.ratioCriteria = ratioCriteria;
+			return this;
+		}
+
+		public Builder coverageCriteria(double coverageCriteria) {
+			this.coverageCriteria = coverageCriteria;
+			return this;
+		}
+
+		public Builder numReadsCriteria(int numReadsCriteria) {
+			this.numReadsCriteria = numReadsCriteria;
+			return this;
+		}
+
+		public Builder useSalmon(boolean useSalmon) {
+			this.useSalmon = useSalmon;
+			return this;
+		}
+
+		public Builder reportRatio(boolean reportRatio) {
+			this.reportRatio = reportRatio;
+			return this;
+		}
+
+		public Builder streamMappings(boolean streamMappings) {
+			this.streamMappings = streamMappings;
+			return this;
+		}
+
+		public Builder writeBam(boolean writeBam) {
+			this.writeBam = writeBam;
+			return this;
+		}
+
+		public Builder sortedSam(boolean sortedSam) {
+			this.sortedSam = sortedSam;
+			return this;
+		}
+
+		public Builder numThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Builder kmerSize(int kmerSize) {
+			this.kmerSize = kmerSize;
+			return this;
+		}
+
+		public Builder indexCacheDir(String indexCacheDir) {
+			this.indexCacheDir = indexCacheDir;
+			return this;
+		}
+
+		// size limit of the index cache in GB, 0 means no limit
+		public Builder indexCacheSize(double indexCacheSize) {
+			this.indexCacheSize = indexCacheSize;
+			return this;
+		}
+
+		public Builder progressSeconds(int progressSeconds) {
+			this.progressSeconds = progressSeconds;
+			return this;
+		}
+
+		public Builder topK(int topK) {
+			this.topK = topK;
+			return this;
+		}
+
+		// reuse the stages of an earlier run in the output directory, off unless asked for
+		public Builder resume(boolean resume) {
+			this.resume = resume;
+			return this;
+		}
+
+		// number of top viruses whose ranking decides when to stop mapping more reads, 0 maps all reads
+		public Builder subsampleTop(int subsampleTop) {
+			this.subsampleTop = subsampleTop;
+			return this;
+		}
+
+		// largest change of the relative abundance of a top virus between increments that counts as stable
+		public Builder subsampleTolerance(double subsampleTolerance) {
+			this.subsampleTolerance = subsampleTolerance;
+			return this;
+		}
+
+		// number of reads (pairs) in the first increment, doubled in every further increment
+		public Builder subsampleStart(long subsampleStart) {
+			this.subsampleStart = subsampleStart;
+			return this;
+		}
+
+		// number of parts the reads are split into, each mapped by its own kallisto/salmon process
+		public Builder numShards(int numShards) {
+			this.numShards = numShards;
+			return this;
+		}
+
+		// memory per thread of samtools sort, e.g. 2G
+		public Builder sortMemory(String sortMemory) {
+			this.sortMemory = sortMemory;
+			return this;
+		}
+
+		// bin size of the depth track, 0 means no depth profiles
+		public Builder depthBin(int depthBin) {
+			this.depthBin = depthBin;
+			return this;
+		}
+
+		// memory in MB for the reads kept by the coverage stage, 0 means no limit
+		public Builder coverageMemory(double coverageMemory) {
+			this.coverageMemory = coverageMemory;
+			return this;
+		}
+
+		// comma-separated ranks the abundances are rolled up to, empty for none
+		public Builder rollUpRanks(String rollUpRanks) {
+			this.rollUpRanks = rollUpRanks;
+			return this;
+		}
+
+		// map the reads to the reference database in the JVM instead of running kallisto/salmon
+		public Builder builtinMapper(boolean builtinMapper) {
+			this.builtinMapper = builtinMapper;
+			return this;
+		}
+
+		public RunConfig build() {
+			if (read1.isEmpty()) {
+				throw new IllegalArgumentException("Please provide the read file.");
+			}
+			if (indexFile.isEmpty() && refDbFile.isEmpty()) {
+				throw new IllegalArgumentException(
+						"Please provide the reference database or kallisto index file or salmon index directory.");
+			}
+			if (ratioCriteria < 0.0 || ratioCriteria > 1.0) {
+				throw new IllegalArgumentException("The ratio criteria should be between 0.0 and 1.0.");
+			}
+			if (coverageCriteria < 0.0 || coverageCriteria > 1.0) {
+				throw new IllegalArgumentException("The coverage criteria should be between 0.0 and 1.0.");
+			}
+			if (numThreads < 1) {
+				throw new IllegalArgumentException("The number of threads should be at least 1.");
+			}
+			if (depthBin < 0) {
+				throw new IllegalArgumentException("The bin size of the depth track should not be negative.");
+			}
+			for (String rank : rollUpRanks.split(",")) {
+				if (!rank.trim().isEmpty() && Taxonomy.getRank(rank) < 0) {
+					throw new IllegalArgumentException("Unknown rank " + rank.trim() + ", the ranks are "
+							+ String.join(", ", Taxonomy.RANKS) + ".");
+				}
+			}
+			if (numShards < 1) {
+				throw new IllegalArgumentException("The number of shards should be at least 1.");
+			}
+			if (subsampleTop > 0 && (subsampleStart < 1 || subsampleTolerance < 0.0)) {
+				throw new IllegalArgumentException(
+						"The first increment should have at least 1 read and the tolerance should not be negative.");
+			}
+			if (builtinMapper) {
+				if (refDbFile.isEmpty()) {
+					throw new IllegalArgumentException("The built-in mapper needs the reference database (-db).");
+				}
+				if (kmerSize < 1 || kmerSize > 31) {
+					throw new IllegalArgumentException("The k-mer size of the built-in mapper should be between 1 and 31.");
+				}
+				if (useSalmon || sortedSam || writeBam || subsampleTop > 0 || numShards > 1) {
+					throw new IllegalArgumentException(
+							"The built-in mapper cannot be combined with -salmon, -sam, -writeBam, -subsampleTop or -shards.");
+				}
+			}
+			return new RunConfig(this);
+		}
+	}
+
+	private RunConfig(Builder builder) {
+		outDir = builder.outDir.isEmpty() ? Paths.get(".").toAbsolutePath().normalize().toString()
+				: builder.outDir;
+		read1 = builder.read1;
+		read2 = builder.read2;
+		indexFile = builder.indexFile;
+		refDbFile = builder.refDbFile;
+		virusListFile = builder.virusListFile.isEmpty() ? "ncbi-viruses-list.txt" : builder.virusListFile;
+		ratioCriteria = builder.ratioCriteria;
+		coverageCriteria = builder.coverageCriteria;
+		numReadsCriteria = builder.numReadsCriteria;
+		useSalmon = builder.useSalmon;
+		reportRatio = builder.reportRatio;
+		streamMappings = builder.streamMappings;
+		writeBam = builder.writeBam;
+		sortedSam = builder.sortedSam;
+		numThreads = builder.numThreads;
+		kmerSize = builder.kmerSize;
+		indexCacheDir = builder.indexCacheDir;
+		indexCacheSize = builder.indexCacheSize;
+		progressSeconds = builder.progressSeconds;
+		topK = builder.topK;
+		resume = builder.resume;
+		subsampleTop = builder.subsampleTop;
+		subsampleTolerance = builder.subsampleTolerance;
+		subsampleStart = builder.subsampleStart;
+		numShards = builder.numShards;
+		sortMemory = builder.sortMemory;
+		depthBin = builder.depthBin;
+		coverageMemory = builder.coverageMemory;
+		rollUpRanks = builder.rollUpRanks;
+		builtinMapper = builder.builtinMapper;
+	}
+
+	/*
+	 * parse the command line arguments; out of range criteria and thread
+	 * counts are replaced by their defaults with a message, as before
+	 */
+	public static RunConfig fromArgs(String[] args) {
+		if (args.length == 0) {
+			throw new IllegalArgumentException("No arguments given.");
+		}
+		Builder builder = new Builder();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("-")) {
+				continue;
+			}
+			if ((i + 1) >= args.length) {
+				throw new IllegalArgumentException("Missing argument after " + args[i] + " .");
+			}
+			String value = args[i + 1];
+			if (args[i].equals("-o")) {
+				builder.outDir(value);
+			} else if (args[i].equals("-1")) {
+				builder.read1(value);
+			} else if (args[i].equals("-2")) {
+				builder.read2(value);
+			} else if (args[i].equals("-i")) {
+				builder.indexFile(value);
+			} else if (args[i].equals("-db")) {
+				builder.refDbFile(value);
+			} else if (args[i].equals("-l")) {
+				builder.virusListFile(value);
+			} else if (args[i].equals("-cr")) {
+				double ratioCriteria = Double.parseDouble(value);
+				if (ratioCriteria < 0.0 || ratioCriteria > 1.0) {
+					System.out.println("The ratio criteria should be between 0.0 and 1.0. "
+							+ "Using the default value: 0.3.");
+					ratioCriteria = 0.3;
+				}
+				builder.ratioCriteria(ratioCriteria);
+			} else if (args[i].equals("-co")) {
+				double coverageCriteria = Double.parseDouble(value);
+				if (coverageCriteria < 0.0 || coverageCriteria > 1.0) {
+					System.out.println("The coverage criteria should be between 0.0 and 1.0. "
+							+ "Using the default value: 0.1.");
+					coverageCriteria = 0.1;
+				}
+				builder.coverageCriteria(coverageCriteria);
+			} else if (args[i].equals("-cn")) {
+				builder.numReadsCriteria(Integer.parseInt(value));
+			} else if (args[i].equals("-t")) {
+				int numThreads = Integer.parseInt(value);
+				if (numThreads < 1) {
+					System.out.println("The number of threads should be at least 1. Using the default value: 1.");
+					numThreads = 1;
+				}
+				builder.numThreads(numThreads);
+			} else if (args[i].equals("-resume")) {
+				builder.resume(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-ranks")) {
+				builder.rollUpRanks(value.equalsIgnoreCase("none") ? "" : value);
+			} else if (args[i].equals("-coverageMem")) {
+				builder.coverageMemory(Double.parseDouble(value));
+			} else if (args[i].equals("-depthBin")) {
+				builder.depthBin(Integer.parseInt(value));
+			} else if (args[i].equals("-sortMem")) {
+				builder.sortMemory(value);
+			} else if (args[i].equals("-shards")) {
+				builder.numShards(Integer.parseInt(value));
+			} else if (args[i].equals("-subsampleTop")) {
+				builder.subsampleTop(Integer.parseInt(value));
+			} else if (args[i].equals("-subsampleTolerance")) {
+				builder.subsampleTolerance(Double.parseDouble(value));
+			} else if (args[i].equals("-subsampleStart")) {
+				builder.subsampleStart(Long.parseLong(value));
+			} else if (args[i].equals("-topK")) {
+				builder.topK(Integer.parseInt(value));
+			} else if (args[i].equals("-progress")) {
+				builder.progressSeconds(Integer.parseInt(value));
+			} else if (args[i].equals("-k")) {
+				builder.kmerSize(Integer.parseInt(value));
+			} else if (args[i].equals("-indexCache")) {
+				builder.indexCacheDir(value);
+			} else if (args[i].equals("-indexCacheSize")) {
+				builder.indexCacheSize(Double.parseDouble(value));
+			} else if (args[i].equals("-salmon")) {
+				builder.useSalmon(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-reportRatio")) {
+				builder.reportRatio(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-stream")) {
+				builder.streamMappings(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-writeBam")) {
+				builder.writeBam(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-sam")) {
+				builder.sortedSam(value.equalsIgnoreCase("true"));
+			} else if (args[i].equals("-builtin")) {
+				builder.builtinMapper(value.equalsIgnoreCase("true"));
+			} else {
+				throw new IllegalArgumentException("Invalid argument.");
+			}
+			i++;
+		}
+		return builder.build();
+	}
+
+	public String getOutDir() {
+		return outDir;
+	}
+
+	public String getRead1() {
+		return read1;
+	}
+
+	public String getRead2() {
+		return read2;
+	}
+
+	public String getIndexFile() {
+		return indexFile;
+	}
+
+	public String getRefDbFile() {
+		return refDbFile;
+	}
+
+	public String getVirusListFile() {
+		return virusListFile;
+	}
+
+	public double getRatioCriteria() {
+		return ratioCriteria;
+	}
+
+	public double getCoverageCriteria() {
+		return coverageCriteria;
+	}
+
+	public int getNumReadsCriteria() {
+		return numReadsCriteria;
+	}
+
+	public boolean isUseSalmon() {
+		return useSalmon;
+	}
+
+	public boolean isReportRatio() {
+		return reportRatio;
+	}
+
+	public boolean isStreamMappings() {
+		return streamMappings;
+	}
+
+	public boolean isWriteBam() {
+		return writeBam;
+	}
+
+	public boolean isSortedSam() {
+		return sortedSam;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public int getKmerSize() {
+		return kmerSize;
+	}
+
+	public String getIndexCacheDir() {
+		return indexCacheDir;
+	}
+
+	public double getIndexCacheSize() {
+		return indexCacheSize;
+	}
+
+	public int getProgressSeconds() {
+		return progressSeconds;
+	}
+
+	public int getTopK() {
+		return topK;
+	}
+
+	public boolean isResume() {
+		return resume;
+	}
+
+	public int getSubsampleTop() {
+		return subsampleTop;
+	}
+
+	public double getSubsampleTolerance() {
+		return subsampleTolerance;
+	}
+
+	public long getSubsampleStart() {
+		return subsampleStart;
+	}
+
+	public int getNumShards() {
+		return numShards;
+	}
+
+	public String getSortMemory() {
+		return sortMemory;
+	}
+
+	public int getDepthBin() {
+		return depthBin;
+	}
+
+	public double getCoverageMemory() {
+		return coverageMemory;
+	}
+
+	public String getRollUpRanks() {
+		return rollUpRanks;
+	}
+
+	public boolean isBuiltinMapper() {
+		return builtinMapper;
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Timing, throughput and memory of the stages of one run, written as json.
+ * CPU time is the CPU time of the whole JVM during the stage, so it includes
+ * other stages running at the same time; the CPU time of external processes
+ * is not included, only their wall time. Peak heap is the peak of the JVM up to the end of the
+ * stage.
+ */
+public class RunMetrics {
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final long startNanos = System.nanoTime();
+	private Thread progressThread;
+
+	public static class Stage {
+		private final String name;
+		private final long startNanos;
+		private final long startCpuNanos;
+		private long endNanos = -1;
+		private long endCpuNanos = -1;
+		private long peakHeapBytes = -1;
+		private final AtomicLong reads = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final Map<String, Integer> exitCodes = new LinkedHashMap<String, Integer>();
+		private final Map<String, Double> processSeconds = new LinkedHashMap<String, Double>();
+
+		private Stage(String name) {
+			this.name = name;
+			this.startNanos = System.nanoTime();
+			this.startCpuNanos = getProcessCpuNanos();
+		}
+
+		public void addReads(long n) {
+			reads.addAndGet(n);
+		}
+
+		public void setReads(long n) {
+			reads.set(n);
+		}
+
+		public void addBytes(long n) {
+			bytes.addAndGet(n);
+		}
+
+		public synchronized void addExitCode(String process, int exitCode) {
+			exitCodes.put(process, exitCode);
+		}
+
+		// wall time of an external process run during the stage
+		public synchronized void addProcessSeconds(String process, double seconds) {
+			processSeconds.put(process, seconds);
+		}
+
+		public synchronized void finish() {
+			if (endNanos < 0) {
+				endNanos = System.nanoTime();
+				endCpuNanos = getProcessCpuNanos();
+				peakHeapBytes = getPeakHeapBytes();
+			}
+		}
+
+		public synchronized boolean isFinished() {
+			return endNanos >= 0;
+		}
+
+		public synchronized double getSeconds() {
+			return ((endNanos < 0 ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+		}
+
+		private synchronized String toJson(long runStartNanos) {
+			double seconds = getSeconds();
+			StringBuilder json = new StringBuilder();
+			json.append("    {\n");
+			json.append("      \"name\": \"").append(name).append("\",\n");
+			json.append("      \"startSeconds\": ").append(format((startNanos - runStartNanos) / 1e9)).append(",\n");
+			json.append("      \"wallSeconds\": ").append(format(seconds)).append(",\n");
+			if (startCpuNanos >= 0 && endCpuNanos >= 0) {
+				json.append("      \"cpuSeconds\": ").append(format((endCpuNanos - startCpuNanos) / 1e9)).append(",\n");
+			}
+			json.append("      \"reads\": ").append(reads.get()).append(",\n");
+			json.append("      \"readsPerSecond\": ").append(format(seconds > 0 ? reads.get() / seconds : 0))
+					.append(",\n");
+			json.append("      \"bytesRead\": ").append(bytes.get()).append(",\n");
+			json.append("      \"peakHeapBytes\": ").append(peakHeapBytes).append(",\n");
+			json.append("      \"exitCodes\": {");
+			String sep = "";
+			for (Map.Entry<String, Integer> entry : exitCodes.entrySet()) {
+				json.append(sep).append("\"").append(escape(entry.getKey())).append("\": ").append(entry.getValue());
+				sep = ", ";
+			}
+			json.append("},\n");
+			json.append("      \"processSeconds\": {");
+			sep = "";
+			for (Map.Entry<String, Double> entry : processSeconds.entrySet()) {
+				json.append(sep).append("\"").append(escape(entry.getKey())).append("\": ")
+						.append(format(entry.getValue()));
+				sep = ", ";
+			}
+			json.append("}\n");
+			json.append("    }");
+			return json.toString();
+		}
+	}
+
+	public Stage startStage(String name) {
+		Stage stage = new Stage(name);
+		synchronized (stages) {
+			stages.add(stage);
+		}
+		return stage;
+	}
+
+	// print the reads processed by the running stages every given number of seconds
+	public void startProgress(final int seconds, final String label) {
+		if (seconds <= 0 || progressThread != null) {
+			return;
+		}
+		progressThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(seconds * 1000L);
+						synchronized (stages) {
+							for (Stage stage : stages) {
+								if (!stage.isFinished()) {
+									double elapsed = stage.getSeconds();
+									System.out.println("[" + label + "] " + stage.name + ": " + stage.reads.get()
+											+ " reads in " + format(elapsed) + " s ("
+											+ format(elapsed > 0 ? stage.reads.get() / elapsed : 0) + " reads/s).");
+								}
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "progress");
+		progressThread.setDaemon(true);
+		progressThread.start();
+	}
+
+	public void stopProgress() {
+		if (progressThread != null) {
+			progressThread.interrupt();
+			progressThread = null;
+		}
+	}
+
+	public void write(String fileName) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
+		bw.write("{\n");
+		bw.write("  \"totalSeconds\": " + format((System.nanoTime() - startNanos) / 1e9) + ",\n");
+		bw.write("  \"peakHeapBytes\": " + getPeakHeapBytes() + ",\n");
+		bw.write("  \"stages\": [\n");
+		synchronized (stages) {
+			for (int i = 0; i < stages.size(); i++) {
+				bw.write(stages.get(i).toJson(startNanos));
+				bw.write(i + 1 < stages.size() ? ",\n" : "\n");
+			}
+		}
+		bw.write("  ]\n");
+		bw.write("}\n");
+		bw.close();
+	}
+
+	private static long getProcessCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	private static long getPeakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String escape(String str) {
+		return str.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Sequential reader of sam records. Lines are read into a byte buffer that is
+ * reused for the whole input and only the offsets of the fields are recorded,
+ * so flag, position and read length are parsed from the bytes and reading a
+ * record does not create any objects. The reference name can be compared and
+ * looked up in place; a String is only made for it on request.
+ */
+public class SamReader {
+	private static final int NUM_FIELDS = 11;
+	private static final int RNAME = 2;
+	private static final int FLAG = 1;
+	private static final int POS = 3;
+	private static final int CIGAR = 5;
+	private static final int SEQ = 9;
+
+	private final InputStream in;
+	private byte[] buf = new byte[1 << 16];
+	// the current line is buf[lineStart, lineEnd), the unread bytes are buf[lineEnd + 1, limit)
+	private int lineStart = 0;
+	private int lineEnd = -1;
+	private int limit = 0;
+	private boolean eof = false;
+	private final int[] fieldStart = new int[NUM_FIELDS];
+	private final int[] fieldEnd = new int[NUM_FIELDS];
+	private int numFields = 0;
+
+	public SamReader(InputStream in) {
+		this.in = in;
+	}
+
+	// read the next line; false at the end of the input
+	public boolean next() throws IOException {
+		int pos = lineEnd + 1;
+		int newline = indexOf('\n', pos, limit);
+		while (newline < 0) {
+			if (eof) {
+				if (pos >= limit) {
+					return false;
+				}
+				// last line without a newline
+				newline = limit;
+				break;
+			}
+			int scanned = limit - pos;
+			pos = fill(pos);
+			newline = indexOf('\n', pos + scanned, limit);
+		}
+		lineStart = pos;
+		lineEnd = newline;
+		int end = lineEnd > lineStart && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+		tokenize(end);
+		return true;
+	}
+
+	// move the unread bytes from pos to the front of the buffer, grow it if needed and read more
+	private int fill(int pos) throws IOException {
+		int remaining = limit - pos;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, remaining);
+		} else if (remaining == buf.length) {
+			byte[] bigger = new byte[2 * buf.length];
+			System.arraycopy(buf, 0, bigger, 0, remaining);
+			buf = bigger;
+		}
+		limit = remaining;
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+		return 0;
+	}
+
+	private int indexOf(int b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void tokenize(int end) {
+		numFields = 0;
+		int start = lineStart;
+		for (int i = lineStart; i < end && numFields < NUM_FIELDS - 1; i++) {
+			if (buf[i] == '\t') {
+				fieldStart[numFields] = start;
+				fieldEnd[numFields] = i;
+				numFields++;
+				start = i + 1;
+			}
+		}
+		// the last field ends at the next tab or the end of the line
+		int i = start;
+		while (i < end && buf[i] != '\t') {
+			i++;
+		}
+		fieldStart[numFields] = start;
+		fieldEnd[numFields] = i;
+		numFields++;
+	}
+
+	public boolean isHeader() {
+		return lineEnd > lineStart && buf[lineStart] == '@';
+	}
+
+	public int getFlag() {
+		return parseInt(FLAG);
+	}
+
+	public boolean isUnmapped() {
+		return (getFlag() & 0x04) != 0;
+	}
+
+	// 1-based leftmost position
+	public int getPos() {
+		return parseInt(POS);
+	}
+
+	// length of SEQ, or the reference length of the cigar when SEQ is '*'
+	public int getSeqLength() {
+		checkField(SEQ);
+		int start = fieldStart[SEQ];
+		int end = fieldEnd[SEQ];
+		while (start < end && buf[start] == ' ') {
+			start++;
+		}
+		while (end > start && buf[end - 1] == ' ') {
+			end--;
+		}
+		if (end - start == 1 && buf[start] == '*') {
+			return getReferenceLength();
+		}
+		return end - start;
+	}
+
+	// number of reference bases covered by the alignment according to the cigar
+	public int getReferenceLength() {
+		checkField(CIGAR);
+		int len = 0;
+		int n = 0;
+		for (int i = fieldStart[CIGAR]; i < fieldEnd[CIGAR]; i++) {
+			byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				n = 10 * n + (b - '0');
+				continue;
+			}
+			switch (b) {
+			case 'M':
+			case 'D':
+			case 'N':
+			case '=':
+			case 'X':
+				len += n;
+				break;
+			default:
+				break;
+			}
+			n = 0;
+		}
+		return len;
+	}
+
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	// offset of the reference name in getBuffer()
+	public int getRefNameOffset() {
+		checkField(RNAME);
+		return fieldStart[RNAME];
+	}
+
+	public int getRefNameLength() {
+		checkField(RNAME);
+		return fieldEnd[RNAME] - fieldStart[RNAME];
+	}
+
+	// whether the reference name equals name[0, len)
+	public boolean refNameEquals(byte[] name, int len) {
+		if (getRefNameLength() != len) {
+			return false;
+		}
+		int off = fieldStart[RNAME];
+		for (int i = 0; i < len; i++) {
+			if (buf[off + i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getRefName() {
+		return new String(buf, getRefNameOffset(), getRefNameLength(), StandardCharsets.UTF_8).trim();
+	}
+
+	// write the current line including its newline
+	public void writeLine(OutputStream out) throws IOException {
+		out.write(buf, lineStart, lineEnd - lineStart);
+		out.write('\n');
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int parseInt(int field) {
+		checkField(field);
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		while (i < end && buf[i] == ' ') {
+			i++;
+		}
+		boolean negative = i < end && buf[i] == '-';
+		if (negative) {
+			i++;
+		}
+		int value = 0;
+		int digits = 0;
+		for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+			value = 10 * value + (buf[i] - '0');
+			digits++;
+		}
+		if (digits == 0) {
+			throw new NumberFormatException("Invalid number in sam line: "
+					+ new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+		}
+		return negative ? -value : value;
+	}
+
+	private void checkField(int field) {
+		if (field >= numFields) {
+			throw new IllegalStateException("Truncated sam line: "
+					+ new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+		}
+	}
+}
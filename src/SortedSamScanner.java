@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Parallel scan of a coordinate-sorted sam file. The file is cut into chunks
+ * at line starts, and each split point is moved forward to the next change
+ * of reference if there is one close by. Every chunk is memory-mapped and
+ * scanned on its own thread; the references that start and end inside a
+ * chunk are handed to the handler by that thread. The first and last
+ * reference of a chunk may continue in the neighbouring chunks, so they are
+ * merged across chunks and handed over at the end of the scan.
+ */
+public class SortedSamScanner {
+	// mapped chunks must stay below 2 GB
+	private static final long MAX_CHUNK_SIZE = 1L << 30;
+	private static final long MIN_CHUNK_SIZE = 1L << 20;
+	// how far a split point is moved to find a change of reference
+	private static final int MAX_ALIGN_BYTES = 1 << 20;
+
+	public interface Handler {
+		// called from several threads at the same time
+		void handle(String virusName, CoverageCalculator coverage);
+	}
+
+	// the reads of one reference inside a chunk
+	private static class Part {
+		final String virusName;
+		final CoverageCalculator coverage;
+
+		Part(String virusName, ReadBufferPool readBuffers) {
+			this.virusName = virusName;
+			this.coverage = new CoverageCalculator(readBuffers);
+		}
+	}
+
+	private static class ChunkResult {
+		Part first;
+		Part last;
+		long numReads = 0;
+	}
+
+	private final String fileName;
+	private final int numThreads;
+	private final ReadBufferPool readBuffers;
+
+	public SortedSamScanner(String fileName, int numThreads, ReadBufferPool readBuffers) {
+		this.fileName = fileName;
+		this.numThreads = Math.max(numThreads, 1);
+		this.readBuffers = readBuffers;
+	}
+
+	// scan the file and return the number of mapped reads
+	public long scan(final Handler handler) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			List<Long> splits = getSplits(channel);
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			List<Future<ChunkResult>> futures = new ArrayList<Future<ChunkResult>>();
+			for (int i = 0; i + 1 < splits.size(); i++) {
+				final long start = splits.get(i);
+				final long end = splits.get(i + 1);
+				futures.add(executor.submit(new Callable<ChunkResult>() {
+					public ChunkResult call() throws Exception {
+						return scanChunk(channel, start, end, handler);
+					}
+				}));
+			}
+			executor.shutdown();
+
+			// merge the references that straddle chunks, in file order
+			long numReads = 0;
+			Part pending = null;
+			try {
+				for (Future<ChunkResult> future : futures) {
+					ChunkResult result = future.get();
+					numReads += result.numReads;
+					Part[] parts = result.first == result.last ? new Part[] { result.first }
+							: new Part[] { result.first, result.last };
+					for (Part part : parts) {
+						if (part == null) {
+							continue;
+						}
+						if (pending != null && pending.virusName.equals(part.virusName)) {
+							pending.coverage.addReads(part.coverage);
+							part.coverage.release();
+						} else {
+							if (pending != null) {
+								handler.handle(pending.virusName, pending.coverage);
+							}
+							pending = part;
+						}
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			if (pending != null) {
+				handler.handle(pending.virusName, pending.coverage);
+			}
+			return numReads;
+		} finally {
+			file.close();
+		}
+	}
+
+	private ChunkResult scanChunk(FileChannel channel, long start, long end, Handler handler) throws IOException {
+		ChunkResult result = new ChunkResult();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		SamReader sam = new SamReader(new ByteBufferInputStream(buffer));
+		Part part = null;
+		byte[] partName = new byte[256];
+		int partNameLen = -1;
+		while (sam.next()) {
+			if (sam.isHeader() || sam.isUnmapped()) {
+				continue;
+			}
+			result.numReads++;
+			if (!sam.refNameEquals(partName, partNameLen)) {
+				// the previous reference is complete unless it is the first of the chunk
+				if (part != null && part != result.first) {
+					handler.handle(part.virusName, part.coverage);
+				}
+				part = new Part(sam.getRefName(), readBuffers);
+				if (result.first == null) {
+					result.first = part;
+				}
+				partNameLen = sam.getRefNameLength();
+				if (partNameLen > partName.length) {
+					partName = new byte[2 * partNameLen];
+				}
+				System.arraycopy(sam.getBuffer(), sam.getRefNameOffset(), partName, 0, partNameLen);
+			}
+			int startPos = sam.getPos();
+			part.coverage.addRead(startPos, sam.getSeqLength() + startPos - 1);
+		}
+		result.last = part;
+		return result;
+	}
+
+	// chunk boundaries: the end of the header, the split points and the end of the file
+	private List<Long> getSplits(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long headerEnd = 0;
+		while (headerEnd < size && byteAt(channel, headerEnd) == '@') {
+			headerEnd = nextLineStart(channel, headerEnd);
+		}
+		long dataSize = size - headerEnd;
+		long numChunks = Math.max(Math.min(4L * numThreads, dataSize / MIN_CHUNK_SIZE),
+				(dataSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		numChunks = Math.max(numChunks, 1);
+
+		List<Long> splits = new ArrayList<Long>();
+		splits.add(headerEnd);
+		for (long i = 1; i < numChunks; i++) {
+			long approx = headerEnd + dataSize * i / numChunks;
+			long split = alignToReference(channel, nextLineStart(channel, approx - 1));
+			if (split > splits.get(splits.size() - 1) && split < size) {
+				splits.add(split);
+			}
+		}
+		splits.add(size);
+		return splits;
+	}
+
+	// start of the first line whose reference differs from the one of the line at pos, or pos if none is close by
+	private long alignToReference(FileChannel channel, long pos) throws IOException {
+		ByteBuffer window = ByteBuffer.allocate(MAX_ALIGN_BYTES);
+		channel.read(window, pos);
+		byte[] b = window.array();
+		int len = window.position();
+		int refStart = -1;
+		int refLen = 0;
+		int lineStart = 0;
+		while (lineStart < len) {
+			int lineEnd = indexOf(b, '\n', lineStart, len);
+			if (lineEnd < 0) {
+				break;
+			}
+			// reference name is the third field
+			int fieldStart = lineStart;
+			for (int tabs = 0; tabs < 2 && fieldStart < lineEnd; fieldStart++) {
+				if (b[fieldStart] == '\t') {
+					tabs++;
+				}
+			}
+			int fieldEnd = indexOf(b, '\t', fieldStart, lineEnd);
+			if (fieldEnd < 0) {
+				fieldEnd = lineEnd;
+			}
+			if (refStart < 0) {
+				refStart = fieldStart;
+				refLen = fieldEnd - fieldStart;
+			} else if (!equals(b, refStart, refLen, fieldStart, fieldEnd - fieldStart)) {
+				return pos + lineStart;
+			}
+			lineStart = lineEnd + 1;
+		}
+		return pos;
+	}
+
+	private static long nextLineStart(FileChannel channel, long pos) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		long size = channel.size();
+		while (pos < size) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0) {
+				break;
+			}
+			int newline = indexOf(buf.array(), '\n', 0, n);
+			if (newline >= 0) {
+				return pos + newline + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	private static byte byteAt(FileChannel channel, long pos) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		channel.read(buf, pos);
+		return buf.get(0);
+	}
+
+	private static int indexOf(byte[] b, int value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equals(byte[] b, int off1, int len1, int off2, int len2) {
+		if (len1 != len2) {
+			return false;
+		}
+		for (int i = 0; i < len1; i++) {
+			if (b[off1 + i] != b[off2 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Taxonomy tree of the viruses of a catalog, built from the lineages
+ * (kingdom;phylum;class;order;family;genus;species) when the catalog is
+ * compiled and read from its memory-mapped tables. Every taxon is a node
+ * with an integer id, and every lineage id of the catalog is mapped to its
+ * node at each rank, so the abundances of a sample are rolled up to a rank
+ * with integer lookups only. Taxa are told apart by their whole path, so
+ * e.g. an unclassified genus of two families are two nodes.
+ */
+public class Taxonomy {
+	public static final String[] RANKS = { "kingdom", "phylum", "class", "order", "family", "genus", "species" };
+
+	private final VirusCatalog catalog;
+
+	Taxonomy(VirusCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/*
+	 * build the tree of the given lineages into parents, ranks and names, and
+	 * return the node of every lineage at every rank, lineage id *
+	 * RANKS.length + rank
+	 */
+	static int[] build(List<String> lineages, List<Integer> parents, List<Integer> ranks, List<String> names) {
+		int[] lineageNodes = new int[lineages.size() * RANKS.length];
+		// children of a node by name, only needed while building
+		Map<String, Integer> children = new HashMap<String, Integer>();
+		for (int lineageId = 0; lineageId < lineages.size(); lineageId++) {
+			String[] taxa = lineages.get(lineageId).split(";");
+			int parent = -1;
+			for (int rank = 0; rank < RANKS.length; rank++) {
+				String name = rank < taxa.length && !taxa[rank].trim().isEmpty() ? taxa[rank].trim() : "N/A";
+				String key = parent + "\t" + name;
+				Integer node = children.get(key);
+				if (node == null) {
+					node = names.size();
+					parents.add(parent);
+					ranks.add(rank);
+					names.add(name);
+					children.put(key, node);
+				}
+				lineageNodes[lineageId * RANKS.length + rank] = node;
+				parent = node;
+			}
+		}
+		return lineageNodes;
+	}
+
+	// index of a rank in RANKS, or -1 if there is no such rank
+	public static int getRank(String rankName) {
+		for (int rank = 0; rank < RANKS.length; rank++) {
+			if (RANKS[rank].equalsIgnoreCase(rankName.trim())) {
+				return rank;
+			}
+		}
+		return -1;
+	}
+
+	public int size() {
+		return catalog.getNumTaxa();
+	}
+
+	// node of a lineage of the catalog at a rank
+	public int getNode(int lineageId, int rank) {
+		return catalog.getTaxon(lineageId, rank);
+	}
+
+	public int getParent(int node) {
+		return catalog.getTaxonParent(node);
+	}
+
+	public int getRankOf(int node) {
+		return catalog.getTaxonRank(node);
+	}
+
+	public String getName(int node) {
+		return catalog.getTaxonName(node);
+	}
+
+	// the names from the kingdom down to the node, separated by ';'
+	public String getPath(int node) {
+		String path = getName(node);
+		for (int parent = getParent(node); parent >= 0; parent = getParent(parent)) {
+			path = getName(parent) + ";" + path;
+		}
+		return path;
+	}
+
+	/*
+	 * totals of the abundances of the given viruses (catalog ids) per taxon
+	 * of a rank, highest first, in O(n log n) for n viruses
+	 */
+	public RankTotals rollUp(int[] ids, double[] counts, int numViruses, int rank) {
+		// node ids in the upper half, positions in the lower half, so sorting groups the viruses by node
+		long[] order = new long[numViruses];
+		for (int i = 0; i < numViruses; i++) {
+			order[i] = ((long) getNode(catalog.getLineageId(ids[i]), rank) << 32) | i;
+		}
+		Arrays.sort(order);
+		RankTotals totals = new RankTotals(numViruses);
+		for (int i = 0; i < numViruses; i++) {
+			int node = (int) (order[i] >>> 32);
+			double count = counts[(int) order[i]];
+			if (totals.size > 0 && totals.nodes[totals.size - 1] == node) {
+				totals.totals[totals.size - 1] += count;
+				totals.numViruses[totals.size - 1]++;
+			} else {
+				totals.nodes[totals.size] = node;
+				totals.totals[totals.size] = count;
+				totals.numViruses[totals.size] = 1;
+				totals.size++;
+			}
+		}
+		totals.sort();
+		return totals;
+	}
+
+	// abundance totals of the taxa of one rank, highest first; equal totals are ordered by node id
+	public static class RankTotals {
+		private int[] nodes;
+		private double[] totals;
+		private int[] numViruses;
+		private int size = 0;
+
+		RankTotals(int capacity) {
+			nodes = new int[capacity];
+			totals = new double[capacity];
+			numViruses = new int[capacity];
+		}
+
+		private void sort() {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (totals[a] != totals[b]) {
+						return Double.compare(totals[b], totals[a]);
+					}
+					return Integer.compare(nodes[a], nodes[b]);
+				}
+			});
+			int[] sortedNodes = new int[size];
+			double[] sortedTotals = new double[size];
+			int[] sortedNumViruses = new int[size];
+			for (int i = 0; i < size; i++) {
+				sortedNodes[i] = nodes[order[i]];
+				sortedTotals[i] = totals[order[i]];
+				sortedNumViruses[i] = numViruses[order[i]];
+			}
+			nodes = sortedNodes;
+			totals = sortedTotals;
+			numViruses = sortedNumViruses;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int getNode(int i) {
+			return nodes[i];
+		}
+
+		public double getTotal(int i) {
+			return totals[i];
+		}
+
+		// number of viruses rolled up into the taxon
+		public int getNumViruses(int i) {
+			return numViruses[i];
+		}
+	}
+}
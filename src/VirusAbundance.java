@@ -0,0 +1,55 @@
+/*
+ * One row of the final abundance table: a virus that passed all filtering
+ * criteria, with its estimated abundance and the support and ratio behind it.
+ */
+public final class VirusAbundance {
+	private final String accession;
+	private final String name;
+	private final String lineage;
+	private final double estimatedAbundance;
+	private final double support;
+	private final double predictedSupport;
+	private final double ratio;
+
+	public VirusAbundance(String accession, String name, String lineage, double estimatedAbundance, double support,
+			double predictedSupport, double ratio) {
+		this.accession = accession;
+		this.name = name;
+		this.lineage = lineage;
+		this.estimatedAbundance = estimatedAbundance;
+		this.support = support;
+		this.predictedSupport = predictedSupport;
+		this.ratio = ratio;
+	}
+
+	public String getAccession() {
+		return accession;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// kingdom;phylum;class;order;family;genus;species
+	public String getLineage() {
+		return lineage;
+	}
+
+	public double getEstimatedAbundance() {
+		return estimatedAbundance;
+	}
+
+	// fraction of the genome covered by reads
+	public double getSupport() {
+		return support;
+	}
+
+	// fraction of the genome expected to be covered by this number of reads
+	public double getPredictedSupport() {
+		return predictedSupport;
+	}
+
+	public double getRatio() {
+		return ratio;
+	}
+}
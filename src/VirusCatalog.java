@@ -0,0 +1,465 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Compact, read-only catalog of the viruses in the reference database: genome
+ * length, name and lineage of every accession, addressed by an integer id.
+ *
+ * The catalog is compiled once from the tab-delimited virus list (-l) into a
+ * binary file that is memory-mapped at startup, so loading it does not depend
+ * on the size of the list. A text list is still accepted: it is compiled on
+ * the first run into $list.fvec next to it, which later runs map instead.
+ *
+ * Layout (big-endian):
+ *   header:   magic, version, numEntries, numLineages, numSlots, numTaxa
+ *   int[numEntries]        genome length
+ *   int[numEntries]        lineage id
+ *   int[numEntries + 1]    accession offsets into the string section
+ *   int[numEntries + 1]    name offsets into the string section
+ *   int[numLineages + 1]   lineage offsets into the string section
+ *   int[numSlots]          open-addressing accession hash table, id + 1 or 0
+ *   int[numLineages * 7]   taxon of every lineage at every rank of Taxonomy.RANKS
+ *   int[numTaxa]           parent taxon, -1 for a kingdom
+ *   int[numTaxa]           rank of the taxon
+ *   int[numTaxa + 1]       taxon name offsets into the string section
+ *   byte[]                 string section, UTF-8
+ */
+public class VirusCatalog {
+	private static final int MAGIC = 0x46564543; // "FVEC"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	// suffix of the catalog compiled next to a text list
+	static final String COMPILED_SUFFIX = ".fvec";
+
+	private final ByteBuffer buffer;
+	private final int numEntries;
+	private final int numLineages;
+	private final int numSlots;
+	private final int numTaxa;
+	private final int lengthsOffset;
+	private final int lineageIdsOffset;
+	private final int accessionOffsets;
+	private final int nameOffsets;
+	private final int lineageOffsets;
+	private final int slotsOffset;
+	private final int lineageTaxaOffset;
+	private final int taxonParentsOffset;
+	private final int taxonRanksOffset;
+	private final int taxonNameOffsets;
+	private final int stringsOffset;
+	private long checksum = -1;
+	private final Taxonomy taxonomy = new Taxonomy(this);
+
+	private VirusCatalog(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a virus catalog of version " + VERSION + ".");
+		}
+		numEntries = buffer.getInt(8);
+		numLineages = buffer.getInt(12);
+		numSlots = buffer.getInt(16);
+		numTaxa = buffer.getInt(20);
+		lengthsOffset = HEADER_SIZE;
+		lineageIdsOffset = lengthsOffset + 4 * numEntries;
+		accessionOffsets = lineageIdsOffset + 4 * numEntries;
+		nameOffsets = accessionOffsets + 4 * (numEntries + 1);
+		lineageOffsets = nameOffsets + 4 * (numEntries + 1);
+		slotsOffset = lineageOffsets + 4 * (numLineages + 1);
+		lineageTaxaOffset = slotsOffset + 4 * numSlots;
+		taxonParentsOffset = lineageTaxaOffset + 4 * numLineages * Taxonomy.RANKS.length;
+		taxonRanksOffset = taxonParentsOffset + 4 * numTaxa;
+		taxonNameOffsets = taxonRanksOffset + 4 * numTaxa;
+		stringsOffset = taxonNameOffsets + 4 * (numTaxa + 1);
+	}
+
+	/*
+	 * load a compiled catalog by memory-mapping it. A text virus list is
+	 * compiled into $list.fvec, which is used by later runs as long as it has
+	 * the modification time of the list; if it cannot be written, the list is
+	 * compiled in memory on every run.
+	 */
+	public static VirusCatalog load(String fileName) throws IOException {
+		if (isCompiled(fileName)) {
+			return map(fileName);
+		}
+		File list = new File(fileName);
+		File compiled = new File(fileName + COMPILED_SUFFIX);
+		if (compiled.isFile() && compiled.lastModified() == list.lastModified() && isCompiled(compiled.getPath())) {
+			try {
+				return map(compiled.getPath());
+			} catch (IOException e) {
+				// compiled by another version, compiled again below
+			}
+		}
+		byte[] catalog = compile(fileName);
+		writeCompiled(catalog, list, compiled);
+		return new VirusCatalog(ByteBuffer.wrap(catalog));
+	}
+
+	private static VirusCatalog map(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			return new VirusCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			file.close();
+		}
+	}
+
+	/*
+	 * write the catalog compiled from a list next to it with the modification
+	 * time of the list; it is renamed into place, so runs loading the list at
+	 * the same time never see a partial file
+	 */
+	private static void writeCompiled(byte[] catalog, File list, File compiled) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(compiled.getName(), ".tmp", compiled.getAbsoluteFile().getParentFile());
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(catalog);
+			} finally {
+				out.close();
+			}
+			if (tmp.setLastModified(list.lastModified())) {
+				Files.move(tmp.toPath(), compiled.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			// a read-only directory, the list is compiled again by the next run
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	public static boolean isCompiled(String fileName) throws IOException {
+		File file = new File(fileName);
+		if (file.length() < HEADER_SIZE) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	// compile a tab-delimited virus list: accession, name, lineage, length or accession, length
+	public static byte[] compile(String virusListFile) throws IOException {
+		List<String> accessions = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		List<Integer> lineageIds = new ArrayList<Integer>();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		Map<String, Integer> lineageDict = new HashMap<String, Integer>();
+		List<String> lineages = new ArrayList<String>();
+
+		BufferedReader br = new BufferedReader(new FileReader(virusListFile));
+		try {
+			String str = "";
+			while ((str = br.readLine()) != null) {
+				if (str.isEmpty()) {
+					continue;
+				}
+				String[] results = str.split("\t");
+				String accession = results[0].trim();
+				String name = "N/A";
+				String lineage = "N/A";
+				int length = 0;
+				if (results.length == 4) {
+					name = results[1].trim();
+					lineage = results[2].trim();
+					length = Integer.parseInt(results[3].trim());
+				} else {
+					length = Integer.parseInt(results[1].trim());
+				}
+				Integer lineageId = lineageDict.get(lineage);
+				if (lineageId == null) {
+					lineageId = lineages.size();
+					lineageDict.put(lineage, lineageId);
+					lineages.add(lineage);
+				}
+				// a repeated accession replaces the earlier entry
+				Integer id = ids.get(accession);
+				if (id == null) {
+					ids.put(accession, accessions.size());
+					accessions.add(accession);
+					names.add(name);
+					lengths.add(length);
+					lineageIds.add(lineageId);
+				} else {
+					names.set(id, name);
+					lengths.set(id, length);
+					lineageIds.set(id, lineageId);
+				}
+			}
+		} finally {
+			br.close();
+		}
+
+		List<Integer> taxonParents = new ArrayList<Integer>();
+		List<Integer> taxonRanks = new ArrayList<Integer>();
+		List<String> taxonNames = new ArrayList<String>();
+		int[] lineageTaxa = Taxonomy.build(lineages, taxonParents, taxonRanks, taxonNames);
+
+		int numEntries = accessions.size();
+		int numLineages = lineages.size();
+		int numTaxa = taxonNames.size();
+		int numSlots = 1;
+		while (numSlots < 2 * numEntries) {
+			numSlots <<= 1;
+		}
+		byte[][] accessionBytes = new byte[numEntries][];
+		byte[][] nameBytes = new byte[numEntries][];
+		byte[][] lineageBytes = new byte[numLineages][];
+		byte[][] taxonBytes = new byte[numTaxa][];
+		int stringsSize = 0;
+		for (int i = 0; i < numEntries; i++) {
+			accessionBytes[i] = accessions.get(i).getBytes(StandardCharsets.UTF_8);
+			nameBytes[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+			stringsSize += accessionBytes[i].length + nameBytes[i].length;
+		}
+		for (int i = 0; i < numLineages; i++) {
+			lineageBytes[i] = lineages.get(i).getBytes(StandardCharsets.UTF_8);
+			stringsSize += lineageBytes[i].length;
+		}
+		for (int i = 0; i < numTaxa; i++) {
+			taxonBytes[i] = taxonNames.get(i).getBytes(StandardCharsets.UTF_8);
+			stringsSize += taxonBytes[i].length;
+		}
+
+		int size = HEADER_SIZE + 4 * (4 * numEntries + numLineages + 3 + numSlots + lineageTaxa.length + 3 * numTaxa + 1)
+				+ stringsSize;
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.putInt(MAGIC).putInt(VERSION).putInt(numEntries).putInt(numLineages).putInt(numSlots).putInt(numTaxa);
+		for (int i = 0; i < numEntries; i++) {
+			out.putInt(lengths.get(i));
+		}
+		for (int i = 0; i < numEntries; i++) {
+			out.putInt(lineageIds.get(i));
+		}
+		int offset = 0;
+		for (int i = 0; i < numEntries; i++) {
+			out.putInt(offset);
+			offset += accessionBytes[i].length;
+		}
+		out.putInt(offset);
+		for (int i = 0; i < numEntries; i++) {
+			out.putInt(offset);
+			offset += nameBytes[i].length;
+		}
+		out.putInt(offset);
+		for (int i = 0; i < numLineages; i++) {
+			out.putInt(offset);
+			offset += lineageBytes[i].length;
+		}
+		out.putInt(offset);
+		int[] slots = new int[numSlots];
+		for (int i = 0; i < numEntries; i++) {
+			int slot = hash(accessionBytes[i], 0, accessionBytes[i].length) & (numSlots - 1);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (numSlots - 1);
+			}
+			slots[slot] = i + 1;
+		}
+		for (int i = 0; i < numSlots; i++) {
+			out.putInt(slots[i]);
+		}
+		for (int taxon : lineageTaxa) {
+			out.putInt(taxon);
+		}
+		for (int parent : taxonParents) {
+			out.putInt(parent);
+		}
+		for (int rank : taxonRanks) {
+			out.putInt(rank);
+		}
+		// the taxon names follow the lineages in the string section
+		for (int i = 0; i < numTaxa; i++) {
+			out.putInt(offset);
+			offset += taxonBytes[i].length;
+		}
+		out.putInt(offset);
+		for (int i = 0; i < numEntries; i++) {
+			out.put(accessionBytes[i]);
+		}
+		for (int i = 0; i < numEntries; i++) {
+			out.put(nameBytes[i]);
+		}
+		for (int i = 0; i < numLineages; i++) {
+			out.put(lineageBytes[i]);
+		}
+		for (int i = 0; i < numTaxa; i++) {
+			out.put(taxonBytes[i]);
+		}
+		return out.array();
+	}
+
+	// FNV-1a
+	private static int hash(byte[] bytes, int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	public int size() {
+		return numEntries;
+	}
+
+	/*
+	 * CRC32 of the compiled catalog; a text list and the catalog compiled from
+	 * it have the same checksum, so results of runs can be checked to use the
+	 * same ids
+	 */
+	public synchronized long getChecksum() {
+		if (checksum < 0) {
+			CRC32 crc = new CRC32();
+			crc.update(buffer.duplicate());
+			checksum = crc.getValue();
+		}
+		return checksum;
+	}
+
+	// id of the accession given as bytes, or -1 if it is not in the catalog
+	public int getId(byte[] bytes, int off, int len) {
+		if (numSlots == 0) {
+			return -1;
+		}
+		int slot = hash(bytes, off, len) & (numSlots - 1);
+		while (true) {
+			int id = buffer.getInt(slotsOffset + 4 * slot) - 1;
+			if (id < 0) {
+				return -1;
+			}
+			if (accessionEquals(id, bytes, off, len)) {
+				return id;
+			}
+			slot = (slot + 1) & (numSlots - 1);
+		}
+	}
+
+	public int getId(String accession) {
+		byte[] bytes = accession.getBytes(StandardCharsets.UTF_8);
+		return getId(bytes, 0, bytes.length);
+	}
+
+	private boolean accessionEquals(int id, byte[] bytes, int off, int len) {
+		int start = buffer.getInt(accessionOffsets + 4 * id);
+		int end = buffer.getInt(accessionOffsets + 4 * (id + 1));
+		if (end - start != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (buffer.get(stringsOffset + start + i) != bytes[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getLength(int id) {
+		return buffer.getInt(lengthsOffset + 4 * id);
+	}
+
+	public int getLineageId(int id) {
+		return buffer.getInt(lineageIdsOffset + 4 * id);
+	}
+
+	public String getAccession(int id) {
+		return getString(accessionOffsets, id);
+	}
+
+	public String getName(int id) {
+		return getString(nameOffsets, id);
+	}
+
+	// kingdom;phylum;class;order;family;genus;species
+	public String getLineage(int id) {
+		return getString(lineageOffsets, getLineageId(id));
+	}
+
+	// number of distinct lineages, the range of getLineageId()
+	public int getNumLineages() {
+		return numLineages;
+	}
+
+	public String getLineageString(int lineageId) {
+		return getString(lineageOffsets, lineageId);
+	}
+
+	// taxonomy tree of the lineages, read from the tables compiled into the catalog
+	public Taxonomy getTaxonomy() {
+		return taxonomy;
+	}
+
+	int getNumTaxa() {
+		return numTaxa;
+	}
+
+	// taxon of a lineage at a rank of Taxonomy.RANKS
+	int getTaxon(int lineageId, int rank) {
+		return buffer.getInt(lineageTaxaOffset + 4 * (lineageId * Taxonomy.RANKS.length + rank));
+	}
+
+	int getTaxonParent(int taxon) {
+		return buffer.getInt(taxonParentsOffset + 4 * taxon);
+	}
+
+	int getTaxonRank(int taxon) {
+		return buffer.getInt(taxonRanksOffset + 4 * taxon);
+	}
+
+	String getTaxonName(int taxon) {
+		return getString(taxonNameOffsets, taxon);
+	}
+
+	private String getString(int offsetsTable, int index) {
+		int start = buffer.getInt(offsetsTable + 4 * index);
+		int end = buffer.getInt(offsetsTable + 4 * (index + 1));
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(stringsOffset + start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage:");
+			System.out.println("java -cp /path-to-FastViromeExplorer/bin VirusCatalog $virusListFile $catalogFile");
+			System.exit(1);
+		}
+		try {
+			byte[] catalog = compile(args[0]);
+			FileOutputStream out = new FileOutputStream(args[1]);
+			out.write(catalog);
+			out.close();
+			System.out.println("Wrote virus catalog " + args[1] + ".");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
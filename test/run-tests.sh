@@ -0,0 +1,23 @@
+#!/bin/bash
+# Compiles src/ and test/src/ and runs every *Test class; run from the repository root.
+# usage: test/run-tests.sh [TestClass ...]
+set -e
+cd "$(dirname "$0")/.."
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -Xlint:all -d "$out" src/*.java test/src/*.java
+if [ $# -gt 0 ]; then
+	tests="$*"
+else
+	tests=$(cd test/src && ls *Test.java | sed 's/\.java$//')
+fi
+failed=0
+for test in $tests; do
+	if java -ea -cp "$out" "$test"; then
+		echo "PASS $test"
+	else
+		echo "FAIL $test"
+		failed=$((failed + 1))
+	fi
+done
+[ $failed -eq 0 ]
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Ordering of AbundanceTable on the catalog of test/fixtures/viruses.txt:
+ * highest count first, equal counts by accession, and only the top K kept
+ * when a limit is set.
+ */
+public class AbundanceTableTest {
+	public static void main(String[] args) throws Exception {
+		VirusCatalog catalog = VirusCatalog.load(Check.copyFixture("viruses.txt"));
+		ordersByCountThenAccession(catalog);
+		keepsTheTopK(catalog);
+		matchesAFullSort(catalog);
+	}
+
+	private static String accessions(VirusCatalog catalog, AbundanceTable table) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < table.size(); i++) {
+			sb.append(i == 0 ? "" : ",").append(catalog.getAccession(table.getId(i)));
+		}
+		return sb.toString();
+	}
+
+	private static void ordersByCountThenAccession(VirusCatalog catalog) {
+		AbundanceTable table = new AbundanceTable(catalog, 0);
+		table.add(catalog.getId("NC_004"), 5.0);
+		table.add(catalog.getId("NC_001"), 10.0);
+		table.add(catalog.getId("NC_003"), 5.0);
+		table.add(catalog.getId("NC_002"), 12.5);
+		table.add(catalog.getId("NC_005"), 0.5);
+		table.sort();
+		Check.equal("NC_002,NC_001,NC_003,NC_004,NC_005", accessions(catalog, table), "order");
+		Check.equal(12.5, table.getCount(0), "highest count");
+		Check.equal(0.5, table.getCount(4), "lowest count");
+		// sorting again changes nothing
+		table.sort();
+		Check.equal("NC_002,NC_001,NC_003,NC_004,NC_005", accessions(catalog, table), "order after sorting again");
+
+		AbundanceTable empty = new AbundanceTable(catalog, 3);
+		empty.sort();
+		Check.equal(0, empty.size(), "size of an empty table");
+	}
+
+	private static void keepsTheTopK(VirusCatalog catalog) {
+		AbundanceTable table = new AbundanceTable(catalog, 2);
+		table.add(catalog.getId("NC_005"), 1.0);
+		table.add(catalog.getId("NC_004"), 7.0);
+		table.add(catalog.getId("NC_003"), 3.0);
+		// a tie with the lowest kept entry only replaces it with a smaller accession
+		table.add(catalog.getId("NC_006"), 3.0);
+		table.add(catalog.getId("NC_001"), 3.0);
+		table.sort();
+		Check.equal(2, table.size(), "size with a limit of 2");
+		Check.equal("NC_004,NC_001", accessions(catalog, table), "top 2");
+
+		table = new AbundanceTable(catalog, 10);
+		table.add(catalog.getId("NC_003"), 2.0);
+		table.add(catalog.getId("NC_007"), 4.0);
+		table.sort();
+		Check.equal("NC_007,NC_003", accessions(catalog, table), "a limit above the number of entries");
+
+		// a negative limit means no limit, as 0 does
+		table = new AbundanceTable(catalog, -1);
+		for (int id = 0; id < catalog.size(); id++) {
+			table.add(id, 1.0);
+		}
+		table.sort();
+		Check.equal(catalog.size(), table.size(), "size without a limit");
+	}
+
+	private static void matchesAFullSort(final VirusCatalog catalog) {
+		Random random = new Random(11);
+		for (int round = 0; round < 50; round++) {
+			int topK = random.nextInt(12);
+			AbundanceTable table = new AbundanceTable(catalog, topK);
+			List<double[]> entries = new ArrayList<double[]>();
+			int n = random.nextInt(100);
+			for (int i = 0; i < n; i++) {
+				int id = random.nextInt(catalog.size());
+				// few distinct counts, so there are many ties
+				double count = random.nextInt(5);
+				table.add(id, count);
+				entries.add(new double[] { id, count });
+			}
+			Collections.sort(entries, new Comparator<double[]>() {
+				public int compare(double[] a, double[] b) {
+					if (a[1] != b[1]) {
+						return Double.compare(b[1], a[1]);
+					}
+					return catalog.getAccession((int) a[0]).compareTo(catalog.getAccession((int) b[0]));
+				}
+			});
+			table.sort();
+			int expectedSize = topK == 0 ? n : Math.min(topK, n);
+			Check.equal(expectedSize, table.size(), "size of round " + round);
+			for (int i = 0; i < expectedSize; i++) {
+				Check.equal((int) entries.get(i)[0], table.getId(i), "id " + i + " of round " + round);
+				Check.equal(entries.get(i)[1], table.getCount(i), "count " + i + " of round " + round);
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Field offsets of BamReader on test/fixtures/reads.bam, which holds read1
+ * to read4 of reads.sam on the references NC_001 (500 bases) and NC_002 (300
+ * bases), then 2500 reads fill<i> of 10M on NC_002 at 1 + i % 290, spread
+ * over three bgzf blocks.
+ */
+public class BamReaderTest {
+	public static void main(String[] args) throws Exception {
+		for (int threads : new int[] { 1, 3 }) {
+			readsTheFixture(threads);
+		}
+		notBam();
+	}
+
+	private static void readsTheFixture(int threads) throws Exception {
+		String what = " on " + threads + " threads";
+		BamReader bam = new BamReader(Check.fixture("reads.bam"), threads);
+		try {
+			Check.equal(2, bam.getNumRefs(), "references" + what);
+			Check.equal("NC_001", bam.getRefName(0), "first reference" + what);
+			Check.equal(500, bam.getRefLength(0), "length of the first reference" + what);
+			Check.equal("NC_002", bam.getRefName(1), "second reference" + what);
+			Check.equal(300, bam.getRefLength(1), "length of the second reference" + what);
+
+			Check.isTrue(bam.next(), "read1" + what);
+			Check.equal(0, bam.getRefId(), "reference of read1" + what);
+			Check.equal(10, bam.getPos(), "1-based position of read1" + what);
+			Check.equal(0, bam.getFlag(), "flag of read1" + what);
+			Check.equal(20, bam.getSeqLength(), "length of read1" + what);
+			Check.equal(20, bam.getReferenceLength(), "reference length of read1" + what);
+
+			Check.isTrue(bam.next(), "read2" + what);
+			Check.equal(16, bam.getFlag(), "flag of read2" + what);
+			Check.equal(25, bam.getPos(), "position of read2" + what);
+			Check.isTrue(!bam.isUnmapped(), "read2 is mapped" + what);
+
+			// no SEQ, so the length comes from the cigar 10M2I5M3D4N2S
+			Check.isTrue(bam.next(), "read3" + what);
+			Check.equal(0, bam.getSeqLength(), "length of read3" + what);
+			Check.equal(22, bam.getReferenceLength(), "reference length of read3" + what);
+
+			Check.isTrue(bam.next(), "read4" + what);
+			Check.isTrue(bam.isUnmapped(), "read4 is unmapped" + what);
+			Check.equal(-1, bam.getRefId(), "reference of read4" + what);
+
+			for (int i = 0; i < 2500; i++) {
+				Check.isTrue(bam.next(), "fill" + i + what);
+				Check.equal(1, bam.getRefId(), "reference of fill" + i + what);
+				Check.equal(1 + i % 290, bam.getPos(), "position of fill" + i + what);
+				Check.equal(10, bam.getSeqLength(), "length of fill" + i + what);
+				Check.equal(10, bam.getReferenceLength(), "reference length of fill" + i + what);
+			}
+			Check.isTrue(!bam.next(), "end of the file" + what);
+		} finally {
+			bam.close();
+		}
+	}
+
+	private static void notBam() throws Exception {
+		// a valid bgzf file whose content is not bam
+		final File file = File.createTempFile("not-bam", ".bam");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(BgzfReaderTest.bgzf("BAI\1 not a bam file".getBytes(), 100));
+			out.close();
+			Check.fails(IOException.class, new Check.Code() {
+				public void run() throws Exception {
+					new BamReader(file.getPath(), 1);
+				}
+			}, "opening a file that is not bam");
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * BgzfReader on blocks written here: the blocks come back in file order on
+ * one or several threads, and broken files fail with an IOException.
+ */
+public class BgzfReaderTest {
+	// the empty block that ends every bgzf file
+	private static final byte[] EOF_BLOCK = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0,
+			0, 0, 0, 0, 0, 0, 0 };
+
+	public static void main(String[] args) throws Exception {
+		blocksComeBackInOrder();
+		emptyFile();
+		badCrc();
+		truncatedBlock();
+		notBgzf();
+	}
+
+	// one bgzf block of data: gzip header with the BC extra field, raw deflate data, crc32 and size
+	static byte[] block(byte[] data, int off, int len) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, off, len);
+		deflater.finish();
+		byte[] deflated = new byte[len + 1024];
+		int n = 0;
+		while (!deflater.finished()) {
+			n += deflater.deflate(deflated, n, deflated.length - n);
+		}
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(data, off, len);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0 }, 0, 16);
+		writeShort(out, 18 + n + 8 - 1);
+		out.write(deflated, 0, n);
+		writeInt(out, (int) crc.getValue());
+		writeInt(out, len);
+		return out.toByteArray();
+	}
+
+	// data cut into blocks of at most blockSize bytes, followed by the end-of-file block
+	static byte[] bgzf(byte[] data, int blockSize) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int off = 0; off < data.length; off += blockSize) {
+			byte[] b = block(data, off, Math.min(blockSize, data.length - off));
+			out.write(b, 0, b.length);
+		}
+		out.write(EOF_BLOCK, 0, EOF_BLOCK.length);
+		return out.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int v) {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		writeShort(out, v & 0xffff);
+		writeShort(out, v >>> 16);
+	}
+
+	private static byte[] readAll(InputStream in, int chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[chunk];
+		try {
+			int n;
+			while ((n = in.read(buf, 0, chunk)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			// stops the inflating threads
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static void blocksComeBackInOrder() throws Exception {
+		byte[] data = new byte[300000];
+		Random random = new Random(3);
+		for (int i = 0; i < data.length; i++) {
+			// compressible, but different in every block
+			data[i] = (byte) (random.nextInt(4) + 'A');
+		}
+		byte[] file = bgzf(data, 10000);
+		for (int threads : new int[] { 1, 4 }) {
+			byte[] read = readAll(new BgzfReader(new ByteArrayInputStream(file), threads), 777);
+			Check.isTrue(Arrays.equals(data, read), "inflated data on " + threads + " threads");
+		}
+		BgzfReader in = new BgzfReader(new ByteArrayInputStream(file), 2);
+		for (int i = 0; i < 20000; i++) {
+			Check.equal(data[i] & 0xff, in.read(), "byte " + i);
+		}
+		in.close();
+	}
+
+	private static void emptyFile() throws Exception {
+		Check.equal(0, readAll(new BgzfReader(new ByteArrayInputStream(EOF_BLOCK), 1), 100).length,
+				"bytes of an empty bgzf file");
+		Check.equal(-1, new BgzfReader(new ByteArrayInputStream(new byte[0]), 1).read(), "read of an empty file");
+	}
+
+	private static void failsToRead(final byte[] file, String what) {
+		for (final int threads : new int[] { 1, 3 }) {
+			Check.fails(IOException.class, new Check.Code() {
+				public void run() throws Exception {
+					readAll(new BgzfReader(new ByteArrayInputStream(file), threads), 4096);
+				}
+			}, what + " on " + threads + " threads");
+		}
+	}
+
+	private static void badCrc() {
+		byte[] data = "ACGTACGTACGTNNNN".getBytes();
+		byte[] file = bgzf(data, data.length);
+		// the crc32 sits 8 bytes before the end of the first block
+		int crcOffset = file.length - EOF_BLOCK.length - 8;
+		file[crcOffset] ^= 1;
+		failsToRead(file, "a block with a wrong crc");
+	}
+
+	private static void truncatedBlock() {
+		byte[] file = bgzf(new byte[5000], 5000);
+		failsToRead(Arrays.copyOf(file, 30), "a truncated block");
+		failsToRead(Arrays.copyOf(file, 7), "a truncated header");
+	}
+
+	private static void notBgzf() {
+		failsToRead("plain text, not bgzf".getBytes(), "a file that is not bgzf");
+		// a gzip header without the BC field
+		byte[] file = bgzf(new byte[10], 10);
+		file[12] = 'X';
+		failsToRead(file, "a block without its size");
+	}
+}
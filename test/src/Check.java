@@ -0,0 +1,86 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/*
+ * Assertions of the tests in test/src. Every test class is a program whose
+ * main() runs its cases and throws an AssertionError on the first failure;
+ * test/run-tests.sh runs all of them.
+ */
+public class Check {
+	private Check() {
+	}
+
+	public static void isTrue(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+
+	public static void equal(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	public static void near(double expected, double actual, double tolerance, String what) {
+		if (Math.abs(expected - actual) > tolerance) {
+			throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	// run the code and check that it throws an exception of the given type
+	public static void fails(Class<? extends Throwable> type, Code code, String what) {
+		try {
+			code.run();
+		} catch (Throwable t) {
+			if (type.isInstance(t)) {
+				return;
+			}
+			throw new AssertionError(what + ": expected " + type.getSimpleName() + " but got " + t);
+		}
+		throw new AssertionError(what + ": expected " + type.getSimpleName());
+	}
+
+	public interface Code {
+		void run() throws Exception;
+	}
+
+	// the path of a file in test/fixtures, relative to the repository root the tests run in
+	public static String fixture(String name) {
+		return "test/fixtures/" + name;
+	}
+
+	/*
+	 * a copy of a fixture in a new temporary directory, for code that writes
+	 * next to its input; the directory is deleted when the test ends
+	 */
+	public static String copyFixture(String name) throws IOException {
+		File dir = tempDir();
+		File copy = new File(dir, name);
+		Files.copy(new File(fixture(name)).toPath(), copy.toPath());
+		return copy.getPath();
+	}
+
+	// a new temporary directory that is deleted with its files when the test ends
+	public static File tempDir() throws IOException {
+		final File dir = Files.createTempDirectory("fve-test").toFile();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				delete(dir);
+			}
+		});
+		return dir;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+/*
+ * The difference-array sweep of CoverageCalculator against the per-base
+ * TreeSet scan that getRatio() used before it, including reads that hang
+ * over the ends of the genome.
+ */
+public class CoverageCalculatorTest {
+	public static void main(String[] args) throws Exception {
+		randomReadsMatchTreeSetScan();
+		readsOverhangingTheGenome();
+		depthAndBreadth();
+		spilledReadsAreCounted();
+	}
+
+	/*
+	 * covered bases as counted by the original getRatio(): for every base,
+	 * walk back over the reads starting at or before it
+	 */
+	private static long treeSetCoveredBps(int[][] reads, int genomeLen, double avgReadLen) {
+		TreeSet<Read> readSet = new TreeSet<Read>();
+		for (int[] read : reads) {
+			readSet.add(new Read(read[0], read[1]));
+		}
+		long coveredBps = 0;
+		for (int i = 1; i <= genomeLen; i++) {
+			Read tempRead = new Read(i, i + (2 * (int) avgReadLen));
+			NavigableSet<Read> smallSet = readSet.headSet(tempRead, true);
+			Iterator<Read> it = smallSet.descendingIterator();
+			while (it.hasNext()) {
+				tempRead = it.next();
+				if (i >= tempRead.getStartPos() && i <= tempRead.getEndPos()) {
+					coveredBps++;
+					break;
+				}
+				if (tempRead.getEndPos() + 2 * avgReadLen < i) {
+					break;
+				}
+			}
+		}
+		return coveredBps;
+	}
+
+	private static CoverageCalculator calculator(int[][] reads) {
+		CoverageCalculator coverage = new CoverageCalculator();
+		for (int[] read : reads) {
+			coverage.addRead(read[0], read[1]);
+		}
+		return coverage;
+	}
+
+	private static void randomReadsMatchTreeSetScan() {
+		Random random = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			int genomeLen = 500 + random.nextInt(5000);
+			int[][] reads = new int[random.nextInt(400)][];
+			for (int i = 0; i < reads.length; i++) {
+				// starts up to the last base, so some reads run past the end
+				int start = 1 + random.nextInt(genomeLen);
+				reads[i] = new int[] { start, start + 49 + random.nextInt(51) };
+			}
+			CoverageCalculator coverage = calculator(reads);
+			coverage.compute(genomeLen);
+			Check.equal(treeSetCoveredBps(reads, genomeLen, 100), coverage.getCoveredBps(),
+					"covered bases of round " + round);
+		}
+	}
+
+	private static void readsOverhangingTheGenome() {
+		// the last read starts past the end of the genome and covers nothing
+		int[][] reads = { { 1, 10 }, { 90, 130 }, { 95, 99 }, { 150, 200 } };
+		CoverageCalculator coverage = calculator(reads);
+		coverage.compute(100);
+		Check.equal(21L, coverage.getCoveredBps(), "covered bases");
+		Check.equal(treeSetCoveredBps(reads, 100, 50), coverage.getCoveredBps(), "covered bases of the TreeSet scan");
+		// depth within the genome only: 10 + 11 + 5
+		Check.near(0.26, coverage.getMeanDepth(), 1e-12, "mean depth");
+		Check.equal(4, coverage.getNumReads(), "reads");
+
+		// a read starting before the first base is clipped as well
+		coverage = calculator(new int[][] { { -5, 3 } });
+		coverage.compute(10);
+		Check.equal(3L, coverage.getCoveredBps(), "covered bases of a read starting before the genome");
+	}
+
+	private static void depthAndBreadth() {
+		CoverageCalculator coverage = calculator(new int[][] { { 1, 10 }, { 5, 14 } });
+		coverage.compute(20);
+		Check.equal(14L, coverage.getCoveredBps(), "covered bases");
+		Check.near(1.0, coverage.getMeanDepth(), 1e-12, "mean depth");
+		Check.near(0.7, coverage.getBreadth(), 1e-12, "breadth");
+		DepthProfile profile = coverage.computeProfile(20);
+		Check.near(1.0, profile.getMeanDepth(), 1e-12, "mean depth of the profile");
+		Check.equal(14L, coverage.getCoveredBps(), "covered bases after the profile");
+
+		coverage = new CoverageCalculator();
+		coverage.compute(0);
+		Check.equal(0L, coverage.getCoveredBps(), "covered bases of an empty genome");
+		Check.near(0.0, coverage.getBreadth(), 0, "breadth of an empty genome");
+	}
+
+	private static void spilledReadsAreCounted() throws Exception {
+		File spillFile = File.createTempFile("coverage-test", ".spill");
+		// a budget of two pages, so most reads go to the spill file
+		ReadBufferPool pool = new ReadBufferPool(2 * ReadBufferPool.PAGE_READS * 8, spillFile.getPath(), 1);
+		try {
+			Random random = new Random(7);
+			int[][] reads = new int[1000][];
+			CoverageCalculator coverage = new CoverageCalculator(pool);
+			for (int i = 0; i < reads.length; i++) {
+				int start = 1 + random.nextInt(20000);
+				reads[i] = new int[] { start, start + 99 };
+				coverage.addRead(start, start + 99);
+			}
+			coverage.compute(20000);
+			Check.isTrue(pool.getSpilledBytes() > 0, "reads were spilled");
+			Check.equal(treeSetCoveredBps(reads, 20000, 100), coverage.getCoveredBps(), "covered bases");
+			coverage.release();
+		} finally {
+			pool.close();
+			spillFile.delete();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * DepthProfile against the per-position depths it is built from: the median
+ * over runs of unequal length, the evenness, and the binned depth written as
+ * bedGraph, including bins that split a run, a short last bin and bins
+ * without reads.
+ */
+public class DepthProfileTest {
+	public static void main(String[] args) throws Exception {
+		median();
+		evenness();
+		bins();
+		matchesPositionDepths();
+		builtByCoverage();
+	}
+
+	private static DepthProfile profile(int... depths) {
+		DepthProfile profile = new DepthProfile(depths.length);
+		for (int depth : depths) {
+			profile.add(depth);
+		}
+		return profile;
+	}
+
+	// depth repeated count times, for each (depth, count) pair
+	private static int[] runs(int... depthsAndCounts) {
+		int length = 0;
+		for (int i = 1; i < depthsAndCounts.length; i += 2) {
+			length += depthsAndCounts[i];
+		}
+		int[] depths = new int[length];
+		int pos = 0;
+		for (int i = 0; i < depthsAndCounts.length; i += 2) {
+			Arrays.fill(depths, pos, pos + depthsAndCounts[i + 1], depthsAndCounts[i]);
+			pos += depthsAndCounts[i + 1];
+		}
+		return depths;
+	}
+
+	private static String bins(DepthProfile profile, int binSize) throws Exception {
+		StringWriter out = new StringWriter();
+		profile.writeBins(out, "v", binSize);
+		return out.toString();
+	}
+
+	private static void median() {
+		DepthProfile profile = profile(runs(0, 5, 2, 3, 7, 2));
+		Check.equal(3, profile.getNumRuns(), "runs");
+		// 5 of 10 positions have no reads, which is half of them
+		Check.equal(0, profile.getMedianDepth(), "median of half the positions without reads");
+		Check.equal(2, profile(runs(0, 4, 2, 3, 7, 3)).getMedianDepth(), "median in a short run");
+		// the runs are not in the order of their depth
+		Check.equal(7, profile(runs(9, 2, 7, 3, 1, 2)).getMedianDepth(), "median of unsorted runs");
+		Check.equal(1, profile(runs(3, 4, 1, 5)).getMedianDepth(), "median of an odd length");
+		Check.equal(4, profile(runs(4, 1)).getMedianDepth(), "median of one position");
+		Check.equal(0, new DepthProfile(100).getMedianDepth(), "median without positions");
+	}
+
+	private static void evenness() {
+		Check.equal(1.0, profile(runs(4, 50)).getEvenness(), "evenness of a uniform depth");
+		Check.equal(0.0, profile(runs(0, 50)).getEvenness(), "evenness without reads");
+		// a mean of 0.1 rounds to 0
+		Check.equal(0.0, profile(runs(1, 1, 0, 9)).getEvenness(), "evenness of a mean below 0.5");
+		// mean 2: half the positions have no reads and fall short by all of the mean
+		Check.equal(0.5, profile(runs(0, 5, 4, 5)).getEvenness(), "evenness of half the positions without reads");
+		// mean 3: the positions of depth 1 fall short by 2/3 each
+		Check.near(1 - 4 * (2 / 3.0) / 8, profile(runs(1, 4, 5, 4)).getEvenness(), 1e-12, "evenness of two depths");
+	}
+
+	private static void bins() throws Exception {
+		DepthProfile profile = profile(runs(0, 3, 5, 4, 1, 3));
+		// the run of 5 is split over the first two bins, and the last bin has 2 positions
+		Check.equal("v\t0\t4\t1.25\nv\t4\t8\t4.0\nv\t8\t10\t1.0\n", bins(profile, 4), "bins of 4");
+		Check.equal("v\t0\t10\t2.3\n", bins(profile, 10), "one bin");
+		Check.equal("v\t0\t10\t2.3\n", bins(profile, 1000), "a bin longer than the genome");
+		Check.equal("v\t3\t4\t5.0\nv\t4\t5\t5.0\nv\t5\t6\t5.0\nv\t6\t7\t5.0\nv\t7\t8\t1.0\nv\t8\t9\t1.0\nv\t9\t10\t1.0\n",
+				bins(profile, 1), "bins of one position");
+
+		Check.equal("v\t8\t10\t3.0\n", bins(profile(runs(0, 8, 3, 2)), 4), "bins without reads left out");
+		Check.equal("v\t0\t4\t6.0\nv\t4\t8\t6.0\nv\t8\t12\t6.0\n", bins(profile(runs(6, 12)), 4),
+				"one run over several bins");
+		Check.equal("", bins(profile(runs(0, 12)), 4), "bins of a genome without reads");
+	}
+
+	// the statistics computed from every position, on random profiles
+	private static void matchesPositionDepths() throws Exception {
+		Random random = new Random(19);
+		for (int round = 0; round < 200; round++) {
+			int[] depths = new int[1 + random.nextInt(300)];
+			int depth = 0;
+			for (int i = 0; i < depths.length; i++) {
+				if (random.nextInt(8) == 0) {
+					depth = random.nextInt(4) == 0 ? 0 : random.nextInt(20);
+				}
+				depths[i] = depth;
+			}
+			DepthProfile profile = profile(depths);
+			String what = " of round " + round;
+
+			long total = 0;
+			for (int d : depths) {
+				total += d;
+			}
+			double mean = (double) total / depths.length;
+			Check.near(mean, profile.getMeanDepth(), 1e-9, "mean" + what);
+
+			int[] sorted = depths.clone();
+			Arrays.sort(sorted);
+			Check.equal(sorted[(depths.length + 1) / 2 - 1], profile.getMedianDepth(), "median" + what);
+
+			long rounded = Math.round(mean);
+			double shortfall = 0;
+			for (int d : depths) {
+				if (d <= rounded) {
+					shortfall += 1 - (double) d / rounded;
+				}
+			}
+			Check.near(rounded == 0 ? 0.0 : 1 - shortfall / depths.length, profile.getEvenness(), 1e-9,
+					"evenness" + what);
+
+			int binSize = 1 + random.nextInt(50);
+			StringBuilder expected = new StringBuilder();
+			for (int start = 0; start < depths.length; start += binSize) {
+				int end = Math.min(start + binSize, depths.length);
+				long sum = 0;
+				for (int i = start; i < end; i++) {
+					sum += depths[i];
+				}
+				if (sum > 0) {
+					expected.append("v\t" + start + "\t" + end + "\t" + Math.round(100.0 * sum / (end - start)) / 100.0
+							+ "\n");
+				}
+			}
+			Check.equal(expected.toString(), bins(profile, binSize), "bins of " + binSize + what);
+		}
+	}
+
+	private static void builtByCoverage() {
+		CoverageCalculator coverage = new CoverageCalculator();
+		coverage.addRead(1, 5);
+		coverage.addRead(3, 7);
+		DepthProfile profile = coverage.computeProfile(10);
+		// depths 1 1 2 2 2 1 1 0 0 0
+		Check.equal(10, profile.getGenomeLen(), "genome length of the coverage");
+		Check.equal(4, profile.getNumRuns(), "runs of the coverage");
+		Check.equal(1, profile.getMedianDepth(), "median of the coverage");
+		Check.near(1.0, profile.getMeanDepth(), 1e-12, "mean of the coverage");
+		coverage.release();
+	}
+}
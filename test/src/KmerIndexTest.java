@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * KmerIndex on FASTA files written here: a k-mer and its reverse complement
+ * are one canonical k-mer, and every k-mer maps to the equivalence class of
+ * the references having it and to its first position on each of them, as
+ * found by a scan of the sequences as strings.
+ */
+public class KmerIndexTest {
+	public static void main(String[] args) throws Exception {
+		canonicalKmers();
+		matchesAStringScan();
+		readsTheFasta();
+	}
+
+	static String reverseComplement(String seq) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = seq.length() - 1; i >= 0; i--) {
+			sb.append("TGCAN".charAt("ACGTN".indexOf(Character.toUpperCase(seq.charAt(i)))));
+		}
+		return sb.toString();
+	}
+
+	static String randomSequence(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	// references as >name and their sequence in lines of 60 bases
+	static String writeFasta(String... namesAndSeqs) throws IOException {
+		File fasta = new File(Check.tempDir(), "refs.fa");
+		FileWriter out = new FileWriter(fasta);
+		for (int i = 0; i < namesAndSeqs.length; i += 2) {
+			out.write(">" + namesAndSeqs[i] + " description\n");
+			String seq = namesAndSeqs[i + 1];
+			for (int off = 0; off < seq.length(); off += 60) {
+				out.write(seq.substring(off, Math.min(off + 60, seq.length())) + "\n");
+			}
+		}
+		out.close();
+		return fasta.getPath();
+	}
+
+	private static long encode(String kmer) {
+		long code = 0;
+		for (int i = 0; i < kmer.length(); i++) {
+			code = (code << 2) | KmerIndex.encode((byte) kmer.charAt(i));
+		}
+		return code;
+	}
+
+	private static String canonical(String kmer) {
+		String rc = reverseComplement(kmer);
+		return kmer.compareTo(rc) <= 0 ? kmer : rc;
+	}
+
+	private static void canonicalKmers() throws Exception {
+		// ACGTT and its reverse complement AACGT are one k-mer, on the reverse strand
+		KmerIndex index = KmerIndex.build(writeFasta("fwd", "ACGTT", "rev", "aacgt"), 5);
+		Check.equal(1, index.getNumKmers(), "k-mers of a k-mer and its reverse complement");
+		Check.equal(-1, index.lookup(encode("ACGTT")), "lookup of the larger of the two");
+		int slot = index.lookup(encode("AACGT"));
+		Check.isTrue(slot >= 0, "lookup of the canonical k-mer");
+		Check.equal("[0, 1]", Arrays.toString(index.getClassRefs(index.getClass(slot))), "class of the k-mer");
+		Check.equal(1, index.getPosition(slot, 0), "position on the reference with the reverse complement");
+		Check.equal(0, index.getPosition(slot, 1), "position on the reference with the k-mer");
+
+		// k-mers do not span anything but A, C, G and T; GTACG is the reverse complement of CGTAC
+		index = KmerIndex.build(writeFasta("n", "ACGTNACGTACG"), 5);
+		Check.equal(2, index.getNumKmers(), "k-mers around an N");
+		Check.equal(12, index.getLength(0), "length with the N");
+
+		// a palindrome is its own reverse complement, and on the forward strand
+		index = KmerIndex.build(writeFasta("pal", "ACGCGT"), 6);
+		Check.equal(0, index.getPosition(index.lookup(encode("ACGCGT")), 0), "position of a palindrome");
+
+		for (final int k : new int[] { 0, 32 }) {
+			final String fasta = writeFasta("r", "ACGT");
+			Check.fails(IOException.class, new Check.Code() {
+				public void run() throws Exception {
+					KmerIndex.build(fasta, k);
+				}
+			}, "a k-mer size of " + k);
+		}
+	}
+
+	private static void matchesAStringScan() throws Exception {
+		Random random = new Random(5);
+		String shared = randomSequence(random, 300);
+		String[] seqs = new String[6];
+		seqs[0] = randomSequence(random, 500) + shared;
+		seqs[1] = shared + randomSequence(random, 400);
+		seqs[2] = reverseComplement(seqs[0].substring(100, 600));
+		seqs[3] = randomSequence(random, 700);
+		// a short repeat, so a k-mer is found more than once on a reference
+		seqs[4] = "ACGTACGTACGTACGTACGTACGT" + seqs[3].substring(0, 200) + seqs[3].substring(0, 200);
+		seqs[5] = shared.substring(50, 250) + seqs[1].substring(300);
+		String[] namesAndSeqs = new String[2 * seqs.length];
+		for (int ref = 0; ref < seqs.length; ref++) {
+			namesAndSeqs[2 * ref] = "ref" + ref;
+			namesAndSeqs[2 * ref + 1] = seqs[ref];
+		}
+		int k = 15;
+		KmerIndex index = KmerIndex.build(writeFasta(namesAndSeqs), k);
+
+		// canonical k-mer -> references having it, and its first position and strand on each
+		Map<String, TreeSet<Integer>> refsOfKmer = new HashMap<String, TreeSet<Integer>>();
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		for (int ref = 0; ref < seqs.length; ref++) {
+			for (int pos = 0; pos + k <= seqs[ref].length(); pos++) {
+				String kmer = seqs[ref].substring(pos, pos + k);
+				String key = canonical(kmer);
+				TreeSet<Integer> refs = refsOfKmer.get(key);
+				if (refs == null) {
+					refs = new TreeSet<Integer>();
+					refsOfKmer.put(key, refs);
+				}
+				refs.add(ref);
+				if (!positions.containsKey(key + ref)) {
+					positions.put(key + ref, (pos << 1) | (key.equals(kmer) ? 0 : 1));
+				}
+			}
+		}
+
+		Check.equal(seqs.length, index.getNumReferences(), "references");
+		Check.equal(refsOfKmer.size(), index.getNumKmers(), "k-mers");
+		Set<String> classes = new HashSet<String>();
+		for (Map.Entry<String, TreeSet<Integer>> entry : refsOfKmer.entrySet()) {
+			String kmer = entry.getKey();
+			int slot = index.lookup(encode(kmer));
+			Check.isTrue(slot >= 0, "lookup of " + kmer);
+			String refs = entry.getValue().toString();
+			Check.equal(refs, Arrays.toString(index.getClassRefs(index.getClass(slot))), "class of " + kmer);
+			classes.add(refs);
+			for (int ref = 0; ref < seqs.length; ref++) {
+				Integer pos = positions.get(kmer + ref);
+				Check.equal(pos == null ? -1 : pos, index.getPosition(slot, ref),
+						"position of " + kmer + " on ref" + ref);
+			}
+			String rc = reverseComplement(kmer);
+			if (!rc.equals(kmer)) {
+				Check.equal(-1, index.lookup(encode(rc)), "lookup of the reverse complement of " + kmer);
+			}
+		}
+		// classes are built up one reference at a time; here every class on the way is the set of some k-mer
+		Check.equal(classes.size(), index.getNumClasses(), "equivalence classes");
+	}
+
+	private static void readsTheFasta() throws Exception {
+		File fasta = new File(Check.tempDir(), "refs.fa");
+		FileWriter out = new FileWriter(fasta);
+		out.write("text before the first header\n>first one\nACGTA\n  CGTAC  \n\n>second\nGGGGG\n>first again\nTTTTT\n");
+		out.close();
+		KmerIndex index = KmerIndex.build(fasta.getPath(), 4);
+		// a repeated name keeps its first sequence
+		Check.equal(2, index.getNumReferences(), "references of a repeated name");
+		Check.equal("first", index.getName(0), "name up to the first space");
+		Check.equal(10, index.getLength(0), "length over several lines");
+		Check.equal("second", index.getName(1), "name of the second reference");
+		Check.equal(-1, index.lookup(encode("AAAA")), "k-mer of the dropped sequence");
+		Check.isTrue(index.lookup(encode("CCCC")) >= 0, "k-mer of the second reference");
+	}
+}
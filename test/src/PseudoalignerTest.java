@@ -0,0 +1,150 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Pseudoaligner on references and reads written here: reads are counted on
+ * the references they map to, placed by their first k-mer on either strand,
+ * and the reads shared by two references are split among them by the EM in
+ * proportion to the reads only one of them has.
+ */
+public class PseudoalignerTest {
+	private static final int K = 15;
+	private static final int READ_LENGTH = 50;
+
+	public static void main(String[] args) throws Exception {
+		for (int threads : new int[] { 1, 3 }) {
+			splitsSharedReads(threads);
+		}
+		placesReads();
+		estimatesFragmentLength();
+	}
+
+	private static String writeFastq(List<String> reads) throws IOException {
+		File fastq = new File(Check.tempDir(), "reads.fq");
+		FileWriter out = new FileWriter(fastq);
+		char[] quals = new char[READ_LENGTH];
+		Arrays.fill(quals, 'I');
+		for (int i = 0; i < reads.size(); i++) {
+			out.write("@read" + i + "\n" + reads.get(i) + "\n+\n" + new String(quals, 0, reads.get(i).length()) + "\n");
+		}
+		out.close();
+		return fastq.getPath();
+	}
+
+	// a read of a region, on a random strand
+	private static String read(Random random, String region) {
+		int pos = random.nextInt(region.length() - READ_LENGTH + 1);
+		String read = region.substring(pos, pos + READ_LENGTH);
+		return random.nextBoolean() ? read : KmerIndexTest.reverseComplement(read);
+	}
+
+	private static Pseudoaligner map(KmerIndex index, int threads, String reads1, String reads2) throws Exception {
+		Pseudoaligner mapper = new Pseudoaligner(index, threads, new ReadBufferPool(0, null, 16));
+		mapper.map(reads1, reads2, new RunMetrics().startStage("map"));
+		return mapper;
+	}
+
+	private static void splitsSharedReads(int threads) throws Exception {
+		String what = " on " + threads + " threads";
+		Random random = new Random(17);
+		String onlyA = KmerIndexTest.randomSequence(random, 300);
+		String onlyB = KmerIndexTest.randomSequence(random, 300);
+		String shared = KmerIndexTest.randomSequence(random, 300);
+		// three references of one length, so of one effective length
+		KmerIndex index = KmerIndex.build(KmerIndexTest.writeFasta("A", onlyA + shared, "B", onlyB + shared, "C",
+				KmerIndexTest.randomSequence(random, 600)), K);
+		List<String> reads = new ArrayList<String>();
+		for (int i = 0; i < 30; i++) {
+			reads.add(read(random, onlyA));
+		}
+		for (int i = 0; i < 10; i++) {
+			reads.add(read(random, onlyB));
+		}
+		for (int i = 0; i < 40; i++) {
+			reads.add(read(random, shared));
+		}
+		for (int i = 0; i < 5; i++) {
+			reads.add(KmerIndexTest.randomSequence(random, READ_LENGTH));
+		}
+		Pseudoaligner mapper = map(index, threads, writeFastq(reads), null);
+
+		Check.equal(85L, mapper.getNumFragments(), "fragments" + what);
+		Check.equal(80L, mapper.getNumMapped(), "mapped fragments" + what);
+		// a shared read is placed on both references
+		Check.equal(120L, mapper.getNumAlignments(), "alignments" + what);
+		Check.equal("[A, B]", mapper.getCoverages().keySet().toString(), "references with reads" + what);
+		Check.equal(70, mapper.getCoverages().get("A").getNumReads(), "reads of A" + what);
+		Check.equal((double) READ_LENGTH, mapper.getMeanFragmentLength(), "mean fragment length without pairs" + what);
+
+		// a = 30 + 40 a / (a + b) and b = 10 + 40 b / (a + b) give a = 60 and b = 20
+		double[] estimates = mapper.estimateCounts();
+		Check.near(60, estimates[0], 0.05, "estimated count of A" + what);
+		Check.near(20, estimates[1], 0.05, "estimated count of B" + what);
+		Check.equal(0.0, estimates[2], "estimated count of C" + what);
+
+		String quantFile = new File(Check.tempDir(), "abundance.tsv").getPath();
+		mapper.writeAbundance(quantFile, estimates);
+		BufferedReader br = new BufferedReader(new FileReader(quantFile));
+		Check.equal("target_id\tlength\teff_length\test_counts\ttpm", br.readLine(), "abundance header" + what);
+		String[] fields = br.readLine().split("\t");
+		br.close();
+		Check.equal("A", fields[0], "first target" + what);
+		Check.equal("600", fields[1], "length of A" + what);
+		Check.equal(600 - READ_LENGTH + 1.0, Double.parseDouble(fields[2]), "effective length of A" + what);
+		Check.equal(estimates[0], Double.parseDouble(fields[3]), "written count of A" + what);
+		Check.near(750000, Double.parseDouble(fields[4]), 1000, "tpm of A" + what);
+	}
+
+	private static void placesReads() throws Exception {
+		Random random = new Random(23);
+		String ref = KmerIndexTest.randomSequence(random, 600);
+		KmerIndex index = KmerIndex.build(KmerIndexTest.writeFasta("A", ref), K);
+		String read = ref.substring(123, 123 + READ_LENGTH);
+		// a read and its reverse complement are placed at the same position, even with an N before the first k-mer
+		String withN = "N" + read.substring(1);
+		Pseudoaligner mapper = map(index, 2, writeFastq(Arrays.asList(read, KmerIndexTest.reverseComplement(read),
+				withN, KmerIndexTest.reverseComplement(withN))), null);
+		CoverageCalculator coverage = mapper.getCoverages().get("A");
+		coverage.compute(600);
+		Check.equal(4, coverage.getNumReads(), "placed reads");
+		Check.equal((long) READ_LENGTH, coverage.getCoveredBps(), "bases covered by reads at one position");
+		Check.near(4.0 * READ_LENGTH / 600, coverage.getMeanDepth(), 1e-9, "mean depth");
+		Check.equal(4.0, mapper.estimateCounts()[0], "estimated count of a single reference");
+	}
+
+	private static void estimatesFragmentLength() throws Exception {
+		Random random = new Random(29);
+		String ref = KmerIndexTest.randomSequence(random, 1000);
+		final KmerIndex index = KmerIndex.build(KmerIndexTest.writeFasta("A", ref), K);
+		List<String> mates1 = new ArrayList<String>();
+		List<String> mates2 = new ArrayList<String>();
+		// fragments of 200 and 300 bases, the second mate on the reverse strand
+		for (int i = 0; i < 20; i++) {
+			int length = i % 2 == 0 ? 200 : 300;
+			int start = random.nextInt(1000 - length + 1);
+			mates1.add(ref.substring(start, start + READ_LENGTH));
+			mates2.add(KmerIndexTest.reverseComplement(ref.substring(start + length - READ_LENGTH, start + length)));
+		}
+		final String reads1 = writeFastq(mates1);
+		String reads2 = writeFastq(mates2);
+		Pseudoaligner mapper = map(index, 2, reads1, reads2);
+		Check.equal(20L, mapper.getNumFragments(), "pairs");
+		Check.equal(40L, mapper.getNumAlignments(), "placed mates");
+		Check.equal(250.0, mapper.getMeanFragmentLength(), "mean fragment length");
+		Check.equal(20.0, mapper.estimateCounts()[0], "estimated count of the pairs");
+
+		final String fewer = writeFastq(mates2.subList(0, 5));
+		Check.fails(IOException.class, new Check.Code() {
+			public void run() throws Exception {
+				map(index, 2, reads1, fewer);
+			}
+		}, "a second read file with fewer reads");
+	}
+}
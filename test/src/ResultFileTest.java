@@ -0,0 +1,218 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Round trip of ResultFile, and the k-way merge of result files by
+ * CohortMerger, on the catalog of test/fixtures/viruses.txt.
+ */
+public class ResultFileTest {
+	public static void main(String[] args) throws Exception {
+		String list = Check.copyFixture("viruses.txt");
+		VirusCatalog catalog = VirusCatalog.load(list);
+		roundTrip(catalog);
+		brokenFiles(catalog);
+		mergesSamples(catalog, list);
+		mergesInPasses(catalog, list);
+	}
+
+	private static VirusAbundance virus(String accession, double abundance, double support) {
+		return new VirusAbundance(accession, "name", "lineage", abundance, support, support + 0.1, support / 2);
+	}
+
+	private static void roundTrip(VirusCatalog catalog) throws Exception {
+		// in the order of the abundance table, not of the ids
+		List<VirusAbundance> viruses = Arrays.asList(virus("NC_004", 40, 0.4), virus("NC_001", 30, 0.3),
+				virus("NC_007", 20, 0.2), virus("NC_002", 10, 0.1));
+		String file = new File(Check.tempDir(), ResultFile.FILE_NAME).getPath();
+		ResultFile.write(file, "sample one", catalog, 101.5, viruses);
+
+		ResultFile.Reader reader = new ResultFile.Reader(file, 64);
+		try {
+			Check.equal(catalog.getChecksum(), reader.getCatalogChecksum(), "catalog checksum");
+			Check.equal(catalog.size(), reader.getCatalogSize(), "catalog size");
+			Check.equal("sample one", reader.getSampleName(), "sample name");
+			Check.equal(101.5, reader.getAverageReadLength(), "average read length");
+			Check.equal(4, reader.getNumEntries(), "entries");
+			Check.equal(-1, reader.getId(), "id before the first entry");
+			String[] accessions = { "NC_001", "NC_002", "NC_004", "NC_007" };
+			double[] abundances = { 30, 10, 40, 20 };
+			for (int i = 0; i < accessions.length; i++) {
+				Check.isTrue(reader.next(), "entry " + i);
+				Check.equal(catalog.getId(accessions[i]), reader.getId(), "id of entry " + i);
+				Check.equal(abundances[i], reader.getEstimatedAbundance(), "abundance of entry " + i);
+				Check.equal(abundances[i] / 100, reader.getSupport(), "support of entry " + i);
+				Check.equal(abundances[i] / 100 + 0.1, reader.getPredictedSupport(), "predicted support of entry " + i);
+				Check.equal(abundances[i] / 200, reader.getRatio(), "ratio of entry " + i);
+			}
+			Check.isTrue(!reader.next(), "end of the entries");
+			Check.equal(-1, reader.getId(), "id after the last entry");
+		} finally {
+			reader.close();
+		}
+
+		ResultFile.write(file, "empty", catalog, 0, new ArrayList<VirusAbundance>());
+		reader = new ResultFile.Reader(file, 64);
+		Check.equal(0, reader.getNumEntries(), "entries of an empty result");
+		Check.isTrue(!reader.next(), "no entry in an empty result");
+		reader.close();
+	}
+
+	private static void readFails(final String file, String what) {
+		Check.fails(IOException.class, new Check.Code() {
+			public void run() throws Exception {
+				ResultFile.Reader reader = new ResultFile.Reader(file, 64);
+				try {
+					while (reader.next()) {
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		}, what);
+	}
+
+	private static void brokenFiles(final VirusCatalog catalog) throws Exception {
+		final String file = new File(Check.tempDir(), ResultFile.FILE_NAME).getPath();
+		Check.fails(IOException.class, new Check.Code() {
+			public void run() throws Exception {
+				ResultFile.write(file, "s", catalog, 100, Arrays.asList(virus("NC_999", 1, 0.5)));
+			}
+		}, "writing a virus that is not in the catalog");
+
+		List<VirusAbundance> viruses = Arrays.asList(virus("NC_001", 2, 0.5), virus("NC_003", 1, 0.5));
+		ResultFile.write(file, "s", catalog, 100, viruses);
+		long length = new File(file).length();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		// each entry is an int and four doubles
+		long secondId = length - 36;
+		raf.seek(secondId);
+		raf.writeInt(0);
+		raf.close();
+		readFails(file, "reading ids out of order");
+
+		ResultFile.write(file, "s", catalog, 100, viruses);
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(length - 5);
+		raf.close();
+		readFails(file, "reading a truncated entry");
+
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(10);
+		raf.close();
+		readFails(file, "reading a truncated header");
+
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(0);
+		raf.writeInt(0x12345678);
+		raf.close();
+		readFails(file, "reading a file that is not a result");
+	}
+
+	private static List<String> readLines(String file) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = br.readLine()) != null) {
+			lines.add(line);
+		}
+		br.close();
+		return lines;
+	}
+
+	private static void mergesSamples(VirusCatalog catalog, String list) throws Exception {
+		File dir = Check.tempDir();
+		// s1 and s3 as output directories, s2 as a result file
+		new File(dir, "s1").mkdirs();
+		new File(dir, "s3").mkdirs();
+		ResultFile.write(dir + "/s1/" + ResultFile.FILE_NAME, "s1", catalog, 100,
+				Arrays.asList(virus("NC_005", 5, 0.5), virus("NC_001", 1, 0.1)));
+		ResultFile.write(dir + "/s2.bin", "s2", catalog, 100,
+				Arrays.asList(virus("NC_002", 2, 0.2), virus("NC_005", 7, 0.7), virus("NC_007", 3, 0.3)));
+		ResultFile.write(dir + "/s3/" + ResultFile.FILE_NAME, "s3", catalog, 100,
+				Arrays.asList(virus("NC_001", 4, 0.4)));
+		String results = dir + "/results.txt";
+		FileWriter out = new FileWriter(results);
+		out.write("# samples\n" + dir + "/s1\n\n" + dir + "/s2.bin\n" + dir + "/s3\n");
+		out.close();
+
+		String merged = dir + "/cohort.tsv";
+		CohortMerger.main(new String[] { "-merge", results, "-l", list, "-o", merged });
+		List<String> lines = readLines(merged);
+		Check.equal(5, lines.size(), "lines of the merged table");
+		Check.isTrue(lines.get(0).endsWith("\ts1\ts2\ts3"), "sample columns");
+		Check.equal("NC_001\tVirus one\tViruses;Phy;Cls;Ord;FamA;GenA;Species one\t1.0\t0\t4.0", lines.get(1),
+				"row of NC_001");
+		Check.isTrue(lines.get(2).startsWith("NC_002\t") && lines.get(2).endsWith("\t0\t2.0\t0"), "row of NC_002");
+		Check.isTrue(lines.get(3).startsWith("NC_005\t") && lines.get(3).endsWith("\t5.0\t7.0\t0"), "row of NC_005");
+		Check.isTrue(lines.get(4).startsWith("NC_007\t") && lines.get(4).endsWith("\t0\t3.0\t0"), "row of NC_007");
+
+		String matrix = dir + "/cohort.mtx";
+		CohortMerger.main(new String[] { "-merge", results, "-l", list, "-o", matrix, "-format", "mtx", "-value",
+				"support" });
+		lines = readLines(matrix);
+		Check.equal(catalog.size() + " 3 6", lines.get(2), "size line of the matrix");
+		// rows are catalog id + 1, columns the samples in the order of the list
+		Check.equal(Arrays.asList("1 1 0.1", "1 3 0.4", "2 2 0.2", "5 1 0.5", "5 2 0.7", "7 2 0.3"),
+				lines.subList(3, lines.size()), "entries of the matrix");
+		lines = readLines(matrix + ".rows.tsv");
+		Check.equal(5, lines.size(), "lines of the row names");
+		Check.isTrue(lines.get(3).startsWith("5\tNC_005\t"), "row name of NC_005");
+		lines = readLines(matrix + ".cols.tsv");
+		Check.isTrue(lines.get(2).startsWith("2\ts2\t"), "column name of s2");
+	}
+
+	private static void merge(int maxOpenFiles, String... args) throws Exception {
+		CohortMerger merger = new CohortMerger(maxOpenFiles);
+		merger.parseArguments(args);
+		merger.run();
+	}
+
+	private static void mergesInPasses(VirusCatalog catalog, String list) throws Exception {
+		File dir = Check.tempDir();
+		Random random = new Random(13);
+		StringBuilder results = new StringBuilder();
+		for (int sample = 0; sample < 40; sample++) {
+			List<VirusAbundance> viruses = new ArrayList<VirusAbundance>();
+			for (int id = 0; id < catalog.size(); id++) {
+				if (random.nextInt(3) == 0) {
+					viruses.add(virus(catalog.getAccession(id), 1 + random.nextInt(100), random.nextDouble()));
+				}
+			}
+			String file = dir + "/s" + sample + ".bin";
+			ResultFile.write(file, "s" + sample, catalog, 100, viruses);
+			results.append(file).append('\n');
+		}
+		FileWriter out = new FileWriter(dir + "/results.txt");
+		out.write(results.toString());
+		out.close();
+
+		File outDir = new File(dir, "out");
+		outDir.mkdirs();
+		for (String format : new String[] { "tsv", "mtx" }) {
+			String inOnePass = outDir + "/one." + format;
+			merge(256, "-merge", dir + "/results.txt", "-l", list, "-o", inOnePass, "-format", format);
+			// 40 results in 14 intermediate files, then 5, then 2
+			String inPasses = outDir + "/passes." + format;
+			merge(3, "-merge", dir + "/results.txt", "-l", list, "-o", inPasses, "-format", format);
+			List<String> expected = readLines(inOnePass);
+			List<String> merged = readLines(inPasses);
+			Check.equal(expected.size(), merged.size(), "lines of the " + format + " merged in passes");
+			for (int i = 0; i < expected.size(); i++) {
+				// the comment line of the matrix names the output file
+				if (!expected.get(i).startsWith("% ")) {
+					Check.equal(expected.get(i), merged.get(i), "line " + i + " of the " + format + " merged in passes");
+				}
+			}
+		}
+		// the two tables, the two matrices and their .rows.tsv and .cols.tsv, but no intermediate files
+		Check.equal(8, outDir.list().length, "files left after merging in passes");
+	}
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Runs of -resume true in child JVMs, with the kallisto and samtools of
+ * StandInTools, on reads of NC_001 and NC_002 of test/fixtures/viruses.txt.
+ * A rerun reuses the mapping of the first run and still ends with the same
+ * abundance and depth files when files or checkpoints of the first run are
+ * missing.
+ */
+public class ResumeTest {
+	private static final String ABUNDANCE_FILE = "FastViromeExplorer-final-sorted-abundance.tsv";
+	private static final String READ_STATS_FILE = "FastViromeExplorer-read-stats.tsv";
+	private static final String CHECKPOINTS_FILE = "FastViromeExplorer-checkpoints.tsv";
+	private static final String DEPTH_FILE = "FastViromeExplorer-depth.bedGraph";
+
+	private static File bin;
+	private static File dir;
+	private static String list;
+
+	public static void main(String[] args) throws Exception {
+		dir = Check.tempDir();
+		bin = StandInTools.writeScripts(Check.tempDir());
+		writeInputs();
+		list = Check.copyFixture("viruses.txt");
+		File out = new File(dir, "out");
+		String log = run(out);
+		Check.isTrue(!log.contains("earlier run"), "nothing reused by the first run");
+		String abundance = read(new File(out, ABUNDANCE_FILE));
+		Check.isTrue(abundance.contains("NC_001") && abundance.contains("NC_002"), "viruses of the first run");
+		Check.isTrue(new File(out, DEPTH_FILE).isFile(), "depth of the first run");
+
+		// the mapping is reused, but the read lengths are scanned again
+		new File(out, READ_STATS_FILE).delete();
+		log = run(out);
+		Check.isTrue(log.contains("Using the mapping of an earlier run."), "mapping reused without read stats");
+		Check.isTrue(!log.contains("Using the read length scan"), "read length scanned without read stats");
+		Check.equal(abundance, read(new File(out, ABUNDANCE_FILE)), "abundance without read stats");
+		Check.isTrue(new File(out, READ_STATS_FILE).isFile(), "read stats written again");
+
+		// a read length checkpoint without the number of reads, as written by earlier versions
+		File checkpoints = new File(out, CHECKPOINTS_FILE);
+		String oldForm = read(checkpoints).replaceAll("(readLengthScan\t[^\t]*\t[^,\n]*),[0-9]*", "$1");
+		Check.isTrue(!oldForm.equals(read(checkpoints)), "read length checkpoint in the old form");
+		write(checkpoints, oldForm);
+		log = run(out);
+		Check.isTrue(log.contains("Using the mapping of an earlier run."), "mapping reused with an old checkpoint");
+		Check.isTrue(!log.contains("Using the read length scan"), "read length scanned with an old checkpoint");
+		Check.equal(abundance, read(new File(out, ABUNDANCE_FILE)), "abundance with an old checkpoint");
+
+		// the depth files are written again, as the coverage summary cannot be used without them
+		new File(out, DEPTH_FILE).delete();
+		log = run(out);
+		Check.isTrue(!log.contains("coverage summary of an earlier run"), "coverage summary not used without depth");
+		Check.isTrue(new File(out, DEPTH_FILE).isFile(), "depth written again");
+		Check.equal(abundance, read(new File(out, ABUNDANCE_FILE)), "abundance without depth");
+
+		// everything reused
+		log = run(out);
+		Check.isTrue(log.contains("Using the read length scan of an earlier run."), "read length reused");
+		Check.isTrue(log.contains("coverage summary of an earlier run"), "coverage summary reused");
+		Check.equal(abundance, read(new File(out, ABUNDANCE_FILE)), "abundance of a full resume");
+	}
+
+	private static void writeInputs() throws Exception {
+		Random random = new Random(31);
+		StringBuilder reads = new StringBuilder();
+		// NC_001 has 500 bases and NC_002 has 320
+		String[] refs = { "NC_001", "NC_002", "*" };
+		int[] lengths = { 500, 320, 0 };
+		int[] numReads = { 60, 30, 5 };
+		for (int r = 0; r < refs.length; r++) {
+			for (int i = 0; i < numReads[r]; i++) {
+				int pos = lengths[r] == 0 ? 0 : 1 + random.nextInt(lengths[r] - 50 + 1);
+				reads.append("@").append(refs[r]).append(':').append(pos).append('\n');
+				reads.append(KmerIndexTest.randomSequence(random, 50)).append("\n+\n");
+				char[] quals = new char[50];
+				Arrays.fill(quals, 'I');
+				reads.append(quals).append('\n');
+			}
+		}
+		write(new File(dir, "reads.fq"), reads.toString());
+		write(new File(dir, "index.txt"), "NC_001\t500\nNC_002\t320\n");
+	}
+
+	// run FastViromeExplorer with -resume true into out and return its output
+	private static String run(File out) throws Exception {
+		List<String> command = new ArrayList<String>(Arrays.asList("java", "-cp",
+				System.getProperty("java.class.path"), "FastViromeExplorer", "-1", dir + "/reads.fq", "-i",
+				dir + "/index.txt", "-o", out.getPath(), "-l", list, "-sam", "true",
+				"-resume", "true", "-depthBin", "100", "-cn", "1", "-co", "0.01", "-cr", "0.01"));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.environment().put("PATH", bin + File.pathSeparator + System.getenv("PATH"));
+		builder.redirectErrorStream(true);
+		File log = new File(dir, "run.log");
+		builder.redirectOutput(log);
+		int exitCode = builder.start().waitFor();
+		String output = read(log);
+		if (exitCode != 0) {
+			System.out.print(output);
+		}
+		Check.equal(0, exitCode, "exit code");
+		return output;
+	}
+
+	private static String read(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = br.readLine()) != null) {
+			sb.append(line).append('\n');
+		}
+		br.close();
+		return sb.toString();
+	}
+
+	private static void write(File file, String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		out.write(text);
+		out.close();
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Tokenizing of sam lines by SamReader and the read length taken from the
+ * cigar when SEQ is '*', on test/fixtures/reads.sam.
+ */
+public class SamReaderTest {
+	public static void main(String[] args) throws Exception {
+		readsTheFixture(new FileInputStream(Check.fixture("reads.sam")));
+		// the same input handed over a few bytes at a time, so lines are split across refills
+		readsTheFixture(new TrickleInputStream(new FileInputStream(Check.fixture("reads.sam")), 3));
+		cigarReferenceLength();
+		linesLongerThanTheBuffer();
+		truncatedLine();
+	}
+
+	private static void readsTheFixture(InputStream in) throws Exception {
+		SamReader sam = new SamReader(in);
+		try {
+			Check.isTrue(sam.next() && sam.isHeader(), "@HD is a header line");
+			Check.isTrue(sam.next() && sam.isHeader(), "@SQ is a header line");
+
+			Check.isTrue(sam.next(), "read1");
+			Check.isTrue(!sam.isHeader(), "read1 is a record");
+			Check.equal(0, sam.getFlag(), "flag of read1");
+			Check.equal("NC_001", sam.getRefName(), "reference of read1");
+			Check.equal(10, sam.getPos(), "position of read1");
+			// the optional field after QUAL does not end up in SEQ
+			Check.equal(20, sam.getSeqLength(), "length of read1");
+			byte[] name = "NC_001".getBytes(StandardCharsets.US_ASCII);
+			Check.isTrue(sam.refNameEquals(name, name.length), "reference of read1 compared in place");
+			Check.isTrue(!sam.refNameEquals(name, 5), "a prefix of the reference is another name");
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			sam.writeLine(line);
+			Check.isTrue(line.toString("US-ASCII").startsWith("read1\t0\tNC_001\t10\t")
+					&& line.toString("US-ASCII").endsWith("\tNH:i:1\n"), "read1 written back");
+
+			Check.isTrue(sam.next(), "read2");
+			Check.equal(16, sam.getFlag(), "flag of read2");
+			Check.equal(25, sam.getPos(), "position of read2, with a leading space");
+			Check.equal(8, sam.getSeqLength(), "length of read2, before the carriage return");
+			Check.isTrue(!sam.isUnmapped(), "read2 is mapped");
+
+			Check.isTrue(sam.next(), "read3");
+			Check.equal(22, sam.getSeqLength(), "length of read3 from its cigar");
+
+			Check.isTrue(sam.next(), "read4");
+			Check.isTrue(sam.isUnmapped(), "read4 is unmapped");
+
+			Check.isTrue(sam.next(), "read5, without a newline");
+			Check.equal("NC_002", sam.getRefName(), "reference of read5");
+			Check.equal(5, sam.getSeqLength(), "length of read5");
+			Check.isTrue(!sam.next(), "end of the input");
+			Check.isTrue(!sam.next(), "still at the end of the input");
+		} finally {
+			sam.close();
+		}
+	}
+
+	private static SamReader reader(String text) {
+		return new SamReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static void cigarReferenceLength() throws Exception {
+		String[][] cigars = { { "100M", "100" }, { "5S90M5S", "90" }, { "3H10=2X10=", "22" }, { "50M100N50M", "200" },
+				{ "10M5D10M", "25" }, { "10M5I10M", "20" }, { "*", "0" } };
+		for (String[] cigar : cigars) {
+			SamReader sam = reader("r\t0\tref\t1\t255\t" + cigar[0] + "\t*\t0\t0\t*\t*\n");
+			Check.isTrue(sam.next(), "record of " + cigar[0]);
+			Check.equal(Integer.parseInt(cigar[1]), sam.getReferenceLength(), "reference length of " + cigar[0]);
+			Check.equal(Integer.parseInt(cigar[1]), sam.getSeqLength(), "read length of " + cigar[0]);
+		}
+	}
+
+	private static void linesLongerThanTheBuffer() throws Exception {
+		StringBuilder seq = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			seq.append("ACGT".charAt(i % 4));
+		}
+		SamReader sam = reader("long\t0\tref\t3\t255\t200000M\t*\t0\t0\t" + seq + "\t*\n"
+				+ "short\t0\tref2\t9\t255\t4M\t*\t0\t0\tACGT\t*\n");
+		Check.isTrue(sam.next(), "long record");
+		Check.equal(200000, sam.getSeqLength(), "length of the long record");
+		Check.equal(3, sam.getPos(), "position of the long record");
+		Check.isTrue(sam.next(), "record after the long one");
+		Check.equal("ref2", sam.getRefName(), "reference after the long record");
+		Check.equal(9, sam.getPos(), "position after the long record");
+	}
+
+	private static void truncatedLine() throws Exception {
+		final SamReader sam = reader("r\t0\tref\t12\n");
+		Check.isTrue(sam.next(), "truncated record");
+		Check.equal(12, sam.getPos(), "position of the truncated record");
+		Check.fails(IllegalStateException.class, new Check.Code() {
+			public void run() {
+				sam.getSeqLength();
+			}
+		}, "reading SEQ of a truncated record");
+		final SamReader bad = reader("r\t0\tref\tx\n");
+		Check.isTrue(bad.next(), "record with a bad position");
+		Check.fails(NumberFormatException.class, new Check.Code() {
+			public void run() {
+				bad.getPos();
+			}
+		}, "parsing a bad position");
+	}
+
+	// hands out at most n bytes per read, like a slow pipe
+	private static class TrickleInputStream extends InputStream {
+		private final InputStream in;
+		private final int n;
+
+		TrickleInputStream(InputStream in, int n) {
+			this.in = in;
+			this.n = n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, n));
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
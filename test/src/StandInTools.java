@@ -0,0 +1,165 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Stand-ins for the kallisto and samtools commands FastViromeExplorer runs,
+ * for tests that run the whole pipeline in a child JVM. The index is a text
+ * file of reference names and lengths, and every read is named
+ * <reference>:<1-based position>, or *:0 if it does not map.
+ *
+ * java StandInTools kallisto (version | quant -i index -o dir ... reads1 [reads2])
+ * java StandInTools samtools (--version | view ... | sort ... -o file - | index file)
+ */
+public class StandInTools {
+	public static void main(String[] args) throws Exception {
+		List<String> rest = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			rest.add(args[i]);
+		}
+		if (args[0].equals("kallisto")) {
+			kallisto(rest);
+		} else if (args[0].equals("samtools")) {
+			samtools(rest);
+		} else {
+			System.err.println("Unknown tool " + args[0] + ".");
+			System.exit(1);
+		}
+	}
+
+	// write kallisto and samtools scripts into dir that run this class on the class path of this JVM
+	static File writeScripts(File dir) throws Exception {
+		for (String tool : new String[] { "kallisto", "samtools" }) {
+			File script = new File(dir, tool);
+			FileWriter out = new FileWriter(script);
+			out.write("#!/bin/sh\nexec java -cp '" + System.getProperty("java.class.path") + "' StandInTools " + tool
+					+ " \"$@\"\n");
+			out.close();
+			script.setExecutable(true);
+		}
+		return dir;
+	}
+
+	private static String option(List<String> args, String name) {
+		int i = args.indexOf(name);
+		return i < 0 ? null : args.get(i + 1);
+	}
+
+	private static void kallisto(List<String> args) throws Exception {
+		if (args.get(0).equals("version")) {
+			System.out.println("kallisto, version 0.43.1");
+			return;
+		}
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		BufferedReader br = new BufferedReader(new FileReader(option(args, "-i")));
+		String line;
+		while ((line = br.readLine()) != null) {
+			String[] fields = line.split("\t");
+			lengths.put(fields[0], Integer.parseInt(fields[1]));
+		}
+		br.close();
+		List<String> readFiles = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.endsWith(".fq")) {
+				readFiles.add(arg);
+			}
+		}
+
+		BufferedWriter sam = new BufferedWriter(new OutputStreamWriter(System.out));
+		sam.write("@HD\tVN:1.0\n");
+		for (Map.Entry<String, Integer> entry : lengths.entrySet()) {
+			sam.write("@SQ\tSN:" + entry.getKey() + "\tLN:" + entry.getValue() + "\n");
+		}
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String readFile : readFiles) {
+			br = new BufferedReader(new FileReader(readFile));
+			while ((line = br.readLine()) != null) {
+				String name = line.substring(1);
+				String seq = br.readLine();
+				br.readLine();
+				String qual = br.readLine();
+				String ref = name.substring(0, name.indexOf(':'));
+				boolean mapped = lengths.containsKey(ref);
+				if (mapped) {
+					Integer count = counts.get(ref);
+					counts.put(ref, count == null ? 1 : count + 1);
+				}
+				sam.write(name + "\t" + (mapped ? 0 : 4) + "\t" + (mapped ? ref : "*") + "\t"
+						+ name.substring(name.indexOf(':') + 1) + "\t255\t" + (mapped ? seq.length() + "M" : "*")
+						+ "\t*\t0\t0\t" + seq + "\t" + qual + "\n");
+			}
+			br.close();
+		}
+		sam.flush();
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(new File(option(args, "-o"), "abundance.tsv")));
+		bw.write("target_id\tlength\teff_length\test_counts\ttpm\n");
+		for (Map.Entry<String, Integer> entry : lengths.entrySet()) {
+			Integer count = counts.get(entry.getKey());
+			bw.write(entry.getKey() + "\t" + entry.getValue() + "\t" + entry.getValue() + "\t"
+					+ (count == null ? 0.0 : (double) count) + "\t0\n");
+		}
+		bw.close();
+	}
+
+	// only sam is read and written, whatever the options ask for
+	private static void samtools(List<String> args) throws Exception {
+		if (args.get(0).equals("--version")) {
+			System.out.println("samtools 1.9");
+			return;
+		}
+		if (args.get(0).equals("index")) {
+			return;
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+		final List<String> header = new ArrayList<String>();
+		List<String> records = new ArrayList<String>();
+		boolean dropUnmapped = args.contains("-F");
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith("@")) {
+				header.add(line);
+			} else if (!dropUnmapped || (Integer.parseInt(line.split("\t")[1]) & 4) == 0) {
+				records.add(line);
+			}
+		}
+		BufferedWriter out;
+		if (args.get(0).equals("sort")) {
+			final Map<String, Integer> refOrder = new HashMap<String, Integer>();
+			for (String h : header) {
+				if (h.startsWith("@SQ")) {
+					refOrder.put(h.split("\t")[1].substring(3), refOrder.size());
+				}
+			}
+			Collections.sort(records, new Comparator<String>() {
+				public int compare(String a, String b) {
+					String[] x = a.split("\t");
+					String[] y = b.split("\t");
+					int c = Integer.compare(refOrder.get(x[2]), refOrder.get(y[2]));
+					return c != 0 ? c : Integer.compare(Integer.parseInt(x[3]), Integer.parseInt(y[3]));
+				}
+			});
+			out = new BufferedWriter(new FileWriter(option(args, "-o")));
+		} else {
+			out = new BufferedWriter(new OutputStreamWriter(System.out));
+		}
+		for (String h : header) {
+			out.write(h + "\n");
+		}
+		for (String record : records) {
+			out.write(record + "\n");
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Taxonomy of the catalog of test/fixtures/viruses.txt, and the roll-up of
+ * abundances to the taxa of a rank. Taxa are told apart by their path, so
+ * the FamB of Ord and the FamB of Ord2 are two taxa.
+ */
+public class TaxonomyTest {
+	// NC_001 to NC_007, so every total tells which viruses it holds
+	private static final double[] COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	public static void main(String[] args) throws Exception {
+		String list = Check.copyFixture("viruses.txt");
+		// compiled on the first load, mapped from the .fvec on the second
+		for (int load = 0; load < 2; load++) {
+			VirusCatalog catalog = VirusCatalog.load(list);
+			buildsTheTree(catalog);
+			rollsUpToARank(catalog);
+		}
+		Check.equal(5, Taxonomy.getRank(" Genus"), "rank of a name");
+		Check.equal(-1, Taxonomy.getRank("strain"), "rank of an unknown name");
+	}
+
+	private static int node(VirusCatalog catalog, String accession, int rank) {
+		return catalog.getTaxonomy().getNode(catalog.getLineageId(catalog.getId(accession)), rank);
+	}
+
+	private static void buildsTheTree(VirusCatalog catalog) {
+		Taxonomy taxonomy = catalog.getTaxonomy();
+		// 7 taxa of NC_001, then Species two of the first NC_002, then the new taxa of every later lineage
+		Check.equal(27, taxonomy.size(), "taxa");
+		Check.equal(0, node(catalog, "NC_001", 0), "node of the first kingdom");
+		Check.equal(-1, taxonomy.getParent(0), "parent of a kingdom");
+		int genus = node(catalog, "NC_003", 5);
+		Check.equal("GenB", taxonomy.getName(genus), "name of a genus");
+		Check.equal(5, taxonomy.getRankOf(genus), "rank of a genus");
+		Check.equal(node(catalog, "NC_003", 4), taxonomy.getParent(genus), "parent of a genus");
+		Check.equal(genus, node(catalog, "NC_002", 5), "genus of the repeated accession");
+		Check.equal("Viruses;Phy;Cls;Ord;FamA;GenB;Species three", taxonomy.getPath(node(catalog, "NC_003", 6)),
+				"path of a species");
+
+		// the same name under other parents is another taxon
+		Check.isTrue(node(catalog, "NC_004", 4) != node(catalog, "NC_005", 4), "FamB of two orders");
+		Check.equal(node(catalog, "NC_001", 4), node(catalog, "NC_007", 4), "FamA of two viruses");
+
+		// empty and missing ranks are N/A
+		Check.equal("Viruses;Phy;Cls;Ord;FamA;N/A;N/A", taxonomy.getPath(node(catalog, "NC_007", 6)),
+				"path of empty ranks");
+		Check.equal("N/A;N/A;N/A;N/A;N/A;N/A;N/A", taxonomy.getPath(node(catalog, "NC_006", 6)),
+				"path of a virus without lineage");
+		Check.isTrue(node(catalog, "NC_006", 5) != node(catalog, "NC_007", 5), "N/A genus of two families");
+	}
+
+	private static String totals(Taxonomy taxonomy, Taxonomy.RankTotals totals) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < totals.size(); i++) {
+			sb.append(i == 0 ? "" : ",").append(taxonomy.getPath(totals.getNode(i))).append('=')
+					.append(totals.getTotal(i)).append('/').append(totals.getNumViruses(i));
+		}
+		return sb.toString();
+	}
+
+	private static void rollsUpToARank(VirusCatalog catalog) {
+		Taxonomy taxonomy = catalog.getTaxonomy();
+		int[] ids = new int[COUNTS.length];
+		for (int i = 0; i < ids.length; i++) {
+			// in reverse, so the viruses of a taxon are not next to each other
+			ids[i] = catalog.getId("NC_00" + (7 - i));
+		}
+		double[] counts = new double[COUNTS.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = COUNTS[ids[i]];
+		}
+
+		Check.equal("Viruses=95.0/6,N/A=32.0/1", totals(taxonomy, taxonomy.rollUp(ids, counts, 7, 0)),
+				"kingdoms");
+		Check.equal("Viruses;Phy;Cls;Ord;FamA=71.0/4,N/A;N/A;N/A;N/A;N/A=32.0/1,Viruses;Phy;Cls;Ord2;FamB=16.0/1,"
+				+ "Viruses;Phy;Cls;Ord;FamB=8.0/1", totals(taxonomy, taxonomy.rollUp(ids, counts, 7, 4)),
+				"families");
+		Check.equal("Viruses;Phy;Cls;Ord;FamA;N/A=64.0/1,N/A;N/A;N/A;N/A;N/A;N/A=32.0/1,"
+				+ "Viruses;Phy;Cls;Ord2;FamB;GenC=16.0/1,Viruses;Phy;Cls;Ord;FamB;GenC=8.0/1,"
+				+ "Viruses;Phy;Cls;Ord;FamA;GenB=6.0/2,Viruses;Phy;Cls;Ord;FamA;GenA=1.0/1",
+				totals(taxonomy, taxonomy.rollUp(ids, counts, 7, 5)), "genera");
+		Check.equal(7, taxonomy.rollUp(ids, counts, 7, 6).size(), "species");
+
+		// only the first numViruses entries count
+		Check.equal("Viruses;Phy;Cls;Ord;FamA=64.0/1,N/A;N/A;N/A;N/A;N/A=32.0/1",
+				totals(taxonomy, taxonomy.rollUp(ids, counts, 2, 4)), "families of the first two viruses");
+		Check.equal(0, taxonomy.rollUp(ids, counts, 0, 4).size(), "taxa of no viruses");
+
+		// equal totals in the order of the taxa
+		int[] tied = { catalog.getId("NC_005"), catalog.getId("NC_004"), catalog.getId("NC_001") };
+		Check.equal("Viruses;Phy;Cls;Ord;FamA=3.0/1,Viruses;Phy;Cls;Ord;FamB=3.0/1,Viruses;Phy;Cls;Ord2;FamB=3.0/1",
+				totals(taxonomy, taxonomy.rollUp(tied, new double[] { 3, 3, 3 }, 3, 4)), "tied families");
+	}
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * VirusCatalog on test/fixtures/viruses.txt and generated lists: parsing,
+ * replacement of repeated accessions, lookups through the probed hash table,
+ * and the $list.fvec compiled next to a text list.
+ */
+public class VirusCatalogTest {
+	public static void main(String[] args) throws Exception {
+		parsesTheFixture();
+		probesManyAccessions();
+		compilesNextToTheList();
+	}
+
+	private static void parsesTheFixture() throws Exception {
+		VirusCatalog catalog = VirusCatalog.load(Check.copyFixture("viruses.txt"));
+		// 9 lines, one of them empty and one a repeated accession
+		Check.equal(7, catalog.size(), "entries");
+		for (int id = 0; id < catalog.size(); id++) {
+			Check.equal("NC_00" + (id + 1), catalog.getAccession(id), "accession of id " + id);
+			Check.equal(id, catalog.getId("NC_00" + (id + 1)), "id of NC_00" + (id + 1));
+		}
+
+		// the repeated NC_002 replaces the earlier entry and keeps its id
+		int id = catalog.getId("NC_002");
+		Check.equal(1, id, "id of the repeated accession");
+		Check.equal("Virus two, revised", catalog.getName(id), "name of the repeated accession");
+		Check.equal(320, catalog.getLength(id), "length of the repeated accession");
+		Check.equal("Viruses;Phy;Cls;Ord;FamA;GenB;Species two", catalog.getLineage(id),
+				"lineage of the repeated accession");
+
+		// a line of accession and length only
+		id = catalog.getId("NC_006");
+		Check.equal(1234, catalog.getLength(id), "length of a two-column line");
+		Check.equal("N/A", catalog.getName(id), "name of a two-column line");
+		Check.equal("N/A", catalog.getLineage(id), "lineage of a two-column line");
+
+		// the first lineage of NC_002 stays in the lineage table, the revised one is added after NC_006's
+		Check.equal(8, catalog.getNumLineages(), "distinct lineages");
+		Check.equal(6, catalog.getLineageId(catalog.getId("NC_002")), "lineage id of the repeated accession");
+		Check.equal("N/A", catalog.getLineageString(5), "lineage of NC_006 in the lineage table");
+
+		Check.equal(-1, catalog.getId("NC_008"), "id of an unknown accession");
+		Check.equal(-1, catalog.getId(""), "id of an empty accession");
+		Check.equal(-1, catalog.getId("NC_00"), "id of a prefix of an accession");
+		byte[] line = "x\tNC_004\ty".getBytes(StandardCharsets.UTF_8);
+		Check.equal(3, catalog.getId(line, 2, 6), "id of an accession inside a buffer");
+	}
+
+	private static void probesManyAccessions() throws Exception {
+		File list = new File(Check.tempDir(), "many.txt");
+		Writer out = new FileWriter(list);
+		int n = 20000;
+		for (int i = 0; i < n; i++) {
+			// similar accessions, so many of them share a slot and are probed past
+			out.write("V" + i + "\tVirus " + i + "\tk;p;c;o;f" + (i % 37) + ";g;s\t" + (100 + i) + "\n");
+		}
+		// every tenth accession is repeated with a new length
+		for (int i = 0; i < n; i += 10) {
+			out.write("V" + i + "\t" + (5 + i) + "\n");
+		}
+		out.close();
+		VirusCatalog catalog = VirusCatalog.load(list.getPath());
+		Check.equal(n, catalog.size(), "entries of the generated list");
+		for (int i = 0; i < n; i++) {
+			int id = catalog.getId("V" + i);
+			Check.equal(i, id, "id of V" + i);
+			Check.equal(i % 10 == 0 ? 5 + i : 100 + i, catalog.getLength(id), "length of V" + i);
+			Check.equal(-1, catalog.getId("W" + i), "id of the unknown W" + i);
+		}
+	}
+
+	private static void compilesNextToTheList() throws Exception {
+		String list = Check.copyFixture("viruses.txt");
+		File compiled = new File(list + VirusCatalog.COMPILED_SUFFIX);
+		VirusCatalog first = VirusCatalog.load(list);
+		Check.isTrue(compiled.isFile(), "the list is compiled next to it");
+		Check.isTrue(VirusCatalog.isCompiled(compiled.getPath()), "the compiled file is a catalog");
+		Check.isTrue(!VirusCatalog.isCompiled(list), "the list is not a catalog");
+		Check.equal(new File(list).lastModified(), compiled.lastModified(), "time of the compiled file");
+
+		// the compiled file is mapped by the next run, and a catalog file can be given in place of the list
+		Check.equal(first.getChecksum(), VirusCatalog.load(list).getChecksum(), "checksum of the mapped catalog");
+		Check.equal(first.getChecksum(), VirusCatalog.load(compiled.getPath()).getChecksum(),
+				"checksum of the catalog loaded directly");
+
+		// a changed list is compiled again
+		FileWriter out = new FileWriter(list, true);
+		out.write("NC_008\tVirus eight\tViruses;Phy;Cls;Ord;FamC;GenD;Species eight\t900\n");
+		out.close();
+		new File(list).setLastModified(compiled.lastModified() + 2000);
+		VirusCatalog changed = VirusCatalog.load(list);
+		Check.equal(8, changed.size(), "entries of the changed list");
+		Check.equal(900, changed.getLength(changed.getId("NC_008")), "length of the added accession");
+		Check.equal(new File(list).lastModified(), compiled.lastModified(), "time of the compiled file after a change");
+
+		// a compiled file of another version is compiled again
+		RandomAccessFile file = new RandomAccessFile(compiled, "rw");
+		file.seek(4);
+		file.writeInt(-1);
+		file.close();
+		Check.equal(changed.getChecksum(), VirusCatalog.load(list).getChecksum(), "checksum after an old version");
+		Check.equal(changed.getChecksum(), VirusCatalog.load(compiled.getPath()).getChecksum(),
+				"checksum of the catalog compiled again");
+
+		// compile() gives the same bytes as the file written next to the list
+		File byHand = new File(Check.tempDir(), "by-hand.fvec");
+		FileOutputStream catalogOut = new FileOutputStream(byHand);
+		catalogOut.write(VirusCatalog.compile(list));
+		catalogOut.close();
+		Check.equal(changed.getChecksum(), VirusCatalog.load(byHand.getPath()).getChecksum(),
+				"checksum of a catalog compiled by hand");
+	}
+}